@@ -0,0 +1,67 @@
+package net.flytre.pipe.benchmark;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.flytre.pipe.pipe.PipeEntity;
+import net.minecraft.util.math.BlockPos;
+import org.openjdk.jol.info.ClassLayout;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * Reports how many bytes of heap a pipe takes up, run with ./gradlew :jmh:pipeFootprint.
+ * <p>
+ * An idle pipe only holds its own fields and its position, since its containers are created on demand, and its share of
+ * the network set all pipes in a network have in common. Pipes that route or carry items additionally hold the
+ * containers listed after that. Block states are shared between pipes, so they aren't counted.
+ * <p>
+ * Sizes are measured from the layout of the classes in this JVM, so PipeEntity is never constructed and the game
+ * doesn't need to be running.
+ */
+public final class PipeFootprint {
+
+    private static final int[] NETWORK_SIZES = {1000, 10000, 100000};
+
+    private PipeFootprint() {
+    }
+
+    public static void main(String[] args) {
+        ClassLayout pipeLayout = ClassLayout.parseClass(PipeEntity.class);
+        long pipe = pipeLayout.instanceSize();
+        long pos = ClassLayout.parseClass(BlockPos.class).instanceSize();
+        long idle = pipe + pos;
+
+        System.out.println(pipeLayout.toPrintable());
+        System.out.printf("Idle pipe: %d bytes (PipeEntity %d + BlockPos %d)%n", idle, pipe, pos);
+
+        for (int size : NETWORK_SIZES) {
+            LongOpenHashSet network = new LongOpenHashSet();
+            for (int i = 0; i < size; i++)
+                network.add(BlockPos.asLong(i, 64, 0));
+            double share = GraphLayout.parseInstance(network).totalSize() / (double) size;
+            System.out.printf("In a network of %d pipes: %.1f bytes per pipe for the network set, %.1f bytes per pipe in total, %.1f MB for the network%n",
+                    size, share, idle + share, (idle + share) * size / (1024 * 1024));
+        }
+
+        System.out.println();
+        System.out.println("Allocated once a pipe needs them:");
+        Set<Object> queue = new HashSet<>(4);
+        System.out.printf("  item queue (empty): %d bytes, plus %d bytes per item besides the item itself%n",
+                GraphLayout.parseInstance(queue).totalSize(), itemEntrySize());
+        System.out.printf("  route cache (empty): %d bytes%n", GraphLayout.parseInstance(new LinkedHashMap<>(4)).totalSize());
+        System.out.printf("  adjacent inventory cache: %d bytes%n", GraphLayout.parseInstance((Object) new Object[6]).totalSize());
+    }
+
+    /**
+     * The bytes a HashSet uses to hold each entry, measured by adding one
+     */
+    private static long itemEntrySize() {
+        Set<Object> queue = new HashSet<>(4);
+        Object item = new Object();
+        long before = GraphLayout.parseInstance(queue).totalSize();
+        queue.add(item);
+        return GraphLayout.parseInstance(queue).totalSize() - before - GraphLayout.parseInstance(item).totalSize();
+    }
+}
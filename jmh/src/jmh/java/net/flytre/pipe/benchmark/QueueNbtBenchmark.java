@@ -0,0 +1,79 @@
+package net.flytre.pipe.benchmark;
+
+import net.flytre.pipe.pipe.PipeQueueFormat;
+import net.flytre.pipe.pipe.PipeResult;
+import net.flytre.pipe.pipe.TimedPipeResult;
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+import net.minecraft.item.Item;
+import net.minecraft.item.ItemStack;
+import net.minecraft.item.Items;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saving and loading the queue of a pipe with PipeQueueFormat. Items travel 32 pipes and are one of a few kinds of
+ * item, like a busy pipe in a sorting system. Only Minecraft's registries are set up, the game isn't started.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QueueNbtBenchmark {
+
+    private static final int PATH_LENGTH = 32;
+
+    @Param({"1", "16", "256"})
+    public int items;
+
+    private List<TimedPipeResult> queue;
+    private NbtCompound encoded;
+
+    @Setup
+    public void setup() {
+        SharedConstants.createGameVersion();
+        Bootstrap.initialize();
+
+        Item[] kinds = {Items.COBBLESTONE, Items.IRON_INGOT, Items.REDSTONE, Items.OAK_LOG};
+        queue = new ArrayList<>(items);
+        for (int i = 0; i < items; i++) {
+            LinkedList<BlockPos> path = new LinkedList<>();
+            for (int j = 0; j < PATH_LENGTH; j++)
+                path.add(new BlockPos(j, 64, i));
+            PipeResult result = new PipeResult(new BlockPos(PATH_LENGTH, 64, i), path, new ItemStack(kinds[i % kinds.length]), Direction.WEST, Direction.EAST);
+            queue.add(new TimedPipeResult(result, i % 20));
+        }
+        encoded = PipeQueueFormat.write(queue);
+    }
+
+    @Benchmark
+    public NbtCompound encode() {
+        return PipeQueueFormat.write(queue);
+    }
+
+    /**
+     * What's done on the server thread when a chunk is saved, the rest of the encoding is deferred
+     */
+    @Benchmark
+    public PipeQueueFormat.Snapshot snapshot() {
+        return PipeQueueFormat.snapshot(queue);
+    }
+
+    @Benchmark
+    public List<TimedPipeResult> decode() {
+        return PipeQueueFormat.read(encoded);
+    }
+}
@@ -0,0 +1,130 @@
+package net.flytre.pipe.benchmark;
+
+import net.flytre.pipe.pipe.PipeRoutingView;
+import net.flytre.pipe.routing.FlowIndex;
+import net.flytre.pipe.routing.InventoryCapacityView;
+import net.flytre.pipe.routing.Positions;
+import net.flytre.pipe.routing.Router;
+import net.flytre.pipe.routing.Sides;
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+import net.minecraft.inventory.SimpleInventory;
+import net.minecraft.item.Item;
+import net.minecraft.item.ItemStack;
+import net.minecraft.item.Items;
+import net.minecraft.util.math.Direction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The checks a route lookup does to make sure a destination has room for an item, counting the items already on
+ * their way there:
+ * <ul>
+ *     <li>buildFlowIndex - counting the items flowing through a network into a FlowIndex, which every lookup that
+ *     checks for room does once (see PipeEntity#getFlows)</li>
+ *     <li>canInsertFirm - Router#canInsertFirm into a chest sized SimpleInventory, going through the same slot walk
+ *     PipeRoutingView does in game</li>
+ * </ul>
+ * Only Minecraft's registries are set up, the game isn't started.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ReservationBenchmark {
+
+    private static final long PIPE = Positions.pack(0, 64, 0);
+    private static final int EAST = 5;
+
+    @Param({"0", "16", "256", "4096"})
+    public int inFlight;
+
+    private long[] destinations;
+
+    @Setup
+    public void setup() {
+        destinations = new long[inFlight];
+        for (int i = 0; i < inFlight; i++)
+            destinations[i] = Positions.pack(i % 64, 64, i / 64);
+    }
+
+    @Benchmark
+    public FlowIndex<Integer> buildFlowIndex() {
+        FlowIndex<Integer> flows = new FlowIndex<>();
+        for (int i = 0; i < destinations.length; i++)
+            flows.add(i & 7, destinations[i]);
+        return flows;
+    }
+
+    @Benchmark
+    public boolean canInsertFirm(Destination destination) {
+        return destination.router.canInsertFirm(destination.stack, PIPE, EAST, false);
+    }
+
+    /**
+     * The inventory east of the pipe, with inFlight cobblestone already on its way to it
+     * <ul>
+     *     <li>empty - every slot is empty</li>
+     *     <li>last - every slot but the last holds another item, so every slot is looked at</li>
+     *     <li>full - every slot holds another item, so there's no room</li>
+     * </ul>
+     */
+    @State(Scope.Benchmark)
+    public static class Destination {
+
+        private static final Item[] OTHERS = {Items.DIRT, Items.IRON_INGOT, Items.REDSTONE, Items.OAK_LOG};
+
+        @Param({"empty", "last", "full"})
+        public String contents;
+
+        private Router<ItemStack> router;
+        private ItemStack stack;
+
+        @Setup
+        public void setup(ReservationBenchmark benchmark) {
+            SharedConstants.createGameVersion();
+            Bootstrap.initialize();
+
+            SimpleInventory inventory = new SimpleInventory(27);
+            int filled = switch (contents) {
+                case "empty" -> 0;
+                case "last" -> inventory.size() - 1;
+                case "full" -> inventory.size();
+                default -> throw new IllegalArgumentException("Unknown contents " + contents);
+            };
+            for (int i = 0; i < filled; i++)
+                inventory.setStack(i, new ItemStack(OTHERS[i % OTHERS.length], 32));
+
+            stack = new ItemStack(Items.COBBLESTONE);
+            long destination = Positions.offset(PIPE, EAST);
+            FlowIndex<Item> flows = new FlowIndex<>();
+            for (int i = 0; i < benchmark.inFlight; i++)
+                flows.add(Items.COBBLESTONE, destination);
+
+            InventoryCapacityView<ItemStack> view = new InventoryCapacityView<>() {
+                @Override
+                public boolean hasInventory(long pipe, int direction) {
+                    return pipe == PIPE && direction == EAST;
+                }
+
+                @Override
+                public boolean canInsert(ItemStack stack, int count, long pipe, int direction) {
+                    return hasInventory(pipe, direction) && PipeRoutingView.hasRoom(inventory, stack, count, Direction.byId(direction).getOpposite());
+                }
+
+                @Override
+                public int getInFlight(ItemStack stack, long destination) {
+                    return flows.count(stack.getItem(), destination);
+                }
+            };
+            router = new Router<>(pos -> Sides.ABSENT, view, (pipe, stack) -> true);
+        }
+    }
+}
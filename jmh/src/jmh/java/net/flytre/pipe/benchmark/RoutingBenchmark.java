@@ -0,0 +1,70 @@
+package net.flytre.pipe.benchmark;
+
+import net.flytre.pipe.routing.Route;
+import net.flytre.pipe.routing.Router;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Route lookups over the synthetic networks. A cold lookup searches the network, which is what happens on a cache miss.
+ * A warm lookup finds the route in a cache and validates it, the way PipeEntity does on a hit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RoutingBenchmark {
+
+    @Param({"line", "grid", "tree", "sorter"})
+    public String topology;
+
+    @Param({"1000", "10000", "50000"})
+    public int pipes;
+
+    private SyntheticNetwork network;
+    private Router<Integer> router;
+    private Map<Integer, List<Route>> cache;
+
+    @Setup
+    public void setup() {
+        network = SyntheticNetwork.create(topology, pipes);
+        router = network.router();
+        List<Route> routes = router.findDestinations(network.origin, network.item, network.source, true, false);
+        if (routes.isEmpty())
+            throw new IllegalStateException("No route through the " + topology + " network");
+        cache = new HashMap<>();
+        cache.put(network.item, routes);
+    }
+
+    @Benchmark
+    public List<Route> routeCold() {
+        return router.findDestinations(network.origin, network.item, network.source, true, false);
+    }
+
+    /**
+     * Finds every destination, as round-robin mode does
+     */
+    @Benchmark
+    public List<Route> routeColdAll() {
+        return router.findDestinations(network.origin, network.item, network.source, false, false);
+    }
+
+    @Benchmark
+    public boolean routeWarm() {
+        List<Route> routes = cache.get(network.item);
+        for (Route route : routes)
+            if (!router.validate(network.item, network.source, route))
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,175 @@
+package net.flytre.pipe.benchmark;
+
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import net.flytre.pipe.routing.FilterPredicate;
+import net.flytre.pipe.routing.FlowIndex;
+import net.flytre.pipe.routing.InventoryCapacityView;
+import net.flytre.pipe.routing.Positions;
+import net.flytre.pipe.routing.Router;
+import net.flytre.pipe.routing.Sides;
+import net.flytre.pipe.routing.TopologyView;
+
+/**
+ * A made up pipe network for benchmarks. Pipes, the free space of inventories and the filters of servos are all kept in
+ * maps, and items are just ints. Every network has a source inventory with a servo pipe next to it, and is laid out so
+ * the route found from there has to cross most of the network.
+ * <ul>
+ *     <li>line - a single straight line of pipes with the destination at the far end</li>
+ *     <li>grid - a square of pipes all connected to each other, with the destination at the opposite corner</li>
+ *     <li>tree - a trunk with a branch of 16 pipes to either side of every other pipe, with the destination at the end of the last branch</li>
+ *     <li>sorter - a trunk with a filtered servo every other pipe, each leading to its own destination. The item routed only
+ *     passes the last filter.</li>
+ * </ul>
+ */
+public final class SyntheticNetwork implements TopologyView, InventoryCapacityView<Integer>, FilterPredicate<Integer> {
+
+    private static final int Y = 64;
+    private static final int BRANCH = 16;
+    private static final int SORTER_BRANCH = 4;
+    private static final int WEST = 4;
+    private static final int NORTH = 2;
+
+    private final Long2IntOpenHashMap pipes = new Long2IntOpenHashMap();
+    private final Long2IntOpenHashMap inventories = new Long2IntOpenHashMap();
+    private final Long2IntOpenHashMap filters = new Long2IntOpenHashMap();
+    private final FlowIndex<Integer> flows = new FlowIndex<>();
+
+    /**
+     * Where items are extracted from, the pipe next to it and the item that's routed
+     */
+    public final long source;
+    public final long origin;
+    public final Integer item;
+
+    private SyntheticNetwork(long source, long origin, int item) {
+        this.source = source;
+        this.origin = origin;
+        this.item = item;
+        pipes.defaultReturnValue(Sides.ABSENT);
+    }
+
+    public static SyntheticNetwork create(String topology, int size) {
+        return switch (topology) {
+            case "line" -> line(size);
+            case "grid" -> grid(size);
+            case "tree" -> tree(size);
+            case "sorter" -> sorter(size);
+            default -> throw new IllegalArgumentException("Unknown topology " + topology);
+        };
+    }
+
+    public static SyntheticNetwork line(int size) {
+        SyntheticNetwork network = new SyntheticNetwork(Positions.pack(-1, Y, 0), Positions.pack(0, Y, 0), 0);
+        for (int x = 0; x < size; x++)
+            network.pipes.put(Positions.pack(x, Y, 0), 0);
+        network.inventories.put(Positions.pack(size, Y, 0), 64);
+        return network.connect();
+    }
+
+    public static SyntheticNetwork grid(int size) {
+        int side = (int) Math.ceil(Math.sqrt(size));
+        SyntheticNetwork network = new SyntheticNetwork(Positions.pack(-1, Y, 0), Positions.pack(0, Y, 0), 0);
+        for (int x = 0; x < side; x++)
+            for (int z = 0; z < side; z++)
+                network.pipes.put(Positions.pack(x, Y, z), 0);
+        network.inventories.put(Positions.pack(side, Y, side - 1), 64);
+        return network.connect();
+    }
+
+    public static SyntheticNetwork tree(int size) {
+        //Branches only come off every other trunk pipe, so neighbouring branches don't touch and connect to each other
+        int trunk = Math.max(2, size / (BRANCH + 1));
+        SyntheticNetwork network = new SyntheticNetwork(Positions.pack(-1, Y, 0), Positions.pack(0, Y, 0), 0);
+        int last = 0;
+        for (int x = 0; x < trunk; x++) {
+            network.pipes.put(Positions.pack(x, Y, 0), 0);
+            if (x % 2 == 0) {
+                for (int z = 1; z <= BRANCH; z++) {
+                    network.pipes.put(Positions.pack(x, Y, z), 0);
+                    network.pipes.put(Positions.pack(x, Y, -z), 0);
+                }
+                last = x;
+            }
+        }
+        network.inventories.put(Positions.pack(last, Y, BRANCH + 1), 64);
+        return network.connect();
+    }
+
+    public static SyntheticNetwork sorter(int size) {
+        int servos = Math.max(1, size / (SORTER_BRANCH + 2));
+        SyntheticNetwork network = new SyntheticNetwork(Positions.pack(-1, Y, 0), Positions.pack(0, Y, 0), servos - 1);
+        for (int i = 0; i < servos; i++) {
+            int x = i * 2;
+            network.pipes.put(Positions.pack(x, Y, 0), 0);
+            network.pipes.put(Positions.pack(x + 1, Y, 0), 0);
+            for (int z = 1; z <= SORTER_BRANCH; z++)
+                network.pipes.put(Positions.pack(x, Y, z), 0);
+            network.inventories.put(Positions.pack(x, Y, SORTER_BRANCH + 1), 64);
+        }
+        network.connect();
+        for (int i = 0; i < servos; i++) {
+            long servo = Positions.pack(i * 2, Y, 1);
+            network.setSide(servo, NORTH, Sides.SERVO);
+            network.filters.put(servo, i);
+        }
+        return network;
+    }
+
+    /**
+     * Connects every pipe to the pipes and inventories next to it, and puts a servo on the origin facing the source
+     */
+    private SyntheticNetwork connect() {
+        inventories.put(source, 0);
+        for (Long2IntMap.Entry entry : pipes.long2IntEntrySet()) {
+            long pos = entry.getLongKey();
+            int sides = 0;
+            for (int d = 0; d < Positions.DIRECTIONS; d++) {
+                long next = Positions.offset(pos, d);
+                if (pipes.containsKey(next) || inventories.containsKey(next))
+                    sides |= Sides.CONNECTED << (d << 1);
+            }
+            entry.setValue(sides);
+        }
+        setSide(origin, WEST, Sides.SERVO);
+        return this;
+    }
+
+    private void setSide(long pipe, int direction, int state) {
+        int sides = pipes.get(pipe) & ~(3 << (direction << 1));
+        pipes.put(pipe, sides | state << (direction << 1));
+    }
+
+    public Router<Integer> router() {
+        return new Router<>(this, this, this);
+    }
+
+    public int getPipeCount() {
+        return pipes.size();
+    }
+
+    @Override
+    public int getSides(long pos) {
+        return pipes.get(pos);
+    }
+
+    @Override
+    public boolean test(long pipe, Integer stack) {
+        return !filters.containsKey(pipe) || filters.get(pipe) == stack;
+    }
+
+    @Override
+    public boolean hasInventory(long pipe, int direction) {
+        return inventories.containsKey(Positions.offset(pipe, direction));
+    }
+
+    @Override
+    public boolean canInsert(Integer stack, int count, long pipe, int direction) {
+        return inventories.getOrDefault(Positions.offset(pipe, direction), 0) >= count;
+    }
+
+    @Override
+    public int getInFlight(Integer stack, long destination) {
+        return flows.count(stack, destination);
+    }
+}
@@ -0,0 +1,104 @@
+package net.flytre.pipe.benchmark;
+
+import net.flytre.pipe.pipe.PipeResult;
+import net.flytre.pipe.pipe.PipeTransit;
+import net.flytre.pipe.pipe.TimedPipeResult;
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+import net.minecraft.item.ItemStack;
+import net.minecraft.item.Items;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+import org.jetbrains.annotations.Nullable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One server tick of items travelling down a line of pipes, through PipeTransit like PipeEntity#tickQueuedItems. Moving
+ * an item into the next pipe and delivering it need the world, so those are done here the way PipeEntity does them:
+ * an item through a pipe is added to the queue of the next one, and a delivered item starts over from the first pipe
+ * as a new item, so the number in flight stays the same. Only Minecraft's registries are set up, the game isn't started.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TransitBenchmark {
+
+    private static final int TICKS_PER_OPERATION = 20;
+    private static final int PIPES = 64;
+
+    @Param({"100", "1000", "10000"})
+    public int items;
+
+    private BlockPos[] pipes;
+    private Map<BlockPos, Set<TimedPipeResult>> queues;
+    private BlockPos destination;
+    private ItemStack stack;
+    private int delivered;
+
+    @Setup
+    public void setup() {
+        SharedConstants.createGameVersion();
+        Bootstrap.initialize();
+
+        stack = new ItemStack(Items.COBBLESTONE);
+        pipes = new BlockPos[PIPES];
+        for (int i = 0; i < PIPES; i++)
+            pipes[i] = new BlockPos(i, 64, 0);
+        destination = new BlockPos(PIPES, 64, 0);
+    }
+
+    /**
+     * Spreads the items out along the line
+     */
+    @Setup(Level.Iteration)
+    public void spread() {
+        queues = new HashMap<>();
+        for (BlockPos pipe : pipes)
+            queues.put(pipe, new HashSet<>());
+        for (int i = 0; i < items; i++) {
+            int at = i % PIPES;
+            queues.get(pipes[at]).add(new TimedPipeResult(result(at), 1 + i % TICKS_PER_OPERATION));
+        }
+    }
+
+    private PipeResult result(int from) {
+        LinkedList<BlockPos> path = new LinkedList<>(List.of(pipes).subList(from, PIPES));
+        return new PipeResult(destination, path, stack, Direction.WEST, Direction.EAST);
+    }
+
+    @Benchmark
+    public int tick() {
+        delivered = 0;
+        for (BlockPos pipe : pipes)
+            PipeTransit.tick(queues.get(pipe), pipe, this::throughPipe);
+        return delivered;
+    }
+
+    private void throughPipe(TimedPipeResult timed, @Nullable BlockPos next, Set<TimedPipeResult> toRemove, Set<TimedPipeResult> toAdd) {
+        if (next != null) {
+            timed.setStuck(false);
+            timed.setTime(TICKS_PER_OPERATION);
+            queues.get(next).add(timed);
+        } else {
+            delivered++;
+            queues.get(pipes[0]).add(new TimedPipeResult(result(0), TICKS_PER_OPERATION * 3 / 2));
+        }
+        toRemove.add(timed);
+    }
+}
@@ -0,0 +1,12 @@
+package net.flytre.pipe.routing;
+
+/**
+ * Whether the filter of a pipe with a servo lets a stack through
+ *
+ * @param <S> the type of item stack being routed
+ */
+@FunctionalInterface
+public interface FilterPredicate<S> {
+
+    boolean test(long pipe, S stack);
+}
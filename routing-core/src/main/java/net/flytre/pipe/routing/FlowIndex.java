@@ -0,0 +1,30 @@
+package net.flytre.pipe.routing;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts the items travelling through a network by kind and destination, so a destination that's about to be filled by
+ * items already on their way isn't picked again.
+ *
+ * @param <K> identifies a kind of item, items that are equal are counted together
+ */
+public final class FlowIndex<K> {
+
+    private final Map<K, Long2IntOpenHashMap> flows = new HashMap<>();
+
+    public void add(K key, long destination) {
+        flows.computeIfAbsent(key, k -> new Long2IntOpenHashMap()).addTo(destination, 1);
+    }
+
+    public int count(K key, long destination) {
+        Long2IntOpenHashMap destinations = flows.get(key);
+        return destinations == null ? 0 : destinations.get(destination);
+    }
+
+    public boolean isEmpty() {
+        return flows.isEmpty();
+    }
+}
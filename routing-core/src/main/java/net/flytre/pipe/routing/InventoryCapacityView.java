@@ -0,0 +1,25 @@
+package net.flytre.pipe.routing;
+
+/**
+ * The inventories next to pipes, and how much more they can take
+ *
+ * @param <S> the type of item stack being routed
+ */
+public interface InventoryCapacityView<S> {
+
+    /**
+     * Whether there's an inventory next to the given side of a pipe
+     */
+    boolean hasInventory(long pipe, int direction);
+
+    /**
+     * Whether the inventory next to the given side of a pipe could take this many of the stack at once, inserted from
+     * the pipe's side. Must be false if there's no inventory there.
+     */
+    boolean canInsert(S stack, int count, long pipe, int direction);
+
+    /**
+     * How many items like the stack are already travelling through the network to a destination
+     */
+    int getInFlight(S stack, long destination);
+}
@@ -0,0 +1,61 @@
+package net.flytre.pipe.routing;
+
+/**
+ * Works with positions packed into longs the same way Minecraft's BlockPos#asLong does, and with directions by the
+ * ids Minecraft gives them: 0 down, 1 up, 2 north, 3 south, 4 west and 5 east.
+ */
+public final class Positions {
+
+    public static final int DIRECTIONS = 6;
+
+    private static final int BITS_X = 26;
+    private static final int BITS_Z = 26;
+    private static final int BITS_Y = 64 - BITS_X - BITS_Z;
+    private static final long MASK_X = (1L << BITS_X) - 1;
+    private static final long MASK_Y = (1L << BITS_Y) - 1;
+    private static final long MASK_Z = (1L << BITS_Z) - 1;
+    private static final int SHIFT_Z = BITS_Y;
+    private static final int SHIFT_X = BITS_Y + BITS_Z;
+
+    private static final int[] OFFSET_X = {0, 0, 0, 0, -1, 1};
+    private static final int[] OFFSET_Y = {-1, 1, 0, 0, 0, 0};
+    private static final int[] OFFSET_Z = {0, 0, -1, 1, 0, 0};
+
+    private Positions() {
+    }
+
+    public static long pack(int x, int y, int z) {
+        return ((long) x & MASK_X) << SHIFT_X | ((long) y & MASK_Y) | ((long) z & MASK_Z) << SHIFT_Z;
+    }
+
+    public static int getX(long pos) {
+        return (int) (pos << 64 - SHIFT_X - BITS_X >> 64 - BITS_X);
+    }
+
+    public static int getY(long pos) {
+        return (int) (pos << 64 - BITS_Y >> 64 - BITS_Y);
+    }
+
+    public static int getZ(long pos) {
+        return (int) (pos << 64 - SHIFT_Z - BITS_Z >> 64 - BITS_Z);
+    }
+
+    public static long offset(long pos, int direction) {
+        return pack(getX(pos) + OFFSET_X[direction], getY(pos) + OFFSET_Y[direction], getZ(pos) + OFFSET_Z[direction]);
+    }
+
+    public static int opposite(int direction) {
+        return direction ^ 1;
+    }
+
+    /**
+     * @return the direction to go from one position to reach an adjacent one, or -1 if they aren't adjacent
+     */
+    public static int direction(long from, long to) {
+        int dx = getX(to) - getX(from), dy = getY(to) - getY(from), dz = getZ(to) - getZ(from);
+        for (int direction = 0; direction < DIRECTIONS; direction++)
+            if (OFFSET_X[direction] == dx && OFFSET_Y[direction] == dy && OFFSET_Z[direction] == dz)
+                return direction;
+        return -1;
+    }
+}
@@ -0,0 +1,12 @@
+package net.flytre.pipe.routing;
+
+/**
+ * A way for an item to reach a destination inventory
+ *
+ * @param destination the inventory the item ends up in
+ * @param path        the pipes the item passes through, starting with the one it was routed from
+ * @param side        the side of the destination the item is inserted through
+ */
+public record Route(long destination, long[] path, int side) {
+
+}
@@ -0,0 +1,173 @@
+package net.flytre.pipe.routing;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ByteOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds where items can go in a pipe network and checks whether routes found earlier still work. It only sees the
+ * world through its views, so it doesn't care whether they're backed by a running game or something made up.
+ *
+ * @param <S> the type of item stack being routed
+ */
+public final class Router<S> {
+
+    private final TopologyView topology;
+    private final InventoryCapacityView<S> inventories;
+    private final FilterPredicate<S> filter;
+
+    /**
+     * How many pipes the last search expanded
+     */
+    private int lastNodes;
+
+    public Router(TopologyView topology, InventoryCapacityView<S> inventories, FilterPredicate<S> filter) {
+        this.topology = topology;
+        this.inventories = inventories;
+        this.filter = filter;
+    }
+
+    public int getLastNodes() {
+        return lastNodes;
+    }
+
+    /**
+     * Performs a BFS search through the network starting at a pipe. With one=true it returns the nearest destination
+     * the stack can be inserted into. With one=false, used for round-robin mode, it returns every destination
+     * regardless of whether the stack fits, sorted from nearest to furthest.
+     *
+     * @param origin the pipe to search from
+     * @param start  where the item came from, which it shouldn't be sent back to
+     * @param stuck  whether the item is stuck, in which case items already flowing to a destination are ignored
+     */
+    public List<Route> findDestinations(long origin, S stack, long start, boolean one, boolean stuck) {
+        List<Route> result = new ArrayList<>();
+        int originSides = topology.getSides(origin);
+        if (originSides == Sides.ABSENT) {
+            lastNodes = 0;
+            return result;
+        }
+
+        //The BFS queue is stored as parallel arrays of pipes, their sides and the index of the pipe they were reached from,
+        //so expanding a pipe doesn't allocate or look it up again. Paths are only built for the routes returned.
+        LongArrayList pipes = new LongArrayList();
+        IntArrayList pipeSides = new IntArrayList();
+        IntArrayList parents = new IntArrayList();
+        LongOpenHashSet visited = new LongOpenHashSet();
+        Long2ByteOpenHashMap inventorySides = new Long2ByteOpenHashMap(); //bitmask of the sides each inventory was reached from
+
+        pipes.add(origin);
+        pipeSides.add(originSides);
+        parents.add(-1);
+        visited.add(origin);
+
+        for (int head = 0; head < pipes.size(); head++) {
+            long current = pipes.getLong(head);
+            int sides = pipeSides.getInt(head);
+
+            for (int d = 0; d < Positions.DIRECTIONS; d++) {
+                if (Sides.get(sides, d) != Sides.CONNECTED)
+                    continue;
+
+                long next = Positions.offset(current, d);
+                int nextSides = topology.getSides(next);
+                if (nextSides != Sides.ABSENT) { //If connected to another pipe
+                    if (canEnter(stack, next, nextSides, Positions.opposite(d)) && visited.add(next)) {
+                        pipes.add(next);
+                        pipeSides.add(nextSides);
+                        parents.add(head);
+                    }
+                    continue;
+                }
+
+                if (next == start || !inventories.hasInventory(current, d))
+                    continue;
+
+                //Inventories can be reached from several sides, and in round-robin mode every side should be hit
+                int side = Positions.opposite(d);
+                byte sideBit = (byte) (1 << side);
+                byte reached = inventorySides.get(next);
+                if ((reached & sideBit) != 0)
+                    continue;
+
+                if (one && !canInsertFirm(stack, current, d, stuck)) //If the stack can't be inserted into that inventory
+                    continue;
+
+                inventorySides.put(next, (byte) (reached | sideBit));
+                result.add(new Route(next, buildPath(pipes, parents, head), side));
+                if (one) {
+                    lastNodes = head + 1;
+                    return result;
+                }
+            }
+        }
+
+        lastNodes = pipes.size();
+        return result;
+    }
+
+    private static long[] buildPath(LongArrayList pipes, IntArrayList parents, int head) {
+        int length = 0;
+        for (int i = head; i != -1; i = parents.getInt(i))
+            length++;
+        long[] path = new long[length];
+        for (int i = head; i != -1; i = parents.getInt(i))
+            path[--length] = pipes.getLong(i);
+        return path;
+    }
+
+    /**
+     * Whether an item can move into a pipe through the given side of it
+     */
+    private boolean canEnter(S stack, long pipe, int sides, int side) {
+        int state = Sides.get(sides, side);
+        return state == Sides.CONNECTED || (state == Sides.SERVO && filter.test(pipe, stack));
+    }
+
+    /**
+     * Checks if the stack can be inserted into the inventory next to a pipe. However, it also takes into consideration
+     * all other items flowing into the inventory from the network, and if those being inserted already would make it
+     * impossible for the stack to be inserted, returns false.
+     *
+     * @param stuck whether the item is stuck. If multiple items are stuck they would block EACH OTHER from finding a
+     *              valid destination, so items already flowing are ignored for them.
+     */
+    public boolean canInsertFirm(S stack, long pipe, int direction, boolean stuck) {
+        int flowing = stuck ? 0 : inventories.getInFlight(stack, Positions.offset(pipe, direction));
+        return inventories.canInsert(stack, flowing + 1, pipe, direction);
+    }
+
+    /**
+     * Checks that a route found earlier is still valid. It might not be if the destination is removed or becomes full, a
+     * filter along the way is changed so the item is no longer let through, a pipe along the route is removed, etc.
+     *
+     * @param start where the item is coming from, which may be a pipe or an inventory
+     */
+    public boolean validate(S stack, long start, Route route) {
+        long current = start;
+        int currentSides = topology.getSides(start);
+        for (long next : route.path()) {
+            if (next == start)
+                continue;
+
+            int direction = Positions.direction(current, next);
+            int nextSides = topology.getSides(next);
+            if (direction == -1 || nextSides == Sides.ABSENT)
+                return false;
+            if (currentSides != Sides.ABSENT && Sides.get(currentSides, direction) != Sides.CONNECTED)
+                return false;
+            if (!canEnter(stack, next, nextSides, Positions.opposite(direction)))
+                return false;
+
+            current = next;
+            currentSides = nextSides;
+        }
+
+        int direction = Positions.direction(current, route.destination());
+        return direction != -1 && canInsertFirm(stack, current, direction, false);
+    }
+}
@@ -0,0 +1,21 @@
+package net.flytre.pipe.routing;
+
+/**
+ * How each side of a pipe is connected, packed into an int with 2 bits per side indexed by direction id (see
+ * {@link Positions}). Pipes that aren't there are represented by {@link #ABSENT}.
+ */
+public final class Sides {
+
+    public static final int NONE = 0;
+    public static final int CONNECTED = 1;
+    public static final int SERVO = 2;
+
+    public static final int ABSENT = -1;
+
+    private Sides() {
+    }
+
+    public static int get(int sides, int direction) {
+        return (sides >> (direction << 1)) & 3;
+    }
+}
@@ -0,0 +1,14 @@
+package net.flytre.pipe.routing;
+
+/**
+ * The pipes the router can see
+ */
+@FunctionalInterface
+public interface TopologyView {
+
+    /**
+     * @return the packed sides of the pipe at a position (see {@link Sides}), or {@link Sides#ABSENT} if there's no
+     * pipe there
+     */
+    int getSides(long pos);
+}
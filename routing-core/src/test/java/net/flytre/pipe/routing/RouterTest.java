@@ -0,0 +1,200 @@
+package net.flytre.pipe.routing;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static net.flytre.pipe.routing.Sides.CONNECTED;
+import static net.flytre.pipe.routing.Sides.NONE;
+import static net.flytre.pipe.routing.Sides.SERVO;
+import static net.flytre.pipe.routing.TestNetwork.EAST;
+import static net.flytre.pipe.routing.TestNetwork.NORTH;
+import static net.flytre.pipe.routing.TestNetwork.SOUTH;
+import static net.flytre.pipe.routing.TestNetwork.WEST;
+import static net.flytre.pipe.routing.TestNetwork.pos;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Three pipes in a line going east, with an inventory north of the first one and another east of the last one. The first
+ * pipe has a servo on SOURCE, west of it:
+ * <pre>
+ *            NEAR
+ *     SOURCE P0   P1 P2 FAR
+ * </pre>
+ */
+class RouterTest {
+
+    private static final long P0 = pos(0, 64, 0);
+    private static final long P1 = pos(1, 64, 0);
+    private static final long P2 = pos(2, 64, 0);
+    private static final long NEAR = pos(0, 64, -1);
+    private static final long FAR = pos(3, 64, 0);
+    private static final long SOURCE = pos(-1, 64, 0);
+
+    private TestNetwork network;
+
+    @BeforeEach
+    void setUp() {
+        network = new TestNetwork()
+                .pipe(P0, NONE, NONE, CONNECTED, NONE, SERVO, CONNECTED)
+                .pipe(P1, NONE, NONE, NONE, NONE, CONNECTED, CONNECTED)
+                .pipe(P2, NONE, NONE, NONE, NONE, CONNECTED, CONNECTED)
+                .inventory(NEAR, 64)
+                .inventory(FAR, 64)
+                .inventory(SOURCE, 64)
+                //P0 pulls stone out of SOURCE through its servo
+                .allow(P0, "stone");
+    }
+
+    @Test
+    void oneFindsNearestDestination() {
+        List<Route> routes = network.router().findDestinations(P0, "stone", SOURCE, true, false);
+        assertEquals(1, routes.size());
+        assertEquals(NEAR, routes.get(0).destination());
+        assertArrayEquals(new long[]{P0}, routes.get(0).path());
+        assertEquals(SOUTH, routes.get(0).side());
+    }
+
+    @Test
+    void oneSkipsFullDestinations() {
+        network.inventory(NEAR, 0);
+        List<Route> routes = network.router().findDestinations(P0, "stone", SOURCE, true, false);
+        assertEquals(1, routes.size());
+        assertEquals(FAR, routes.get(0).destination());
+        assertArrayEquals(new long[]{P0, P1, P2}, routes.get(0).path());
+        assertEquals(WEST, routes.get(0).side());
+    }
+
+    @Test
+    void oneCountsItemsInFlightUnlessStuck() {
+        network.inventory(NEAR, 2).flowing("stone", NEAR, 2);
+        assertEquals(FAR, network.router().findDestinations(P0, "stone", SOURCE, true, false).get(0).destination());
+        assertEquals(NEAR, network.router().findDestinations(P0, "stone", SOURCE, true, true).get(0).destination());
+        //Other kinds of items flowing there don't count
+        assertEquals(NEAR, network.router().findDestinations(P0, "dirt", SOURCE, true, false).get(0).destination());
+    }
+
+    @Test
+    void allFindsEveryDestinationNearestFirst() {
+        network.inventory(NEAR, 0);
+        List<Route> routes = network.router().findDestinations(P0, "stone", SOURCE, false, false);
+        assertEquals(2, routes.size());
+        assertEquals(NEAR, routes.get(0).destination());
+        assertEquals(FAR, routes.get(1).destination());
+    }
+
+    @Test
+    void allHitsEverySideOfAnInventory() {
+        //A pipe south of FAR reaches it from a second side
+        long p3 = pos(2, 64, 1);
+        long p4 = pos(3, 64, 1);
+        network.side(P2, SOUTH, CONNECTED)
+                .pipe(p3, NONE, NONE, CONNECTED, NONE, NONE, CONNECTED)
+                .pipe(p4, NONE, NONE, CONNECTED, NONE, CONNECTED, NONE);
+        List<Route> routes = network.router().findDestinations(P0, "stone", SOURCE, false, false);
+        assertEquals(3, routes.size());
+        assertEquals(FAR, routes.get(1).destination());
+        assertEquals(WEST, routes.get(1).side());
+        assertEquals(FAR, routes.get(2).destination());
+        assertEquals(SOUTH, routes.get(2).side());
+    }
+
+    @Test
+    void doesNotSendItemsBackWhereTheyCameFrom() {
+        List<Route> routes = network.router().findDestinations(P0, "stone", NEAR, false, false);
+        assertEquals(1, routes.size());
+        assertEquals(FAR, routes.get(0).destination());
+    }
+
+    @Test
+    void servoSidesAreNotDestinations() {
+        //SOURCE is west of P0, where the servo is
+        for (Route route : network.router().findDestinations(P0, "stone", NEAR, false, false))
+            assertTrue(route.destination() != SOURCE);
+    }
+
+    @Test
+    void servosFilterItemsEnteringThePipe() {
+        network.inventory(NEAR, 0).side(P2, WEST, SERVO);
+        assertTrue(network.router().findDestinations(P0, "stone", SOURCE, true, false).isEmpty());
+        assertTrue(network.router().findDestinations(P0, "stone", SOURCE, false, false).stream().noneMatch(route -> route.destination() == FAR));
+
+        network.allow(P2, "stone");
+        assertEquals(FAR, network.router().findDestinations(P0, "stone", SOURCE, true, false).get(0).destination());
+        assertTrue(network.router().findDestinations(P0, "dirt", SOURCE, true, false).isEmpty());
+    }
+
+    @Test
+    void missingOriginFindsNothing() {
+        Router<String> router = network.router();
+        assertTrue(router.findDestinations(pos(10, 64, 10), "stone", SOURCE, false, false).isEmpty());
+        assertEquals(0, router.getLastNodes());
+    }
+
+    @Test
+    void validateAcceptsUnchangedRoute() {
+        Route route = farRoute();
+        assertTrue(network.router().validate("stone", SOURCE, route));
+        assertTrue(network.router().validate("stone", P0, route));
+    }
+
+    @Test
+    void validateRejectsRemovedPipe() {
+        Route route = farRoute();
+        network.removePipe(P1);
+        assertFalse(network.router().validate("stone", SOURCE, route));
+    }
+
+    @Test
+    void validateRejectsDisconnectedSide() {
+        Route route = farRoute();
+        network.side(P1, EAST, NONE);
+        assertFalse(network.router().validate("stone", SOURCE, route));
+    }
+
+    @Test
+    void validateRejectsFilteredServo() {
+        Route route = farRoute();
+        network.side(P1, WEST, SERVO);
+        assertFalse(network.router().validate("stone", SOURCE, route));
+        network.allow(P1, "stone");
+        assertTrue(network.router().validate("stone", SOURCE, route));
+    }
+
+    @Test
+    void validateRejectsFullDestination() {
+        Route route = farRoute();
+        network.inventory(FAR, 1).flowing("stone", FAR, 1);
+        assertFalse(network.router().validate("stone", SOURCE, route));
+    }
+
+    @Test
+    void validateRejectsPathThatJumps() {
+        assertFalse(network.router().validate("stone", SOURCE, new Route(FAR, new long[]{P0, P2}, WEST)));
+    }
+
+    @Test
+    void canInsertFirmCountsItemsInFlight() {
+        Router<String> router = network.router();
+        network.inventory(FAR, 3);
+        assertTrue(router.canInsertFirm("stone", P2, EAST, false));
+        network.flowing("stone", FAR, 2);
+        assertTrue(router.canInsertFirm("stone", P2, EAST, false));
+        network.flowing("stone", FAR, 3);
+        assertFalse(router.canInsertFirm("stone", P2, EAST, false));
+        assertTrue(router.canInsertFirm("stone", P2, EAST, true));
+        assertFalse(router.canInsertFirm("stone", P2, NORTH, true));
+    }
+
+    private Route farRoute() {
+        network.inventory(NEAR, 0);
+        Route route = network.router().findDestinations(P0, "stone", SOURCE, true, false).get(0);
+        network.inventory(NEAR, 64);
+        assertEquals(FAR, route.destination());
+        return route;
+    }
+}
@@ -0,0 +1,99 @@
+package net.flytre.pipe.routing;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A small made up network for the router tests. Inventories hold a number of items of any kind, and pipes with a
+ * servo only let through the stacks that were allowed for them.
+ */
+final class TestNetwork implements TopologyView, InventoryCapacityView<String> {
+
+    static final int DOWN = 0, UP = 1, NORTH = 2, SOUTH = 3, WEST = 4, EAST = 5;
+
+    private final Long2IntOpenHashMap pipes = new Long2IntOpenHashMap();
+    private final Long2IntOpenHashMap space = new Long2IntOpenHashMap();
+    private final Map<String, Long2IntOpenHashMap> inFlight = new HashMap<>();
+    private final Map<Long, Set<String>> allowed = new HashMap<>();
+
+    TestNetwork() {
+        pipes.defaultReturnValue(Sides.ABSENT);
+    }
+
+    static long pos(int x, int y, int z) {
+        return Positions.pack(x, y, z);
+    }
+
+    /**
+     * Adds a pipe, with the given state on each side in direction id order
+     */
+    TestNetwork pipe(long pos, int... sides) {
+        int packed = 0;
+        for (int d = 0; d < sides.length; d++)
+            packed |= sides[d] << (d << 1);
+        pipes.put(pos, packed);
+        return this;
+    }
+
+    /**
+     * Sets one side of a pipe that was already added
+     */
+    TestNetwork side(long pos, int direction, int state) {
+        int sides = pipes.get(pos);
+        pipes.put(pos, sides & ~(3 << (direction << 1)) | state << (direction << 1));
+        return this;
+    }
+
+    TestNetwork removePipe(long pos) {
+        pipes.remove(pos);
+        return this;
+    }
+
+    TestNetwork inventory(long pos, int space) {
+        this.space.put(pos, space);
+        return this;
+    }
+
+    TestNetwork flowing(String stack, long destination, int count) {
+        inFlight.computeIfAbsent(stack, k -> new Long2IntOpenHashMap()).put(destination, count);
+        return this;
+    }
+
+    /**
+     * Lets a stack through the servo of a pipe, which otherwise lets nothing through
+     */
+    TestNetwork allow(long pipe, String stack) {
+        allowed.computeIfAbsent(pipe, k -> new HashSet<>()).add(stack);
+        return this;
+    }
+
+    Router<String> router() {
+        return new Router<>(this, this, (pipe, stack) -> allowed.getOrDefault(pipe, Set.of()).contains(stack));
+    }
+
+    @Override
+    public int getSides(long pos) {
+        return pipes.get(pos);
+    }
+
+    @Override
+    public boolean hasInventory(long pipe, int direction) {
+        return space.containsKey(Positions.offset(pipe, direction));
+    }
+
+    @Override
+    public boolean canInsert(String stack, int count, long pipe, int direction) {
+        long destination = Positions.offset(pipe, direction);
+        return space.containsKey(destination) && space.get(destination) >= count;
+    }
+
+    @Override
+    public int getInFlight(String stack, long destination) {
+        Long2IntOpenHashMap flows = inFlight.get(stack);
+        return flows == null ? 0 : flows.get(destination);
+    }
+}
@@ -0,0 +1,177 @@
+package net.flytre.pipe.simulator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A network to simulate: the commands that build it (see SimWorld) and the events to replay on top of it, each a
+ * command prefixed with the tick it happens on. Specs are plain text with one command per line, either written by hand,
+ * generated, or recorded from a running server by /pipe trace. Blank lines and lines starting with # are ignored.
+ * <pre>
+ * inventory -1 64 0 creative minecraft:cobblestone=64
+ * pipe 0 64 0 servo=west
+ * generate grid 1000
+ * &#64;200 break 5 64 3
+ * &#64;400 filter 0 64 0 whitelist minecraft:stone
+ * </pre>
+ * <p>
+ * A generate line adds one of the made up networks below, with its source next to 0 64 0:
+ * <ul>
+ *     <li>line - a straight line of pipes from a creative source to a void at the far end</li>
+ *     <li>grid - a square of pipes all connected to each other, with the void at the opposite corner</li>
+ *     <li>tree - a trunk with a branch of 16 pipes to either side of every other pipe and a void at the end of each
+ *     branch, fed by a round-robin servo</li>
+ *     <li>sorter - a trunk with a filtered servo every other pipe, each leading to its own void, fed from a chest
+ *     holding a stack of every item the filters let through</li>
+ * </ul>
+ */
+public final class NetworkSpec {
+
+    private static final int Y = 64;
+    private static final int BRANCH = 16;
+    private static final int SORTER_BRANCH = 4;
+
+    private final List<String[]> commands = new ArrayList<>();
+    private final List<Event> events = new ArrayList<>();
+
+    /**
+     * A command replayed on the given tick of the simulation
+     */
+    record Event(long tick, String[] command) {
+    }
+
+    public static NetworkSpec parse(Reader reader) throws IOException {
+        NetworkSpec spec = new NetworkSpec();
+        BufferedReader lines = new BufferedReader(reader);
+        int number = 0;
+        for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+            number++;
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] tokens = line.split("\\s+");
+            try {
+                if (tokens[0].startsWith("@")) {
+                    String[] command = new String[tokens.length - 1];
+                    System.arraycopy(tokens, 1, command, 0, command.length);
+                    spec.events.add(new Event(Long.parseLong(tokens[0].substring(1)), command));
+                } else if (tokens[0].equals("generate")) {
+                    spec.generate(tokens[1], Integer.parseInt(tokens[2]));
+                } else {
+                    spec.commands.add(tokens);
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid spec on line " + number + ": " + line, e);
+            }
+        }
+        //Stable, so events on the same tick happen in the order they were recorded
+        spec.events.sort(Comparator.comparingLong(Event::tick));
+        return spec;
+    }
+
+    public static NetworkSpec generated(String topology, int size) {
+        NetworkSpec spec = new NetworkSpec();
+        spec.generate(topology, size);
+        return spec;
+    }
+
+    /**
+     * Builds a fresh world from the spec. Every run gets its own, since running a simulation changes it.
+     */
+    SimWorld build() {
+        SimWorld world = new SimWorld();
+        for (String[] command : commands)
+            world.apply(command);
+        return world;
+    }
+
+    List<Event> events() {
+        return events;
+    }
+
+    /**
+     * The tick of the last event, or 0 if there are none
+     */
+    public long lastEventTick() {
+        return events.isEmpty() ? 0 : events.get(events.size() - 1).tick();
+    }
+
+    private void generate(String topology, int size) {
+        switch (topology) {
+            case "line" -> {
+                source("creative minecraft:cobblestone=64");
+                for (int x = 1; x < size; x++)
+                    add("pipe", x, Y, 0);
+                add("inventory", size, Y, 0, "void");
+            }
+            case "grid" -> {
+                int side = (int) Math.ceil(Math.sqrt(size));
+                source("creative minecraft:cobblestone=64");
+                for (int x = 0; x < side; x++)
+                    for (int z = 0; z < side; z++)
+                        if (x != 0 || z != 0)
+                            add("pipe", x, Y, z);
+                add("inventory", side, Y, side - 1, "void");
+            }
+            case "tree" -> {
+                //Branches only come off every other trunk pipe, so neighbouring branches don't touch and connect to each other
+                int trunk = Math.max(2, size / (BRANCH + 1));
+                commands.add(new String[]{"inventory", "-1", String.valueOf(Y), "0", "creative", "minecraft:cobblestone=64"});
+                commands.add(new String[]{"pipe", "0", String.valueOf(Y), "0", "servo=west", "round_robin"});
+                for (int x = 0; x < trunk; x++) {
+                    if (x > 0)
+                        add("pipe", x, Y, 0);
+                    if (x % 2 == 0) {
+                        for (int z = 1; z <= BRANCH; z++) {
+                            add("pipe", x, Y, z);
+                            add("pipe", x, Y, -z);
+                        }
+                        add("inventory", x, Y, BRANCH + 1, "void");
+                        add("inventory", x, Y, -BRANCH - 1, "void");
+                    }
+                }
+            }
+            case "sorter" -> {
+                int servos = Math.max(1, size / (SORTER_BRANCH + 2));
+                StringBuilder contents = new StringBuilder("slots=" + servos);
+                for (int i = 0; i < servos; i++)
+                    contents.append(" sim:item_").append(i).append("=64");
+                source(contents.toString());
+                for (int i = 0; i < servos; i++) {
+                    int x = i * 2;
+                    if (x > 0)
+                        add("pipe", x, Y, 0);
+                    add("pipe", x + 1, Y, 0);
+                    commands.add(new String[]{"pipe", String.valueOf(x), String.valueOf(Y), "1", "servo=north"});
+                    commands.add(new String[]{"filter", String.valueOf(x), String.valueOf(Y), "1", "whitelist", "sim:item_" + i});
+                    for (int z = 2; z <= SORTER_BRANCH; z++)
+                        add("pipe", x, Y, z);
+                    add("inventory", x, Y, SORTER_BRANCH + 1, "void");
+                }
+            }
+            default -> throw new IllegalArgumentException("Unknown topology " + topology);
+        }
+    }
+
+    /**
+     * Adds the source inventory at -1 64 0 and the servo pipe extracting from it at 0 64 0
+     */
+    private void source(String inventory) {
+        commands.add(("inventory -1 " + Y + " 0 " + inventory).split(" "));
+        commands.add(new String[]{"pipe", "0", String.valueOf(Y), "0", "servo=west"});
+    }
+
+    private void add(String block, int x, int y, int z, String... options) {
+        String[] command = new String[4 + options.length];
+        command[0] = block;
+        command[1] = String.valueOf(x);
+        command[2] = String.valueOf(y);
+        command[3] = String.valueOf(z);
+        System.arraycopy(options, 0, command, 4, options.length);
+        commands.add(command);
+    }
+}
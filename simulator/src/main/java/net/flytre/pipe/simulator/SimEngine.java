@@ -0,0 +1,216 @@
+package net.flytre.pipe.simulator;
+
+import net.flytre.pipe.routing.Positions;
+import net.flytre.pipe.routing.Route;
+import net.flytre.pipe.routing.Router;
+import net.flytre.pipe.routing.Sides;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs a simulated network tick by tick the same way PipeEntity.tick does: items count down and hop from pipe to pipe
+ * along their routes, get rerouted or stuck when a route stops working, and servos extract an item every half
+ * operation. Everything happens in a fixed order, so two runs of the same spec always end up the same.
+ */
+public final class SimEngine {
+
+    /**
+     * How routes are looked up. CACHED works like the mod does, UNCACHED searches every time, which shows what the
+     * route cache is worth for a network.
+     */
+    public enum Mode {
+        CACHED,
+        UNCACHED
+    }
+
+    private final SimWorld world;
+    private final Mode mode;
+    private final List<NetworkSpec.Event> events;
+    private final Router<Integer> router;
+    private final SimStats stats = new SimStats();
+    private int nextEvent;
+    private long tick;
+
+    SimEngine(NetworkSpec spec, Mode mode) {
+        this.world = spec.build();
+        this.mode = mode;
+        this.events = spec.events();
+        this.router = new Router<>(world, world, world);
+    }
+
+    public SimStats run(int ticks) {
+        stats.begin(world.pipes.size());
+        for (int i = 0; i < ticks; i++)
+            tick();
+        stats.end(tick, world.itemsInFlight());
+        return stats;
+    }
+
+    private void tick() {
+        long start = SimStats.cpuTime();
+        applyEvents();
+        for (long pos : world.tickOrder()) {
+            SimPipe pipe = world.pipes.get(pos);
+            if (pipe != null)
+                tickPipe(pipe);
+        }
+        tick++;
+        stats.ticked(SimStats.cpuTime() - start);
+    }
+
+    private void applyEvents() {
+        boolean changed = false;
+        while (nextEvent < events.size() && events.get(nextEvent).tick() <= tick)
+            changed |= world.apply(events.get(nextEvent++).command());
+        if (changed)
+            world.clearCaches();
+    }
+
+    private void tickPipe(SimPipe pipe) {
+        if (pipe.cooldown > 0)
+            pipe.cooldown--;
+
+        tickItems(pipe);
+
+        if (pipe.cooldown <= 0) {
+            extract(pipe);
+            pipe.cooldown = pipe.ticksPerOperation() / 2;
+        }
+
+        if (!pipe.cache.isEmpty() && tick - pipe.lastCacheTick > 600)
+            pipe.cache.clear();
+    }
+
+    private void tickItems(SimPipe pipe) {
+        for (Iterator<SimItem> iterator = pipe.items.iterator(); iterator.hasNext(); ) {
+            SimItem item = iterator.next();
+            if (--item.time > 0)
+                continue;
+
+            long[] path = item.route.path();
+            int next = item.step + 1;
+            if (next < path.length) {
+                SimPipe nextPipe = world.pipes.get(path[next]);
+                if (nextPipe == null) {
+                    reroute(pipe, item);
+                    continue;
+                }
+                item.step = next;
+                item.stuck = false;
+                item.time = nextPipe.ticksPerOperation();
+                nextPipe.items.add(item);
+                iterator.remove();
+                stats.hop();
+                continue;
+            }
+
+            SimInventory destination = world.inventories.get(item.route.destination());
+            if (destination != null && destination.canInsert(item.item, 1)) {
+                destination.insert(item.item, 1);
+                iterator.remove();
+                stats.delivered(tick - item.extractedTick);
+            } else {
+                reroute(pipe, item);
+            }
+        }
+    }
+
+    private void reroute(SimPipe pipe, SimItem item) {
+        List<Route> routes = findDestinations(pipe, item.item, pipe.pos, true, false);
+        if (routes.isEmpty()) {
+            item.time = 20;
+            item.stuck = true;
+            stats.stuck();
+        } else {
+            item.reroute(routes.get(0), pipe.ticksPerOperation());
+        }
+    }
+
+    private void extract(SimPipe pipe) {
+        for (int d = 0; d < Positions.DIRECTIONS; d++) {
+            if (Sides.get(pipe.sides, d) != Sides.SERVO)
+                continue;
+            long source = Positions.offset(pipe.pos, d);
+            SimInventory inventory = world.inventories.get(source);
+            if (inventory == null || inventory.isEmpty())
+                continue;
+
+            for (int item : inventory.contents.keySet()) {
+                if (!pipe.passesFilter(item))
+                    continue;
+
+                Route route;
+                if (pipe.roundRobin) {
+                    List<Route> routes = findDestinations(pipe, item, source, false, false);
+                    if (routes.size() <= pipe.roundRobinIndex)
+                        pipe.roundRobinIndex = 0;
+                    route = pipe.roundRobinIndex < routes.size() ? routes.get(pipe.roundRobinIndex++) : null;
+                } else {
+                    List<Route> routes = findDestinations(pipe, item, source, true, false);
+                    route = routes.isEmpty() ? null : routes.get(0);
+                }
+
+                if (route != null) {
+                    inventory.remove(item, 1);
+                    pipe.items.add(new SimItem(item, tick, route, pipe.ticksPerOperation() * 3 / 2));
+                    stats.extracted();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Looks up routes the way PipeEntity.findCachedDestinations does. Routes are never changed once found, so unlike
+     * there they don't need copying on the way in or out of the cache.
+     */
+    private List<Route> findDestinations(SimPipe pipe, int item, long start, boolean one, boolean stuck) {
+        world.beginLookup();
+        SimPipe.CacheKey key = new SimPipe.CacheKey(item, start, one);
+        if (mode == Mode.CACHED) {
+            SimPipe.CacheEntry entry = pipe.cache.get(key);
+            if (entry != null) {
+                boolean clear = entry.routes().isEmpty() && tick - entry.time() > 100;
+                if (!clear && !one) {
+                    stats.cacheHit();
+                    pipe.lastCacheTick = tick;
+                    List<Route> result = new ArrayList<>(entry.routes().size());
+                    for (Route route : entry.routes()) {
+                        long last = route.path()[route.path().length - 1];
+                        if (router.canInsertFirm(item, last, Positions.direction(last, route.destination()), stuck))
+                            result.add(route);
+                    }
+                    return result;
+                } else if (!clear && entry.routes().stream().allMatch(route -> router.validate(item, start, route))) {
+                    stats.cacheHit();
+                    pipe.lastCacheTick = tick;
+                    return entry.routes();
+                }
+                pipe.cache.remove(key);
+            }
+        }
+
+        List<Route> routes = router.findDestinations(pipe.pos, item, start, one, stuck);
+        stats.searched(router.getLastNodes());
+        if (mode == Mode.CACHED) {
+            pipe.cache.put(key, new SimPipe.CacheEntry(tick, routes));
+            pipe.lastCacheTick = tick;
+            evictOldest(pipe);
+        }
+        return routes;
+    }
+
+    /**
+     * The same eviction as the removeEldestEntry of the route cache in PipeEntity
+     */
+    private void evictOldest(SimPipe pipe) {
+        if (pipe.cache.size() <= 10)
+            return;
+        Iterator<Map.Entry<SimPipe.CacheKey, SimPipe.CacheEntry>> iterator = pipe.cache.entrySet().iterator();
+        if (tick - iterator.next().getValue().time() > 500)
+            iterator.remove();
+    }
+}
@@ -0,0 +1,15 @@
+package net.flytre.pipe.simulator;
+
+import it.unimi.dsi.fastutil.ints.IntSet;
+
+/**
+ * The filter of a simulated pipe. Like a filter in game, an empty one lets everything through no matter its type.
+ *
+ * @param whitelist whether only the listed items pass, rather than everything but them
+ */
+record SimFilter(boolean whitelist, IntSet items) {
+
+    boolean test(int item) {
+        return items.isEmpty() || items.contains(item) == whitelist;
+    }
+}
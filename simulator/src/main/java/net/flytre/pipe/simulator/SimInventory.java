@@ -0,0 +1,65 @@
+package net.flytre.pipe.simulator;
+
+import it.unimi.dsi.fastutil.ints.Int2IntAVLTreeMap;
+import it.unimi.dsi.fastutil.ints.Int2IntSortedMap;
+
+/**
+ * A simulated inventory, holding stacks of up to 64 items in a fixed number of slots. Contents are kept sorted by
+ * item, so extraction always goes through them in the same order.
+ * <p>
+ * A creative inventory never runs out of what it holds, and a void inventory accepts anything and keeps none of it,
+ * which makes for an endless source and an endless destination.
+ */
+final class SimInventory {
+
+    static final int STACK_SIZE = 64;
+
+    final int slots;
+    final boolean creative;
+    final boolean sink;
+    final Int2IntSortedMap contents = new Int2IntAVLTreeMap();
+
+    SimInventory(int slots, boolean creative, boolean sink) {
+        this.slots = slots;
+        this.creative = creative;
+        this.sink = sink;
+    }
+
+    /**
+     * Whether this many of the item fit, filling the partial stack of it first and then empty slots
+     */
+    boolean canInsert(int item, int count) {
+        if (sink)
+            return true;
+        int used = 0;
+        for (int amount : contents.values())
+            used += (amount + STACK_SIZE - 1) / STACK_SIZE;
+        long room = (long) (slots - used) * STACK_SIZE;
+        int partial = contents.get(item) % STACK_SIZE;
+        if (partial != 0)
+            room += STACK_SIZE - partial;
+        return room >= count;
+    }
+
+    void insert(int item, int count) {
+        if (!sink)
+            contents.put(item, contents.get(item) + count);
+    }
+
+    void remove(int item, int count) {
+        if (creative)
+            return;
+        set(item, contents.get(item) - count);
+    }
+
+    void set(int item, int count) {
+        if (count <= 0)
+            contents.remove(item);
+        else
+            contents.put(item, count);
+    }
+
+    boolean isEmpty() {
+        return contents.isEmpty();
+    }
+}
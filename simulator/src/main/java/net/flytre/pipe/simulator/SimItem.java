@@ -0,0 +1,34 @@
+package net.flytre.pipe.simulator;
+
+import net.flytre.pipe.routing.Route;
+
+/**
+ * An item travelling through the simulated network. Routes aren't changed as the item moves, it just keeps track of
+ * which pipe along the path it's in.
+ */
+final class SimItem {
+
+    final int item;
+    final long extractedTick;
+    Route route;
+    int step;
+    int time;
+    boolean stuck;
+
+    SimItem(int item, long extractedTick, Route route, int time) {
+        this.item = item;
+        this.extractedTick = extractedTick;
+        this.route = route;
+        this.time = time;
+    }
+
+    /**
+     * Sends the item along a new route from the pipe it's in
+     */
+    void reroute(Route route, int time) {
+        this.route = route;
+        this.step = 0;
+        this.time = time;
+        this.stuck = false;
+    }
+}
@@ -0,0 +1,50 @@
+package net.flytre.pipe.simulator;
+
+import net.flytre.pipe.routing.Route;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A simulated pipe, holding the same state PipeEntity does: its connections, speed, mode, filter, the items in it
+ * and its route cache.
+ */
+final class SimPipe {
+
+    final long pos;
+    int sides;
+    boolean fast;
+    boolean roundRobin;
+    SimFilter filter; //null for pipes without a filter
+
+    /**
+     * Pipes placed without explicit sides connect to whatever is next to them, with servos on the listed sides
+     */
+    boolean autoSides;
+    int servos;
+
+    final List<SimItem> items = new ArrayList<>(4);
+    int cooldown;
+    int roundRobinIndex;
+    final LinkedHashMap<CacheKey, CacheEntry> cache = new LinkedHashMap<>(4);
+    long lastCacheTick;
+
+    SimPipe(long pos) {
+        this.pos = pos;
+    }
+
+    int ticksPerOperation() {
+        return fast ? 8 : 20;
+    }
+
+    boolean passesFilter(int item) {
+        return filter == null || filter.test(item);
+    }
+
+    record CacheKey(int item, long start, boolean one) {
+    }
+
+    record CacheEntry(long time, List<Route> routes) {
+    }
+}
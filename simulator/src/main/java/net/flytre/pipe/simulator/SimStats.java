@@ -0,0 +1,121 @@
+package net.flytre.pipe.simulator;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * What happened during a simulation run: how many items moved, how long they took to arrive, how much routing it took
+ * and how much CPU each tick used. Everything but the CPU times is the same on every run of the same spec.
+ */
+public final class SimStats {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean THREAD_CPU = THREADS.isCurrentThreadCpuTimeSupported();
+
+    private final LongArrayList latencies = new LongArrayList();
+    private final LongArrayList tickNanos = new LongArrayList();
+    private int pipes;
+    private long ticks;
+    private int inFlight;
+    private long extracted;
+    private long delivered;
+    private long stuck;
+    private long hops;
+    private long searches;
+    private long searchNodes;
+    private long cacheHits;
+
+    /**
+     * CPU time of this thread if the JVM can measure it, so the simulator isn't charged for time it didn't get to run
+     */
+    static long cpuTime() {
+        return THREAD_CPU ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    void begin(int pipes) {
+        this.pipes = pipes;
+    }
+
+    void end(long ticks, int inFlight) {
+        this.ticks = ticks;
+        this.inFlight = inFlight;
+    }
+
+    void ticked(long nanos) {
+        tickNanos.add(nanos);
+    }
+
+    void extracted() {
+        extracted++;
+    }
+
+    void delivered(long latency) {
+        delivered++;
+        latencies.add(latency);
+    }
+
+    void stuck() {
+        stuck++;
+    }
+
+    void hop() {
+        hops++;
+    }
+
+    void searched(int nodes) {
+        searches++;
+        searchNodes += nodes;
+    }
+
+    void cacheHit() {
+        cacheHits++;
+    }
+
+    public void print(PrintStream out, String name) {
+        double seconds = ticks / 20.0;
+        out.printf("== %s ==%n", name);
+        out.printf("Ran %d ticks (%.1f s of game time) on %d pipes%n", ticks, seconds, pipes);
+        out.printf("Items: %d extracted, %d delivered, %d still in pipes, %d hops, stuck %d times%n", extracted, delivered, inFlight, hops, stuck);
+        out.printf("Throughput: %.2f items/s%n", seconds == 0 ? 0 : delivered / seconds);
+
+        if (latencies.isEmpty()) {
+            out.println("Latency: nothing delivered");
+        } else {
+            long[] sorted = latencies.toLongArray();
+            Arrays.sort(sorted);
+            out.printf("Latency (ticks): mean %.1f, p50 %d, p90 %d, p99 %d, max %d%n",
+                    mean(sorted), percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99), sorted[sorted.length - 1]);
+        }
+
+        long lookups = searches + cacheHits;
+        out.printf("Routing: %d searches expanding %.1f pipes on average, %d cache hits (%.1f%% of lookups)%n",
+                searches, searches == 0 ? 0 : searchNodes / (double) searches, cacheHits, lookups == 0 ? 0 : cacheHits * 100.0 / lookups);
+
+        if (!tickNanos.isEmpty()) {
+            long[] sorted = tickNanos.toLongArray();
+            Arrays.sort(sorted);
+            out.printf("CPU per tick (%s, us): mean %.1f, p50 %.1f, p99 %.1f, max %.1f, total %.1f ms%n", THREAD_CPU ? "thread time" : "wall time",
+                    mean(sorted) / 1000, percentile(sorted, 0.5) / 1000.0, percentile(sorted, 0.99) / 1000.0, sorted[sorted.length - 1] / 1000.0, sum(sorted) / 1e6);
+        }
+        out.println();
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(percentile * sorted.length) - 1)];
+    }
+
+    private static double mean(long[] values) {
+        return sum(values) / (double) values.length;
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values)
+            sum += value;
+        return sum;
+    }
+}
@@ -0,0 +1,241 @@
+package net.flytre.pipe.simulator;
+
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.flytre.pipe.routing.FilterPredicate;
+import net.flytre.pipe.routing.FlowIndex;
+import net.flytre.pipe.routing.InventoryCapacityView;
+import net.flytre.pipe.routing.Positions;
+import net.flytre.pipe.routing.Sides;
+import net.flytre.pipe.routing.TopologyView;
+
+/**
+ * The blocks of a simulated world: pipes and the inventories next to them, addressed by packed position like the
+ * routing core expects. Items are ints, interned from their names as commands mention them.
+ * <p>
+ * The world is built and changed by commands, one per line of a network spec (see NetworkSpec):
+ * <ul>
+ *     <li>pipe x y z [fast] [round_robin] [sides=N] [servo=direction,...] - places or replaces a pipe. Without sides,
+ *     it connects to every pipe and inventory next to it.</li>
+ *     <li>filter x y z whitelist|blacklist [item ...] - sets the filter of a pipe</li>
+ *     <li>inventory x y z [slots=N] [creative] [void] [item=count ...] - places or replaces an inventory</li>
+ *     <li>break x y z - removes whatever is there</li>
+ *     <li>insert|remove x y z item count - changes what an inventory holds</li>
+ * </ul>
+ */
+final class SimWorld implements TopologyView, InventoryCapacityView<Integer>, FilterPredicate<Integer> {
+
+    private static final String[] DIRECTIONS = {"down", "up", "north", "south", "west", "east"};
+
+    final Long2ObjectOpenHashMap<SimPipe> pipes = new Long2ObjectOpenHashMap<>();
+    final Long2ObjectOpenHashMap<SimInventory> inventories = new Long2ObjectOpenHashMap<>();
+    private final Object2IntOpenHashMap<String> itemIds = new Object2IntOpenHashMap<>();
+
+    /**
+     * Pipes are ticked in order of position, so runs don't depend on hash order
+     */
+    private long[] tickOrder = new long[0];
+    private boolean orderDirty;
+
+    /**
+     * Summed up the first time a lookup needs them, like PipeRoutingView does
+     */
+    private FlowIndex<Integer> flows;
+
+    int item(String name) {
+        return itemIds.computeIfAbsent(name, k -> itemIds.size());
+    }
+
+    long[] tickOrder() {
+        if (orderDirty) {
+            LongArrayList order = new LongArrayList(pipes.keySet());
+            order.sort(null);
+            tickOrder = order.toLongArray();
+            orderDirty = false;
+        }
+        return tickOrder;
+    }
+
+    /**
+     * Called before every route lookup, since items may have moved since the last one
+     */
+    void beginLookup() {
+        flows = null;
+    }
+
+    int itemsInFlight() {
+        int count = 0;
+        for (SimPipe pipe : pipes.values())
+            count += pipe.items.size();
+        return count;
+    }
+
+    /**
+     * Applies a command to the world
+     *
+     * @return whether the layout of the network changed, which invalidates the route caches of its pipes
+     * @throws IllegalArgumentException if the command isn't understood
+     */
+    boolean apply(String[] command) {
+        return switch (command[0]) {
+            case "pipe" -> {
+                SimPipe pipe = new SimPipe(pos(command));
+                pipe.autoSides = true;
+                for (int i = 4; i < command.length; i++) {
+                    String option = command[i];
+                    if (option.equals("fast"))
+                        pipe.fast = true;
+                    else if (option.equals("round_robin"))
+                        pipe.roundRobin = true;
+                    else if (option.startsWith("sides=")) {
+                        pipe.sides = Integer.parseInt(option.substring(6));
+                        pipe.autoSides = false;
+                    } else if (option.startsWith("servo=")) {
+                        for (String direction : option.substring(6).split(","))
+                            pipe.servos |= 1 << direction(direction);
+                    } else
+                        throw new IllegalArgumentException("Unknown pipe option " + option);
+                }
+                SimPipe old = pipes.put(pipe.pos, pipe);
+                if (old != null) {
+                    pipe.filter = old.filter;
+                    pipe.items.addAll(old.items);
+                }
+                inventories.remove(pipe.pos);
+                placed(pipe.pos);
+                yield true;
+            }
+            case "filter" -> {
+                SimPipe pipe = pipes.get(pos(command));
+                if (pipe == null)
+                    throw new IllegalArgumentException("No pipe to filter at " + String.join(" ", command));
+                IntOpenHashSet items = new IntOpenHashSet();
+                for (int i = 5; i < command.length; i++)
+                    items.add(item(command[i]));
+                pipe.filter = new SimFilter(command[4].equals("whitelist"), items);
+                yield true;
+            }
+            case "inventory" -> {
+                long pos = pos(command);
+                int slots = 27;
+                boolean creative = false, sink = false;
+                for (int i = 4; i < command.length; i++) {
+                    if (command[i].startsWith("slots="))
+                        slots = Integer.parseInt(command[i].substring(6));
+                    else if (command[i].equals("creative"))
+                        creative = true;
+                    else if (command[i].equals("void"))
+                        sink = true;
+                }
+                SimInventory inventory = new SimInventory(slots, creative, sink);
+                for (int i = 4; i < command.length; i++) {
+                    int split = command[i].indexOf('=');
+                    if (split > 0 && !command[i].startsWith("slots="))
+                        inventory.set(item(command[i].substring(0, split)), Integer.parseInt(command[i].substring(split + 1)));
+                }
+                boolean wasPipe = pipes.remove(pos) != null;
+                boolean wasInventory = inventories.put(pos, inventory) != null;
+                placed(pos);
+                yield wasPipe || !wasInventory;
+            }
+            case "break" -> {
+                long pos = pos(command);
+                boolean removed = pipes.remove(pos) != null | inventories.remove(pos) != null;
+                placed(pos);
+                yield removed;
+            }
+            case "insert", "remove" -> {
+                SimInventory inventory = inventories.get(pos(command));
+                if (inventory == null)
+                    throw new IllegalArgumentException("No inventory at " + String.join(" ", command));
+                int item = item(command[4]);
+                int count = Integer.parseInt(command[5]);
+                if (command[0].equals("insert"))
+                    inventory.insert(item, count);
+                else
+                    inventory.set(item, inventory.contents.get(item) - count);
+                yield false;
+            }
+            default -> throw new IllegalArgumentException("Unknown command " + command[0]);
+        };
+    }
+
+    /**
+     * Reconnects the pipes with automatic sides at and around a position that just changed
+     */
+    private void placed(long pos) {
+        orderDirty = true;
+        connect(pos);
+        for (int d = 0; d < Positions.DIRECTIONS; d++)
+            connect(Positions.offset(pos, d));
+    }
+
+    private void connect(long pos) {
+        SimPipe pipe = pipes.get(pos);
+        if (pipe == null || !pipe.autoSides)
+            return;
+        int sides = 0;
+        for (int d = 0; d < Positions.DIRECTIONS; d++) {
+            long next = Positions.offset(pos, d);
+            if ((pipe.servos & 1 << d) != 0)
+                sides |= Sides.SERVO << (d << 1);
+            else if (pipes.containsKey(next) || inventories.containsKey(next))
+                sides |= Sides.CONNECTED << (d << 1);
+        }
+        pipe.sides = sides;
+    }
+
+    void clearCaches() {
+        for (SimPipe pipe : pipes.values())
+            pipe.cache.clear();
+    }
+
+    private static long pos(String[] command) {
+        if (command.length < 4)
+            throw new IllegalArgumentException("Missing position in " + String.join(" ", command));
+        return Positions.pack(Integer.parseInt(command[1]), Integer.parseInt(command[2]), Integer.parseInt(command[3]));
+    }
+
+    static int direction(String name) {
+        for (int d = 0; d < DIRECTIONS.length; d++)
+            if (DIRECTIONS[d].equals(name))
+                return d;
+        throw new IllegalArgumentException("Unknown direction " + name);
+    }
+
+    @Override
+    public int getSides(long pos) {
+        SimPipe pipe = pipes.get(pos);
+        return pipe == null ? Sides.ABSENT : pipe.sides;
+    }
+
+    @Override
+    public boolean test(long pipe, Integer stack) {
+        SimPipe simPipe = pipes.get(pipe);
+        return simPipe != null && simPipe.passesFilter(stack);
+    }
+
+    @Override
+    public boolean hasInventory(long pipe, int direction) {
+        return inventories.containsKey(Positions.offset(pipe, direction));
+    }
+
+    @Override
+    public boolean canInsert(Integer stack, int count, long pipe, int direction) {
+        SimInventory inventory = inventories.get(Positions.offset(pipe, direction));
+        return inventory != null && inventory.canInsert(stack, count);
+    }
+
+    @Override
+    public int getInFlight(Integer stack, long destination) {
+        if (flows == null) {
+            flows = new FlowIndex<>();
+            for (SimPipe pipe : pipes.values())
+                for (SimItem item : pipe.items)
+                    flows.add(item.item, item.route.destination());
+        }
+        return flows.count(stack, destination);
+    }
+}
@@ -0,0 +1,77 @@
+package net.flytre.pipe.simulator;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs a pipe network without the game: no rendering, no networking and no chunks, just extraction, routing and
+ * delivery tick after tick. Useful to reproduce lag a player reported from a trace recorded on their server with
+ * /pipe trace, or to compare how the engine modes do on the same network.
+ * <pre>
+ * simulator (--spec &lt;file&gt; | --generate &lt;line|grid|tree|sorter&gt; &lt;size&gt;) [--ticks &lt;n&gt;] [--mode cached,uncached]
+ * </pre>
+ * Without --ticks, a spec runs until 10 seconds after its last event, or for a minute if it has none. Every mode
+ * listed runs on its own copy of the network and gets its own report.
+ */
+public final class Simulator {
+
+    private Simulator() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        NetworkSpec spec = null;
+        String name = null;
+        int ticks = -1;
+        List<SimEngine.Mode> modes = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--spec" -> {
+                    Path path = Path.of(args[++i]);
+                    try (Reader reader = Files.newBufferedReader(path)) {
+                        spec = NetworkSpec.parse(reader);
+                    }
+                    name = path.getFileName().toString();
+                }
+                case "--generate" -> {
+                    spec = NetworkSpec.generated(args[i + 1], Integer.parseInt(args[i + 2]));
+                    name = args[i + 1] + " " + args[i + 2];
+                    i += 2;
+                }
+                case "--ticks" -> ticks = Integer.parseInt(args[++i]);
+                case "--mode" -> {
+                    for (String mode : args[++i].split(","))
+                        modes.add(SimEngine.Mode.valueOf(mode.toUpperCase(Locale.ROOT)));
+                }
+                default -> {
+                    usage();
+                    return;
+                }
+            }
+        }
+
+        if (spec == null) {
+            usage();
+            return;
+        }
+        if (ticks < 0)
+            ticks = spec.lastEventTick() > 0 ? (int) spec.lastEventTick() + 200 : 1200;
+        if (modes.isEmpty())
+            modes.add(SimEngine.Mode.CACHED);
+
+        for (SimEngine.Mode mode : modes) {
+            SimStats stats = new SimEngine(spec, mode).run(ticks);
+            stats.print(System.out, name + " (" + mode.name().toLowerCase(Locale.ROOT) + ")");
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: simulator (--spec <file> | --generate <line|grid|tree|sorter> <size>) [--ticks <n>] [--mode cached,uncached]");
+        System.exit(1);
+    }
+}
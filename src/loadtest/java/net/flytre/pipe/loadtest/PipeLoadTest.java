@@ -0,0 +1,510 @@
+package net.flytre.pipe.loadtest;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.flytre.pipe.Pipe;
+import net.flytre.pipe.metrics.LatencyHistogram;
+import net.flytre.pipe.pipe.PipeBlock;
+import net.flytre.pipe.pipe.PipeEntity;
+import net.flytre.pipe.pipe.PipeSide;
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.inventory.Inventory;
+import net.minecraft.item.Item;
+import net.minecraft.item.ItemStack;
+import net.minecraft.item.Items;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.text.LiteralText;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.Direction;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.function.Consumer;
+
+/**
+ * Backs /pipe loadtest and ./gradlew runGametest: builds large pipe setups far away from everything else in the
+ * overworld, lets them run and checks that the server kept up and no items were lost or duplicated along the way.
+ * It isn't part of the mod jar, and is only loaded in the load test runs (see PipeLoadTestMod).
+ * Pipes run exactly like they do in a survival world, so this covers PipeBlock and PipeEntity together. Client sync is
+ * only covered while a player is close enough to the scenario to be sent its pipes.
+ * <ul>
+ *     <li>sorting_hall - input barrels feeding a trunk of 128 pipes with 60 filtered branches sorting 16 kinds of items</li>
+ *     <li>ore_line - 8 parallel processing lines, each passing raw ore through 4 barrels with fast pipes in between</li>
+ *     <li>trunk - 4 inputs feeding a single network of over 10,000 pipes, which halfway through gets a barrel placed next
+ *     to it so every route has to be found again</li>
+ * </ul>
+ * Each scenario is given 5 seconds to settle, then its tick times are measured for 30 seconds (or the number of ticks
+ * set by -Dpipe.loadtest.ticks). It fails if the mean or 99th percentile tick time is over its limit, if the number of
+ * items in its barrels and pipes changed, or if nothing moved. A scenario is only built where there's nothing but air,
+ * and is removed again along with its items once it's been checked.
+ * <p>
+ * Started with -Dpipe.loadtest=all (or a comma separated list of scenarios) the tests run as soon as the server has
+ * started and the server stops once they're done, halting with exit code 1 if any failed.
+ */
+public final class PipeLoadTest {
+
+    public static final String PROPERTY = "pipe.loadtest";
+    private static final Logger LOGGER = LogManager.getLogger("Pipe Load Test");
+    private static final int WARMUP_TICKS = 100;
+    private static final int MEASURE_TICKS = Integer.getInteger("pipe.loadtest.ticks", 600);
+    private static final int Y = 200;
+
+    private static @Nullable Session session;
+    private static boolean failed;
+
+    private PipeLoadTest() {
+    }
+
+    public static boolean isRunning() {
+        return session != null;
+    }
+
+    /**
+     * @param source who to report to, or null to only log the results
+     * @return false if a load test is already running
+     */
+    public static boolean start(MinecraftServer server, @Nullable ServerCommandSource source, List<Scenario> scenarios, boolean stopServer) {
+        if (session != null)
+            return false;
+        session = new Session(source, new ArrayDeque<>(scenarios), stopServer);
+        return true;
+    }
+
+    /**
+     * Starts the scenarios given by -Dpipe.loadtest, if it's set
+     */
+    public static void serverStarted(MinecraftServer server) {
+        String property = System.getProperty(PROPERTY);
+        if (property == null || property.isBlank())
+            return;
+        List<Scenario> scenarios = new ArrayList<>();
+        for (String name : property.split(",")) {
+            if (name.equals("all"))
+                scenarios.addAll(List.of(Scenario.values()));
+            else
+                scenarios.add(Scenario.valueOf(name.trim().toUpperCase(Locale.ROOT)));
+        }
+        LOGGER.info("Running pipe load tests: {}", scenarios);
+        start(server, null, scenarios, true);
+    }
+
+    /**
+     * Halts the game if the tests that stopped the server failed. The world has been saved by now, and exiting normally
+     * would wait on the server thread, which is the one calling this. Otherwise, forgets everything about the tests, so
+     * they start over in the next world.
+     */
+    public static void serverStopped() {
+        if (failed && System.getProperty(PROPERTY) != null) {
+            LogManager.shutdown();
+            Runtime.getRuntime().halt(1);
+        }
+        session = null;
+        failed = false;
+    }
+
+    /**
+     * Called at the end of every server tick, builds, measures and checks one scenario after the other
+     */
+    public static void endTick(MinecraftServer server) {
+        if (session != null)
+            session.tick(server);
+    }
+
+    public enum Scenario {
+        SORTING_HALL(10, 25, true, PipeLoadTest::buildSortingHall),
+        ORE_LINE(5, 15, true, PipeLoadTest::buildOreLine),
+        TRUNK(15, 40, false, PipeLoadTest::buildTrunk);
+
+        final double maxMeanMspt;
+        final double maxP99Mspt;
+        final boolean delivers;
+        final Consumer<Build> builder;
+
+        Scenario(double maxMeanMspt, double maxP99Mspt, boolean delivers, Consumer<Build> builder) {
+            this.maxMeanMspt = maxMeanMspt;
+            this.maxP99Mspt = maxP99Mspt;
+            this.delivers = delivers;
+            this.builder = builder;
+        }
+
+        /**
+         * Changes something halfway through measuring, if the scenario is about how the network copes with changes
+         *
+         * @return false if something was in the way
+         */
+        boolean disturb(Build build) {
+            return this != TRUNK || build.placeBarrel(TRUNK_ROW / 2, TRUNK_ROWS + 1);
+        }
+
+        String getName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static final Item[] SORTED_ITEMS = {Items.COBBLESTONE, Items.DIRT, Items.GRAVEL, Items.SAND, Items.ANDESITE, Items.DIORITE,
+            Items.GRANITE, Items.COAL, Items.IRON_INGOT, Items.GOLD_INGOT, Items.REDSTONE, Items.LAPIS_LAZULI, Items.FLINT, Items.BONE,
+            Items.STRING, Items.ROTTEN_FLESH};
+    private static final int SORTING_TRUNK = 128;
+    private static final int ORE_LINES = 8;
+    private static final int ORE_STAGES = 4;
+    private static final int ORE_STAGE_LENGTH = 12;
+    private static final int TRUNK_ROWS = 100;
+    private static final int TRUNK_ROW = 100;
+
+    private static void buildSortingHall(Build build) {
+        for (int x = 0; x < 8; x += 2) {
+            List<ItemStack> contents = new ArrayList<>();
+            for (int slot = 0; slot < 27; slot++)
+                contents.add(new ItemStack(SORTED_ITEMS[(x + slot) % SORTED_ITEMS.length], 64));
+            build.barrel(x, -1, false, contents);
+            build.servo(x, 0, Direction.NORTH);
+        }
+        for (int x = 0; x < SORTING_TRUNK; x++)
+            build.pipe(x, 0, false);
+        for (int x = 8, branch = 0; x < SORTING_TRUNK - 1; x += 2, branch++) {
+            build.servo(x, 1, Direction.NORTH);
+            build.filter(x, 1, SORTED_ITEMS[branch % SORTED_ITEMS.length]);
+            for (int z = 2; z <= 4; z++)
+                build.pipe(x, z, false);
+            build.barrel(x, 5, true, List.of());
+        }
+        build.barrel(SORTING_TRUNK, 0, true, List.of());
+    }
+
+    private static void buildOreLine(Build build) {
+        for (int line = 0; line < ORE_LINES; line++) {
+            int z = line * 4;
+            List<ItemStack> ore = new ArrayList<>();
+            for (int slot = 0; slot < 27; slot++)
+                ore.add(new ItemStack(line % 2 == 0 ? Items.RAW_IRON : Items.RAW_GOLD, 64));
+            build.barrel(-1, z, false, ore);
+            for (int stage = 0; stage < ORE_STAGES; stage++) {
+                int start = stage * (ORE_STAGE_LENGTH + 1);
+                build.servo(start, z, Direction.WEST);
+                for (int x = start; x < start + ORE_STAGE_LENGTH; x++)
+                    build.pipe(x, z, true);
+                build.barrel(start + ORE_STAGE_LENGTH, z, stage == ORE_STAGES - 1, List.of());
+            }
+        }
+    }
+
+    private static void buildTrunk(Build build) {
+        //Rows are a block apart with a single pipe joining the ends, so the whole trunk is one long snake
+        for (int row = 0; row < TRUNK_ROWS; row++) {
+            for (int x = 0; x < TRUNK_ROW; x++)
+                build.pipe(x, row * 2, false);
+            if (row < TRUNK_ROWS - 1)
+                build.pipe(row % 2 == 0 ? TRUNK_ROW - 1 : 0, row * 2 + 1, false);
+        }
+        for (int x = 0; x < 40; x += 10) {
+            build.barrel(x, -1, false, List.of(new ItemStack(Items.COBBLESTONE, 64), new ItemStack(Items.COBBLESTONE, 64)));
+            build.servo(x, 0, Direction.NORTH);
+        }
+        build.barrel(TRUNK_ROWS % 2 == 0 ? -1 : TRUNK_ROW, (TRUNK_ROWS - 1) * 2, true, List.of());
+    }
+
+    /**
+     * The blocks of a scenario, recorded relative to its origin and then placed all at once. Blocks are placed without
+     * updating their neighbours, so pipes get exactly the connections worked out here.
+     */
+    static final class Build {
+        final ServerWorld world;
+        final BlockPos origin;
+        final Long2IntOpenHashMap pipes = new Long2IntOpenHashMap(); //servo sides of each pipe
+        final LongOpenHashSet fastPipes = new LongOpenHashSet();
+        final Long2ObjectOpenHashMap<Item> filters = new Long2ObjectOpenHashMap<>();
+        final Long2ObjectOpenHashMap<List<ItemStack>> barrels = new Long2ObjectOpenHashMap<>();
+        final List<BlockPos> sources = new ArrayList<>();
+        final List<BlockPos> sinks = new ArrayList<>();
+        final LongOpenHashSet chunks = new LongOpenHashSet();
+
+        Build(ServerWorld world, BlockPos origin) {
+            this.world = world;
+            this.origin = origin;
+        }
+
+        private BlockPos at(int x, int z) {
+            return origin.add(x, 0, z);
+        }
+
+        void pipe(int x, int z, boolean fast) {
+            long pos = at(x, z).asLong();
+            pipes.addTo(pos, 0);
+            if (fast)
+                fastPipes.add(pos);
+        }
+
+        void servo(int x, int z, Direction direction) {
+            pipes.addTo(at(x, z).asLong(), 1 << direction.getId());
+        }
+
+        void filter(int x, int z, Item item) {
+            filters.put(at(x, z).asLong(), item);
+        }
+
+        /**
+         * @param sink whether items should end up in the barrel. Barrels that start out with items are sources.
+         */
+        void barrel(int x, int z, boolean sink, List<ItemStack> contents) {
+            BlockPos pos = at(x, z);
+            barrels.put(pos.asLong(), contents);
+            if (sink)
+                sinks.add(pos);
+            else if (!contents.isEmpty())
+                sources.add(pos);
+        }
+
+        /**
+         * Places a barrel while the scenario is running, updating its neighbours like a player would
+         *
+         * @return false if something was in the way
+         */
+        boolean placeBarrel(int x, int z) {
+            BlockPos pos = at(x, z);
+            if (!world.isAir(pos))
+                return false;
+            world.setBlockState(pos, Blocks.BARREL.getDefaultState());
+            barrels.put(pos.asLong(), List.of());
+            return true;
+        }
+
+        /**
+         * @return false if something was in the way, in which case nothing is placed
+         */
+        boolean place() {
+            for (long pos : pipes.keySet())
+                chunks.add(ChunkPos.toLong(BlockPos.unpackLongX(pos) >> 4, BlockPos.unpackLongZ(pos) >> 4));
+            for (long pos : barrels.keySet())
+                chunks.add(ChunkPos.toLong(BlockPos.unpackLongX(pos) >> 4, BlockPos.unpackLongZ(pos) >> 4));
+            for (long chunk : chunks)
+                world.setChunkForced(ChunkPos.getPackedX(chunk), ChunkPos.getPackedZ(chunk), true);
+
+            for (long pos : pipes.keySet())
+                if (!world.isAir(BlockPos.fromLong(pos)))
+                    return false;
+            for (long pos : barrels.keySet())
+                if (!world.isAir(BlockPos.fromLong(pos)))
+                    return false;
+
+            for (Long2ObjectOpenHashMap.Entry<List<ItemStack>> entry : barrels.long2ObjectEntrySet()) {
+                BlockPos pos = BlockPos.fromLong(entry.getLongKey());
+                world.setBlockState(pos, Blocks.BARREL.getDefaultState(), Block.NOTIFY_LISTENERS);
+                if (world.getBlockEntity(pos) instanceof Inventory inventory) {
+                    inventory.clear();
+                    List<ItemStack> contents = entry.getValue();
+                    for (int slot = 0; slot < contents.size(); slot++)
+                        inventory.setStack(slot, contents.get(slot).copy());
+                }
+            }
+
+            for (Long2IntOpenHashMap.Entry entry : pipes.long2IntEntrySet()) {
+                BlockPos pos = BlockPos.fromLong(entry.getLongKey());
+                BlockState state = (fastPipes.contains(entry.getLongKey()) ? Pipe.FAST_PIPE : Pipe.ITEM_PIPE).getDefaultState();
+                for (Direction direction : Direction.values()) {
+                    long next = pos.offset(direction).asLong();
+                    if ((entry.getIntValue() & 1 << direction.getId()) != 0)
+                        state = state.with(PipeBlock.getProperty(direction), PipeSide.SERVO);
+                    else if (pipes.containsKey(next) || barrels.containsKey(next))
+                        state = state.with(PipeBlock.getProperty(direction), PipeSide.CONNECTED);
+                }
+                world.setBlockState(pos, state, Block.NOTIFY_LISTENERS);
+            }
+
+            for (Long2ObjectOpenHashMap.Entry<Item> entry : filters.long2ObjectEntrySet())
+                if (world.getBlockEntity(BlockPos.fromLong(entry.getLongKey())) instanceof PipeEntity pipe)
+                    pipe.getFilter().put(new ItemStack(entry.getValue()));
+            return true;
+        }
+
+        /**
+         * Removes everything that was placed, without dropping any of the items in it
+         */
+        void remove() {
+            for (long packed : barrels.keySet()) {
+                BlockPos pos = BlockPos.fromLong(packed);
+                if (world.getBlockEntity(pos) instanceof Inventory inventory)
+                    inventory.clear();
+                world.setBlockState(pos, Blocks.AIR.getDefaultState(), Block.NOTIFY_LISTENERS);
+            }
+            for (long packed : pipes.keySet()) {
+                BlockPos pos = BlockPos.fromLong(packed);
+                BlockState state = world.getBlockState(pos);
+                if (!(state.getBlock() instanceof PipeBlock))
+                    continue;
+                //Pipes drop the items they hold and their servos when they're removed, so both are taken out first
+                world.removeBlockEntity(pos);
+                world.setBlockState(pos, state.getBlock().getDefaultState(), Block.NOTIFY_LISTENERS);
+                world.removeBlockEntity(pos);
+                world.setBlockState(pos, Blocks.AIR.getDefaultState(), Block.NOTIFY_LISTENERS);
+            }
+        }
+
+        void release() {
+            for (long chunk : chunks)
+                world.setChunkForced(ChunkPos.getPackedX(chunk), ChunkPos.getPackedZ(chunk), false);
+        }
+
+        /**
+         * Every item in the barrels and pipes of the scenario
+         */
+        long countItems() {
+            long count = 0;
+            for (long pos : barrels.keySet())
+                count += countItems(BlockPos.fromLong(pos));
+            for (long pos : pipes.keySet())
+                if (world.getBlockEntity(BlockPos.fromLong(pos)) instanceof PipeEntity pipe)
+                    for (ItemStack stack : pipe.getQueuedStacks())
+                        count += stack.getCount();
+            return count;
+        }
+
+        long countItems(List<BlockPos> positions) {
+            long count = 0;
+            for (BlockPos pos : positions)
+                count += countItems(pos);
+            return count;
+        }
+
+        private long countItems(BlockPos pos) {
+            long count = 0;
+            if (world.getBlockEntity(pos) instanceof Inventory inventory)
+                for (int slot = 0; slot < inventory.size(); slot++)
+                    count += inventory.getStack(slot).getCount();
+            return count;
+        }
+    }
+
+    private static final class Session {
+        final @Nullable ServerCommandSource source;
+        final Queue<Scenario> scenarios;
+        final boolean stopServer;
+        final List<String> results = new ArrayList<>();
+
+        @Nullable Scenario scenario;
+        @Nullable Build build;
+        LatencyHistogram ticks = new LatencyHistogram();
+        int elapsed;
+        boolean disturbed;
+        long items;
+        long sourceItems;
+        long sinkItems;
+
+        Session(@Nullable ServerCommandSource source, Queue<Scenario> scenarios, boolean stopServer) {
+            this.source = source;
+            this.scenarios = scenarios;
+            this.stopServer = stopServer;
+        }
+
+        void tick(MinecraftServer server) {
+            if (build == null) {
+                scenario = scenarios.poll();
+                if (scenario == null) {
+                    finish(server);
+                    return;
+                }
+                build = new Build(server.getOverworld(), new BlockPos(100_000 + scenario.ordinal() * 1_000, Y, 0));
+                scenario.builder.accept(build);
+                if (!build.place()) {
+                    failed = true;
+                    report(String.format("FAIL %s: there are blocks in the way at %d %d %d", scenario.getName(), build.origin.getX(), build.origin.getY(), build.origin.getZ()));
+                    build.release();
+                    build = null;
+                    return;
+                }
+                ticks = new LatencyHistogram();
+                elapsed = 0;
+                disturbed = true;
+                items = build.countItems();
+                sourceItems = build.countItems(build.sources);
+                sinkItems = build.countItems(build.sinks);
+                report(String.format("Built %s at %d %d %d: %d pipes, %d items", scenario.getName(), build.origin.getX(), build.origin.getY(), build.origin.getZ(), build.pipes.size(), items));
+                return;
+            }
+
+            assert scenario != null;
+            elapsed++;
+            if (elapsed > WARMUP_TICKS)
+                ticks.record(server.lastTickLengths[server.getTicks() % server.lastTickLengths.length]);
+            if (elapsed == WARMUP_TICKS + MEASURE_TICKS / 2)
+                disturbed = scenario.disturb(build);
+            if (elapsed < WARMUP_TICKS + MEASURE_TICKS)
+                return;
+
+            check(scenario, build);
+            build.remove();
+            build.release();
+            build = null;
+        }
+
+        private void check(Scenario scenario, Build build) {
+            double mean = ticks.getMean() / 1e6;
+            double p99 = ticks.percentile(0.99) / 1e6;
+            long itemsNow = build.countItems();
+            long extracted = sourceItems - build.countItems(build.sources);
+            long delivered = build.countItems(build.sinks) - sinkItems;
+
+            List<String> problems = new ArrayList<>();
+            if (mean > scenario.maxMeanMspt)
+                problems.add(String.format("mean tick %.2fms over %.1fms", mean, scenario.maxMeanMspt));
+            if (p99 > scenario.maxP99Mspt)
+                problems.add(String.format("p99 tick %.2fms over %.1fms", p99, scenario.maxP99Mspt));
+            if (itemsNow != items)
+                problems.add(String.format("%d items at the start but %d at the end", items, itemsNow));
+            if (extracted <= 0)
+                problems.add("nothing was extracted");
+            if (scenario.delivers && delivered <= 0)
+                problems.add("nothing was delivered");
+            if (!disturbed)
+                problems.add("the change halfway through couldn't be made, something was in the way");
+
+            String summary = String.format("%s: mean tick %.2fms, p99 %.2fms, max %.2fms, %d extracted, %d delivered", scenario.getName(), mean, p99, ticks.getMax() / 1e6, extracted, delivered);
+            if (problems.isEmpty()) {
+                report("PASS " + summary);
+            } else {
+                failed = true;
+                report("FAIL " + summary + ": " + String.join(", ", problems));
+            }
+        }
+
+        private void finish(MinecraftServer server) {
+            session = null;
+            File file = server.getFile("debug/pipe-loadtest-" + new SimpleDateFormat("yyyy-MM-dd_HH.mm.ss").format(new Date()) + ".txt");
+            //noinspection ResultOfMethodCallIgnored
+            file.getParentFile().mkdirs();
+            try (PrintWriter writer = new PrintWriter(file, StandardCharsets.UTF_8)) {
+                for (String line : results)
+                    writer.println(line);
+                report("Results saved to " + file.getPath());
+            } catch (IOException e) {
+                report("Couldn't save the results: " + e.getMessage());
+            }
+            if (stopServer)
+                server.stop(false);
+        }
+
+        private void report(String message) {
+            results.add(message);
+            LOGGER.info(message);
+            if (source != null)
+                source.sendFeedback(new LiteralText(message), false);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package net.flytre.pipe.loadtest;
+
+import com.mojang.brigadier.context.CommandContext;
+import net.fabricmc.api.ModInitializer;
+import net.fabricmc.fabric.api.command.v1.CommandRegistrationCallback;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
+import net.fabricmc.loader.api.FabricLoader;
+import net.minecraft.server.command.CommandManager;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.text.LiteralText;
+
+import java.util.List;
+
+/**
+ * Hooks the load tests into the server, only in a development environment or when -Dpipe.loadtest is set, as they
+ * build far out in the overworld. Adds /pipe loadtest &lt;scenario&gt;|all for operators.
+ */
+public class PipeLoadTestMod implements ModInitializer {
+
+    @Override
+    public void onInitialize() {
+        if (!FabricLoader.getInstance().isDevelopmentEnvironment() && System.getProperty(PipeLoadTest.PROPERTY) == null)
+            return;
+
+        ServerTickEvents.END_SERVER_TICK.register(PipeLoadTest::endTick);
+        ServerLifecycleEvents.SERVER_STARTED.register(PipeLoadTest::serverStarted);
+        ServerLifecycleEvents.SERVER_STOPPED.register(server -> PipeLoadTest.serverStopped());
+        CommandRegistrationCallback.EVENT.register((dispatcher, dedicated) -> dispatcher.register(CommandManager.literal("pipe")
+                .requires(source -> source.hasPermissionLevel(2))
+                .then(CommandManager.literal("loadtest")
+                        .then(CommandManager.literal("all")
+                                .executes(context -> loadTest(context, List.of(PipeLoadTest.Scenario.values()))))
+                        .then(CommandManager.literal("sorting_hall")
+                                .executes(context -> loadTest(context, List.of(PipeLoadTest.Scenario.SORTING_HALL))))
+                        .then(CommandManager.literal("ore_line")
+                                .executes(context -> loadTest(context, List.of(PipeLoadTest.Scenario.ORE_LINE))))
+                        .then(CommandManager.literal("trunk")
+                                .executes(context -> loadTest(context, List.of(PipeLoadTest.Scenario.TRUNK)))))));
+    }
+
+    private static int loadTest(CommandContext<ServerCommandSource> context, List<PipeLoadTest.Scenario> scenarios) {
+        ServerCommandSource source = context.getSource();
+        if (!PipeLoadTest.start(source.getServer(), source, scenarios, false)) {
+            source.sendError(new LiteralText("A pipe load test is already running"));
+            return 0;
+        }
+        source.sendFeedback(new LiteralText("Running pipe load tests, this takes about " + scenarios.size() * 35 + " seconds..."), true);
+        return 1;
+    }
+}
@@ -18,9 +18,29 @@ public class Config {
     @SerializedName("max_render_pipe_length")
     public int maxRenderPipeLength;
 
+    @Description("The most items that will be rendered inside a single pipe at once.")
+    @SerializedName("max_rendered_items_per_pipe")
+    public int maxRenderedItemsPerPipe;
+
+    @Description("How many microseconds pipes may spend searching for routes each tick, across the whole server. Searches over it wait for the next tick. 0 for no limit.")
+    @SerializedName("routing_budget_micros")
+    public int routingBudgetMicros;
+
+    @Description("How many threads plan routes off the server thread. Items wait in their pipe until their route is planned. 0 to plan routes on the server thread.")
+    @SerializedName("async_routing_threads")
+    public int asyncRoutingThreads;
+
+    @Description("Whether to keep track of what pipes are doing for /pipe metrics and JMX. This costs a little time every pipe tick.")
+    @SerializedName("pipe_metrics")
+    public boolean pipeMetrics;
+
     public Config() {
         renderItems = true;
         maxItemRenderDistance = 24;
         maxRenderPipeLength = 64;
+        maxRenderedItemsPerPipe = 16;
+        routingBudgetMicros = 5000;
+        asyncRoutingThreads = 0;
+        pipeMetrics = false;
     }
 }
@@ -45,7 +45,7 @@ public class ItemRegistry {
         WrenchItem.addNoShiftTickAction((World world, BlockHitResult hitResult, Block block, PlayerEntity player, BlockState state, BlockEntity blockEntity) -> {
             boolean wrenched;
             if (block instanceof PipeBlock && blockEntity instanceof PipeEntity) {
-                wrenched = ((PipeEntity) blockEntity).wrenched.get(hitResult.getSide());
+                wrenched = ((PipeEntity) blockEntity).isWrenched(hitResult.getSide());
 
                 player.sendMessage(new TranslatableText("item.pipe.wrench.1").append(" (" + hitResult.getSide().name() + "): " + wrenched), true);
             }
@@ -2,22 +2,40 @@ package net.flytre.pipe;
 
 import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.client.itemgroup.FabricItemGroupBuilder;
+import net.fabricmc.fabric.api.command.v1.CommandRegistrationCallback;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
 import net.fabricmc.fabric.api.object.builder.v1.block.FabricBlockSettings;
 import net.fabricmc.fabric.api.object.builder.v1.block.entity.FabricBlockEntityTypeBuilder;
 import net.fabricmc.fabric.api.screenhandler.v1.ScreenHandlerRegistry;
 import net.flytre.flytre_lib.api.base.util.PacketUtils;
 import net.flytre.flytre_lib.api.config.ConfigHandler;
 import net.flytre.flytre_lib.api.config.ConfigRegistry;
+import net.flytre.pipe.command.PipeCommand;
+import net.flytre.pipe.metrics.PipeHeatmap;
+import net.flytre.pipe.metrics.PipeMetrics;
+import net.flytre.pipe.metrics.PipeMetricsMXBean;
+import net.flytre.pipe.metrics.PipeProfiler;
+import net.flytre.pipe.metrics.PipeTraceRecorder;
+import net.flytre.pipe.network.PipeHeatmapS2CPacket;
+import net.flytre.pipe.network.PipeItemDeltaS2CPacket;
 import net.flytre.pipe.network.PipeModeC2SPacket;
+import net.flytre.pipe.network.StackDictionary;
 import net.flytre.pipe.pipe.PipeBlock;
+import net.flytre.pipe.pipe.PipeDirtyTracker;
 import net.flytre.pipe.pipe.PipeEntity;
+import net.flytre.pipe.pipe.PipeNetworkState;
 import net.flytre.pipe.pipe.PipeHandler;
+import net.flytre.pipe.pipe.PipeRoutePlanner;
+import net.flytre.pipe.pipe.RoutingBudget;
 import net.minecraft.block.Block;
 import net.minecraft.block.Material;
 import net.minecraft.block.entity.BlockEntityType;
 import net.minecraft.item.ItemGroup;
 import net.minecraft.item.ItemStack;
 import net.minecraft.screen.ScreenHandlerType;
+import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.Identifier;
 import net.minecraft.util.registry.Registry;
 
@@ -45,6 +63,36 @@ public class Pipe implements ModInitializer {
         ItemRegistry.init();
         ITEM_PIPE_SCREEN_HANDLER = ScreenHandlerRegistry.registerExtended(new Identifier("pipe", "item_pipe"), PipeHandler::new);
         PacketUtils.registerC2SPacket(PipeModeC2SPacket.class, PipeModeC2SPacket::new);
+        PacketUtils.registerS2CPacket(PipeItemDeltaS2CPacket.class, PipeItemDeltaS2CPacket::new);
+        PacketUtils.registerS2CPacket(PipeHeatmapS2CPacket.class, PipeHeatmapS2CPacket::new);
+        ServerTickEvents.END_SERVER_TICK.register(server -> {
+            PipeDirtyTracker.flush();
+            PipeMetrics.endTick();
+            RoutingBudget.endTick();
+            PipeRoutePlanner.endTick();
+            PipeProfiler.endTick(server);
+            PipeHeatmap.endTick(server);
+            PipeTraceRecorder.endTick(server);
+        });
+        ServerLifecycleEvents.SERVER_STARTED.register(server -> PipeMetricsMXBean.register());
+        ServerLifecycleEvents.SERVER_STOPPED.register(server -> {
+            PipeMetricsMXBean.unregister();
+            PipeMetrics.clear();
+            PipeHeatmap.clear();
+            PipeProfiler.clear();
+            PipeTraceRecorder.clear();
+            RoutingBudget.clear();
+            PipeRoutePlanner.clear();
+        });
+        CommandRegistrationCallback.EVENT.register((dispatcher, dedicated) -> PipeCommand.register(dispatcher));
+        ServerLifecycleEvents.SERVER_STOPPING.register(server -> {
+            for (ServerWorld world : server.getWorlds())
+                PipeNetworkState.get(world).collectRoutes(world);
+        });
+        ServerPlayConnectionEvents.DISCONNECT.register((handler, server) -> {
+            StackDictionary.remove(handler);
+            PipeHeatmap.remove(handler);
+        });
         ConfigRegistry.registerServerConfig(PIPE_CONFIG);
     }
 }
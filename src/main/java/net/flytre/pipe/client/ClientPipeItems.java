@@ -0,0 +1,52 @@
+package net.flytre.pipe.client;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+import net.flytre.pipe.Pipe;
+import net.flytre.pipe.pipe.PipeEntity;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.entity.player.PlayerEntity;
+import net.minecraft.util.math.BlockPos;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps track of which pipe each item is in on the client. Since the client moves items between pipes by itself, an item
+ * may be a pipe ahead of or behind where the server thinks it is when a correction for it arrives.
+ */
+@Environment(EnvType.CLIENT)
+public final class ClientPipeItems {
+
+    private static final Int2ObjectMap<PipeEntity> LOCATIONS = new Int2ObjectOpenHashMap<>();
+
+    private ClientPipeItems() {
+    }
+
+    public static @Nullable PipeEntity get(int id) {
+        return LOCATIONS.get(id);
+    }
+
+    public static void put(int id, PipeEntity pipe) {
+        LOCATIONS.put(id, pipe);
+    }
+
+    public static void remove(int id, PipeEntity pipe) {
+        LOCATIONS.remove(id, pipe);
+    }
+
+    /**
+     * Whether a pipe is close enough to the player for its items to be moved on the client
+     */
+    public static boolean isInTickRange(BlockPos pos) {
+        PlayerEntity player = MinecraftClient.getInstance().player;
+        if (player == null)
+            return false;
+        double distance = Pipe.PIPE_CONFIG.getConfig().maxItemRenderDistance + 8;
+        return player.squaredDistanceTo(pos.getX() + 0.5, pos.getY() + 0.5, pos.getZ() + 0.5) < distance * distance;
+    }
+
+    public static void clear() {
+        LOCATIONS.clear();
+    }
+}
@@ -4,9 +4,12 @@ import net.fabricmc.api.ClientModInitializer;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
 import net.fabricmc.fabric.api.blockrenderlayer.v1.BlockRenderLayerMap;
+import net.fabricmc.fabric.api.client.networking.v1.ClientPlayConnectionEvents;
 import net.fabricmc.fabric.api.client.rendering.v1.BlockEntityRendererRegistry;
+import net.fabricmc.fabric.api.client.rendering.v1.WorldRenderEvents;
 import net.fabricmc.fabric.api.client.screenhandler.v1.ScreenRegistry;
 import net.flytre.pipe.Pipe;
+import net.flytre.pipe.network.StackDictionary;
 import net.minecraft.client.render.RenderLayer;
 
 @Environment(EnvType.CLIENT)
@@ -16,6 +19,18 @@ public class PipeClient implements ClientModInitializer {
         BlockRenderLayerMap.INSTANCE.putBlock(Pipe.ITEM_PIPE, RenderLayer.getCutout());
         BlockRenderLayerMap.INSTANCE.putBlock(Pipe.FAST_PIPE, RenderLayer.getCutout());
         BlockEntityRendererRegistry.register(Pipe.ITEM_PIPE_BLOCK_ENTITY, PipeRenderer::new);
+        WorldRenderEvents.AFTER_SETUP.register(PipeItemBatch::setup);
+        WorldRenderEvents.BEFORE_BLOCK_OUTLINE.register((context, hitResult) -> {
+            PipeItemBatch.flush(context);
+            return true;
+        });
+        WorldRenderEvents.LAST.register(PipeItemBatch::flushLate);
+        WorldRenderEvents.LAST.register(PipeHeatmapRenderer::render);
         ScreenRegistry.register(Pipe.ITEM_PIPE_SCREEN_HANDLER, PipeScreen::new);
+        ClientPlayConnectionEvents.DISCONNECT.register((handler, client) -> {
+            ClientPipeItems.clear();
+            StackDictionary.clearReceived();
+            PipeHeatmapRenderer.clear();
+        });
     }
 }
@@ -0,0 +1,76 @@
+package net.flytre.pipe.client;
+
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+import net.fabricmc.fabric.api.client.rendering.v1.WorldRenderContext;
+import net.flytre.pipe.network.PipeHeatmapS2CPacket;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.render.RenderLayer;
+import net.minecraft.client.render.VertexConsumer;
+import net.minecraft.client.render.VertexConsumerProvider;
+import net.minecraft.client.render.WorldRenderer;
+import net.minecraft.client.util.math.MatrixStack;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Box;
+import net.minecraft.util.math.Vec3d;
+
+/**
+ * Draws the pipe heatmap sent by the server (see PipeHeatmap): every pipe items pass through gets an outline coloured
+ * from cyan for the quietest to red for the busiest pipe in view, pipes with stuck items get a magenta outline, and
+ * destinations that turned items away because they were full get a red outline around the whole block.
+ * <p>
+ * Busyness is on a log scale, so a few very busy trunk pipes don't wash out the rest of the network.
+ */
+@Environment(EnvType.CLIENT)
+public final class PipeHeatmapRenderer {
+
+    private static boolean enabled;
+    private static long[] positions = new long[0];
+    private static float[] rates = new float[0];
+    private static byte[] flags = new byte[0];
+    private static float maxRate;
+
+    private PipeHeatmapRenderer() {
+    }
+
+    public static void update(boolean enabled, long[] positions, float[] rates, byte[] flags) {
+        PipeHeatmapRenderer.enabled = enabled;
+        PipeHeatmapRenderer.positions = positions;
+        PipeHeatmapRenderer.rates = rates;
+        PipeHeatmapRenderer.flags = flags;
+        maxRate = 1;
+        for (float rate : rates)
+            maxRate = Math.max(maxRate, rate);
+    }
+
+    public static void clear() {
+        update(false, new long[0], new float[0], new byte[0]);
+    }
+
+    public static void render(WorldRenderContext context) {
+        if (!enabled || positions.length == 0)
+            return;
+
+        VertexConsumerProvider.Immediate consumers = MinecraftClient.getInstance().getBufferBuilders().getEntityVertexConsumers();
+        VertexConsumer lines = consumers.getBuffer(RenderLayer.getLines());
+        MatrixStack matrices = context.matrixStack();
+        Vec3d camera = context.camera().getPos();
+        matrices.push();
+        matrices.translate(-camera.x, -camera.y, -camera.z);
+
+        for (int i = 0; i < positions.length; i++) {
+            Box box = new Box(BlockPos.fromLong(positions[i]));
+            if ((flags[i] & PipeHeatmapS2CPacket.SATURATED) != 0)
+                WorldRenderer.drawBox(matrices, lines, box.expand(0.01), 1, 0, 0, 1);
+            if (rates[i] >= 0.05f) {
+                float heat = (float) (Math.log1p(rates[i]) / Math.log1p(maxRate));
+                WorldRenderer.drawBox(matrices, lines, box.contract(0.34), Math.min(1, heat * 2), Math.min(1, 2 - heat * 2), Math.max(0, 1 - heat * 4), 1);
+            }
+            if ((flags[i] & PipeHeatmapS2CPacket.STUCK) != 0)
+                WorldRenderer.drawBox(matrices, lines, box.contract(0.28), 1, 0, 1, 1);
+        }
+
+        matrices.pop();
+        consumers.draw(RenderLayer.getLines());
+    }
+}
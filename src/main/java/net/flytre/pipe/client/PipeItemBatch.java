@@ -0,0 +1,119 @@
+package net.flytre.pipe.client;
+
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+import net.fabricmc.fabric.api.client.rendering.v1.WorldRenderContext;
+import net.flytre.pipe.Pipe;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.render.Frustum;
+import net.minecraft.client.render.VertexConsumerProvider;
+import net.minecraft.client.render.item.ItemRenderer;
+import net.minecraft.client.render.model.BakedModel;
+import net.minecraft.client.render.model.json.ModelOverrideList;
+import net.minecraft.client.render.model.json.ModelTransformation;
+import net.minecraft.client.util.math.MatrixStack;
+import net.minecraft.item.ItemStack;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Box;
+import net.minecraft.util.math.Matrix3f;
+import net.minecraft.util.math.Matrix4f;
+import net.minecraft.util.math.Vec3d;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the items rendered in every visible pipe during a frame and renders them together once all block entities
+ * are done, grouped by baked model. Each model is only looked up once per item type instead of once per item, and items
+ * sharing a model are submitted back to back so they end up in the same buffers.
+ */
+@Environment(EnvType.CLIENT)
+public final class PipeItemBatch {
+
+    private static final Map<BakedModel, List<Instance>> BATCHES = new Reference2ObjectOpenHashMap<>();
+    private static @Nullable Frustum frustum;
+
+    private PipeItemBatch() {
+    }
+
+    /**
+     * Keeps the frustum of the frame being rendered, used to cull pipes before working out where their items are
+     */
+    public static void setup(WorldRenderContext context) {
+        frustum = context.frustum();
+    }
+
+    /**
+     * Whether the items in the pipe at a position could be seen this frame: it has to be within the item render distance
+     * of the camera and inside the view frustum.
+     */
+    public static boolean isVisible(BlockPos pos) {
+        Vec3d camera = MinecraftClient.getInstance().gameRenderer.getCamera().getPos();
+        double distance = Pipe.PIPE_CONFIG.getConfig().maxItemRenderDistance;
+        if (camera.squaredDistanceTo(pos.getX() + 0.5, pos.getY() + 0.5, pos.getZ() + 0.5) > distance * distance)
+            return false;
+        return frustum == null || frustum.isVisible(new Box(pos));
+    }
+
+    /**
+     * Queues an item to be rendered with the current transformation of the matrix stack
+     */
+    public static void add(ItemStack stack, MatrixStack matrices, int light, int overlay) {
+        MinecraftClient client = MinecraftClient.getInstance();
+        ItemRenderer itemRenderer = client.getItemRenderer();
+        BakedModel model = itemRenderer.getModels().getModel(stack);
+        //Only items with overrides (compasses, crossbows...) need to be resolved per stack
+        if (model.getOverrides() != ModelOverrideList.EMPTY)
+            model = itemRenderer.getHeldItemModel(stack, client.world, null, 0);
+
+        MatrixStack.Entry entry = matrices.peek();
+        Instance instance = new Instance(stack, entry.getPositionMatrix().copy(), entry.getNormalMatrix().copy(), light, overlay);
+        BATCHES.computeIfAbsent(model, k -> new ArrayList<>()).add(instance);
+    }
+
+    /**
+     * Renders everything queued this frame
+     */
+    public static void flush(WorldRenderContext context) {
+        if (BATCHES.isEmpty())
+            return;
+
+        VertexConsumerProvider consumers = context.consumers();
+        if (consumers == null)
+            consumers = MinecraftClient.getInstance().getBufferBuilders().getEntityVertexConsumers();
+        ItemRenderer itemRenderer = MinecraftClient.getInstance().getItemRenderer();
+        MatrixStack matrices = new MatrixStack();
+
+        for (Map.Entry<BakedModel, List<Instance>> batch : BATCHES.entrySet()) {
+            BakedModel model = batch.getKey();
+            for (Instance instance : batch.getValue()) {
+                MatrixStack.Entry entry = matrices.peek();
+                entry.getPositionMatrix().load(instance.position());
+                entry.getNormalMatrix().load(instance.normal());
+                itemRenderer.renderItem(instance.stack(), ModelTransformation.Mode.GROUND, false, matrices, consumers, instance.light(), instance.overlay(), model);
+            }
+        }
+        BATCHES.clear();
+    }
+
+    /**
+     * Used after the world has finished rendering, in case the block outline stage was skipped this frame.
+     * The buffers have already been drawn by then, so they're drawn again here.
+     */
+    public static void flushLate(WorldRenderContext context) {
+        if (BATCHES.isEmpty())
+            return;
+        flush(context);
+        if (context.consumers() instanceof VertexConsumerProvider.Immediate immediate)
+            immediate.draw();
+        else
+            MinecraftClient.getInstance().getBufferBuilders().getEntityVertexConsumers().draw();
+    }
+
+    private record Instance(ItemStack stack, Matrix4f position, Matrix3f normal, int light, int overlay) {
+
+    }
+}
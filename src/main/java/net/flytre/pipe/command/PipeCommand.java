@@ -0,0 +1,153 @@
+package net.flytre.pipe.command;
+
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.arguments.IntegerArgumentType;
+import com.mojang.brigadier.context.CommandContext;
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import net.flytre.pipe.metrics.LatencyHistogram;
+import net.flytre.pipe.metrics.PipeHeatmap;
+import net.flytre.pipe.metrics.PipeCounters;
+import net.flytre.pipe.metrics.PipeMetrics;
+import net.flytre.pipe.metrics.PipeProfiler;
+import net.flytre.pipe.metrics.PipeTraceRecorder;
+import net.minecraft.server.command.CommandManager;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.text.LiteralText;
+import net.minecraft.util.math.BlockPos;
+
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Admin commands for looking into what pipes are costing the server, all under /pipe and limited to operators.
+ * <ul>
+ *     <li>/pipe metrics - totals for every world</li>
+ *     <li>/pipe metrics networks [count] - the networks taking the most tick time</li>
+ *     <li>/pipe profile &lt;seconds&gt; - profiles pipes for a while and reports the most costly networks and pipes</li>
+ *     <li>/pipe heatmap on|off - colours the pipes around you by how many items pass through them</li>
+ *     <li>/pipe trace start [radius] | stop - records the pipes around you for replaying in the simulator</li>
+ * </ul>
+ */
+public final class PipeCommand {
+
+    private PipeCommand() {
+    }
+
+    public static void register(CommandDispatcher<ServerCommandSource> dispatcher) {
+        dispatcher.register(CommandManager.literal("pipe")
+                .requires(source -> source.hasPermissionLevel(2))
+                .then(CommandManager.literal("metrics")
+                        .executes(PipeCommand::worldMetrics)
+                        .then(CommandManager.literal("networks")
+                                .executes(context -> networkMetrics(context, 10))
+                                .then(CommandManager.argument("count", IntegerArgumentType.integer(1, 100))
+                                        .executes(context -> networkMetrics(context, IntegerArgumentType.getInteger(context, "count"))))))
+                .then(CommandManager.literal("profile")
+                        .then(CommandManager.argument("seconds", IntegerArgumentType.integer(1, 300))
+                                .executes(context -> profile(context, IntegerArgumentType.getInteger(context, "seconds")))))
+                .then(CommandManager.literal("heatmap")
+                        .then(CommandManager.literal("on")
+                                .executes(context -> heatmap(context, true)))
+                        .then(CommandManager.literal("off")
+                                .executes(context -> heatmap(context, false))))
+                .then(CommandManager.literal("trace")
+                        .then(CommandManager.literal("start")
+                                .executes(context -> startTrace(context, PipeTraceRecorder.DEFAULT_RADIUS))
+                                .then(CommandManager.argument("radius", IntegerArgumentType.integer(1, 256))
+                                        .executes(context -> startTrace(context, IntegerArgumentType.getInteger(context, "radius")))))
+                        .then(CommandManager.literal("stop")
+                                .executes(PipeCommand::stopTrace))));
+    }
+
+    private static int startTrace(CommandContext<ServerCommandSource> context, int radius) {
+        ServerCommandSource source = context.getSource();
+        if (!PipeTraceRecorder.start(source, radius)) {
+            source.sendError(new LiteralText("A pipe trace is already running"));
+            return 0;
+        }
+        source.sendFeedback(new LiteralText("Recording a pipe trace within " + radius + " blocks, stop it with /pipe trace stop"), true);
+        return 1;
+    }
+
+    private static int stopTrace(CommandContext<ServerCommandSource> context) {
+        ServerCommandSource source = context.getSource();
+        if (!PipeTraceRecorder.stop(source.getServer())) {
+            source.sendError(new LiteralText("No pipe trace is running"));
+            return 0;
+        }
+        return 1;
+    }
+
+    private static int heatmap(CommandContext<ServerCommandSource> context, boolean on) throws CommandSyntaxException {
+        ServerCommandSource source = context.getSource();
+        PipeHeatmap.setViewing(source.getPlayer(), on);
+        source.sendFeedback(new LiteralText(on ? "Showing pipe throughput within " + PipeHeatmap.RADIUS + " blocks" : "Pipe heatmap hidden"), false);
+        return 1;
+    }
+
+    private static int profile(CommandContext<ServerCommandSource> context, int seconds) {
+        ServerCommandSource source = context.getSource();
+        if (!PipeProfiler.start(source, seconds)) {
+            source.sendError(new LiteralText("A pipe profile is already running"));
+            return 0;
+        }
+        source.sendFeedback(new LiteralText("Profiling pipes for " + seconds + " seconds..."), true);
+        return 1;
+    }
+
+    private static int worldMetrics(CommandContext<ServerCommandSource> context) {
+        ServerCommandSource source = context.getSource();
+        if (!checkMetricsEnabled(source))
+            return 0;
+        int worlds = 0;
+        for (ServerWorld world : source.getServer().getWorlds()) {
+            PipeCounters counters = PipeMetrics.getWorld(world);
+            if (counters == null)
+                continue;
+            worlds++;
+            source.sendFeedback(new LiteralText(world.getRegistryKey().getValue() + ":"), false);
+            sendCounters(source, counters);
+        }
+        if (worlds == 0)
+            source.sendFeedback(new LiteralText("No pipes have ticked yet"), false);
+        return worlds;
+    }
+
+    private static int networkMetrics(CommandContext<ServerCommandSource> context, int count) {
+        ServerCommandSource source = context.getSource();
+        if (!checkMetricsEnabled(source))
+            return 0;
+        List<PipeMetrics.NetworkCounters> networks = PipeMetrics.getNetworks();
+        networks.sort(Comparator.comparingLong((PipeMetrics.NetworkCounters counters) -> counters.tick.getMean()).reversed());
+        if (networks.isEmpty())
+            source.sendFeedback(new LiteralText("No pipe networks have ticked in the last minute"), false);
+        for (int i = 0; i < Math.min(count, networks.size()); i++) {
+            PipeMetrics.NetworkCounters counters = networks.get(i);
+            BlockPos anchor = counters.getAnchor();
+            source.sendFeedback(new LiteralText(String.format("#%d: %d pipes at %d %d %d in %s", i + 1, counters.getSize(), anchor.getX(), anchor.getY(), anchor.getZ(), counters.world.getRegistryKey().getValue())), false);
+            sendCounters(source, counters);
+        }
+        return networks.size();
+    }
+
+    private static boolean checkMetricsEnabled(ServerCommandSource source) {
+        if (PipeMetrics.isEnabled())
+            return true;
+        source.sendError(new LiteralText("Pipe metrics are off, set pipe_metrics in the pipe config to collect them"));
+        return false;
+    }
+
+    private static void sendCounters(ServerCommandSource source, PipeCounters counters) {
+        source.sendFeedback(new LiteralText(String.format("  items: %d in flight (%d stuck), %.1f/s extracted, %.1f/s delivered, %d got stuck",
+                counters.inFlight, counters.stuckNow, counters.extractedRate.perSecond(10), counters.deliveredRate.perSecond(10), counters.itemsStuck)), false);
+        source.sendFeedback(new LiteralText(String.format("  routing: %d searches, %.1f nodes each, %s, cache hit rate %.1f%%, %d put off",
+                counters.routeSearches, counters.routeSearches == 0 ? 0 : counters.nodesVisited / (double) counters.routeSearches, formatLatency(counters.routing), counters.getCacheHitRate() * 100, counters.routesDeferred)), false);
+        source.sendFeedback(new LiteralText(String.format("  tick: %s; sync: %d deltas, %d packets",
+                formatLatency(counters.tick), counters.syncDeltas, counters.syncPackets)), false);
+    }
+
+    private static String formatLatency(LatencyHistogram histogram) {
+        return String.format("mean %.1fus p50 %.1fus p99 %.1fus max %.1fus", histogram.getMean() / 1000.0, histogram.percentile(0.5) / 1000.0, histogram.percentile(0.99) / 1000.0, histogram.getMax() / 1000.0);
+    }
+}
@@ -0,0 +1,57 @@
+package net.flytre.pipe.metrics;
+
+/**
+ * Everything tracked about the pipes in a single scope, either a network or a whole world.
+ * Only touched from the server thread.
+ */
+public class PipeCounters {
+
+    public long routeSearches;
+    public long nodesVisited;
+    public long cacheHits;
+    public long cacheMisses;
+    public long routesDeferred;
+    public long itemsExtracted;
+    public long itemsDelivered;
+    public long itemsStuck;
+    public long syncDeltas;
+    public long syncPackets;
+
+    /**
+     * Items in pipes and how many of them are stuck, sampled once a second
+     */
+    public int inFlight;
+    public int stuckNow;
+
+    public final RollingRate extractedRate = new RollingRate();
+    public final RollingRate deliveredRate = new RollingRate();
+
+    /**
+     * How long route searches take, and how long ticking all the pipes in the scope takes per server tick
+     */
+    public final LatencyHistogram routing = new LatencyHistogram();
+    public final LatencyHistogram tick = new LatencyHistogram();
+
+    private long tickNanos;
+
+    void addTickTime(long nanos) {
+        tickNanos += nanos;
+    }
+
+    void endTick() {
+        if (tickNanos > 0) {
+            tick.record(tickNanos);
+            tickNanos = 0;
+        }
+    }
+
+    void endSecond() {
+        extractedRate.roll();
+        deliveredRate.roll();
+    }
+
+    public double getCacheHitRate() {
+        long lookups = cacheHits + cacheMisses;
+        return lookups == 0 ? 0 : cacheHits / (double) lookups;
+    }
+}
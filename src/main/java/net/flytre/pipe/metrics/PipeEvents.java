@@ -0,0 +1,159 @@
+package net.flytre.pipe.metrics;
+
+import io.netty.buffer.Unpooled;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import net.flytre.pipe.network.PipeItemDeltaS2CPacket;
+import net.minecraft.item.ItemStack;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.registry.Registry;
+
+/**
+ * Java Flight Recorder events for what pipes do, so pipe behaviour can be lined up with GC pauses and tick spikes in a
+ * recording. They're all in the "Pipe" category and cost next to nothing unless a recording has them enabled.
+ * Stack traces are left out, since they'd always point at the same few places.
+ */
+public final class PipeEvents {
+
+    private PipeEvents() {
+    }
+
+    public static void cacheLookup(BlockPos pipe, boolean hit) {
+        RouteCacheLookup event = new RouteCacheLookup();
+        if (event.isEnabled()) {
+            event.setPipe(pipe);
+            event.hit = hit;
+            event.commit();
+        }
+    }
+
+    public static void itemDelivered(BlockPos pipe, ItemStack stack, BlockPos destination) {
+        ItemDelivered event = new ItemDelivered();
+        if (event.isEnabled()) {
+            event.setPipe(pipe);
+            event.item = Registry.ITEM.getId(stack.getItem()).toString();
+            event.destination = destination.toShortString();
+            event.commit();
+        }
+    }
+
+    public static void itemStuck(BlockPos pipe, ItemStack stack) {
+        ItemStuck event = new ItemStuck();
+        if (event.isEnabled()) {
+            event.setPipe(pipe);
+            event.item = Registry.ITEM.getId(stack.getItem()).toString();
+            event.commit();
+        }
+    }
+
+    /**
+     * The size of the packet is measured by writing it to a scratch buffer, so only when the event is enabled
+     */
+    public static void syncPacketSent(ChunkPos chunk, PipeItemDeltaS2CPacket packet, ServerPlayerEntity player) {
+        SyncPacketSent event = new SyncPacketSent();
+        if (event.isEnabled()) {
+            event.chunkX = chunk.x;
+            event.chunkZ = chunk.z;
+            event.pipes = packet.getUpdates().size();
+            for (PipeItemDeltaS2CPacket.PipeDeltas update : packet.getUpdates())
+                event.deltas += update.deltas().size();
+            PacketByteBuf buf = new PacketByteBuf(Unpooled.buffer());
+            packet.write(buf);
+            event.bytes = buf.readableBytes();
+            buf.release();
+            event.player = player.getEntityName();
+            event.commit();
+        }
+    }
+
+    @Category("Pipe")
+    @StackTrace(false)
+    abstract static class PipeEvent extends Event {
+        @Label("Pipe X")
+        int x;
+        @Label("Pipe Y")
+        int y;
+        @Label("Pipe Z")
+        int z;
+
+        public void setPipe(BlockPos pos) {
+            x = pos.getX();
+            y = pos.getY();
+            z = pos.getZ();
+        }
+    }
+
+    @Name("net.flytre.pipe.RouteComputed")
+    @Label("Pipe Route Computed")
+    @Description("A pipe searched its network for where an item can go")
+    public static class RouteComputed extends PipeEvent {
+        @Label("Nodes Visited")
+        public int nodes;
+        @Label("Routes Found")
+        public int routes;
+        @Label("Nearest Only")
+        public boolean one;
+        @Label("Item")
+        public String item;
+    }
+
+    @Name("net.flytre.pipe.RouteCacheLookup")
+    @Label("Pipe Route Cache Lookup")
+    public static class RouteCacheLookup extends PipeEvent {
+        @Label("Hit")
+        public boolean hit;
+    }
+
+    @Name("net.flytre.pipe.ItemDelivered")
+    @Label("Pipe Item Delivered")
+    public static class ItemDelivered extends PipeEvent {
+        @Label("Item")
+        public String item;
+        @Label("Destination")
+        public String destination;
+    }
+
+    @Name("net.flytre.pipe.ItemStuck")
+    @Label("Pipe Item Stuck")
+    @Description("An item couldn't be delivered and nowhere else would take it")
+    public static class ItemStuck extends PipeEvent {
+        @Label("Item")
+        public String item;
+    }
+
+    @Name("net.flytre.pipe.NetworkRebuilt")
+    @Label("Pipe Network Rebuilt")
+    public static class NetworkRebuilt extends PipeEvent {
+        @Label("Pipes")
+        public int size;
+    }
+
+    @Name("net.flytre.pipe.SyncPacketSent")
+    @Label("Pipe Sync Packet Sent")
+    @Description("The item changes of the pipes in a chunk were sent to a player")
+    @Category("Pipe")
+    @StackTrace(false)
+    public static class SyncPacketSent extends Event {
+        @Label("Chunk X")
+        public int chunkX;
+        @Label("Chunk Z")
+        public int chunkZ;
+        @Label("Pipes")
+        public int pipes;
+        @Label("Deltas")
+        public int deltas;
+        @Label("Size")
+        @DataAmount
+        public int bytes;
+        @Label("Player")
+        public String player;
+    }
+}
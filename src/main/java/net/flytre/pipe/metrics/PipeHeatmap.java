@@ -0,0 +1,161 @@
+package net.flytre.pipe.metrics;
+
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
+import net.flytre.pipe.network.PipeHeatmapS2CPacket;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.network.ServerPlayNetworkHandler;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Backs /pipe heatmap: counts the items entering every pipe and smooths them into items per second, and remembers
+ * which pipes had items get stuck and which destinations turned items away because they were full. Once a second
+ * everything within {@link #RADIUS} blocks of each player viewing the heatmap is sent to them, and the client colours
+ * the pipes with it (see PipeHeatmapRenderer).
+ * <p>
+ * Nothing is counted while nobody is viewing the heatmap.
+ */
+public final class PipeHeatmap {
+
+    public static final int RADIUS = 64;
+    private static final int MAX_ENTRIES = 8192;
+
+    /**
+     * How many seconds a pipe stays marked after an item gets stuck in it or a destination stays marked after it was full
+     */
+    private static final byte MARKER_SECONDS = 2;
+
+    private static final Set<UUID> VIEWERS = new HashSet<>();
+    private static final Map<ServerWorld, Long2ObjectOpenHashMap<Traffic>> WORLDS = new Reference2ObjectOpenHashMap<>();
+
+    private PipeHeatmap() {
+    }
+
+    public static void setViewing(ServerPlayerEntity player, boolean viewing) {
+        if (viewing)
+            VIEWERS.add(player.getUuid());
+        else if (VIEWERS.remove(player.getUuid()))
+            player.networkHandler.sendPacket(PipeHeatmapS2CPacket.disabled());
+        if (VIEWERS.isEmpty())
+            WORLDS.clear();
+    }
+
+    public static void remove(ServerPlayNetworkHandler handler) {
+        VIEWERS.remove(handler.getPlayer().getUuid());
+        if (VIEWERS.isEmpty())
+            WORLDS.clear();
+    }
+
+    private static @Nullable Traffic traffic(World world, BlockPos pos) {
+        if (VIEWERS.isEmpty() || !(world instanceof ServerWorld serverWorld))
+            return null;
+        return WORLDS.computeIfAbsent(serverWorld, k -> new Long2ObjectOpenHashMap<>()).computeIfAbsent(pos.asLong(), k -> new Traffic());
+    }
+
+    /**
+     * An item was extracted into or moved on into a pipe
+     */
+    public static void itemEntered(World world, BlockPos pipe) {
+        Traffic traffic = traffic(world, pipe);
+        if (traffic != null)
+            traffic.count++;
+    }
+
+    public static void itemStuck(World world, BlockPos pipe) {
+        Traffic traffic = traffic(world, pipe);
+        if (traffic != null)
+            traffic.stuck = MARKER_SECONDS;
+    }
+
+    /**
+     * An item reached a destination that couldn't take it
+     */
+    public static void destinationFull(World world, BlockPos destination) {
+        Traffic traffic = traffic(world, destination);
+        if (traffic != null)
+            traffic.saturated = MARKER_SECONDS;
+    }
+
+    /**
+     * Called at the end of every server tick, updates the rates and sends them to viewers once a second
+     */
+    public static void endTick(MinecraftServer server) {
+        if (VIEWERS.isEmpty() || server.getTicks() % 20 != 0)
+            return;
+
+        for (Long2ObjectOpenHashMap<Traffic> pipes : WORLDS.values()) {
+            for (ObjectIterator<Long2ObjectMap.Entry<Traffic>> iterator = pipes.long2ObjectEntrySet().fastIterator(); iterator.hasNext(); ) {
+                Traffic traffic = iterator.next().getValue();
+                traffic.roll();
+                if (traffic.rate < 0.05f && traffic.flags == 0)
+                    iterator.remove();
+            }
+        }
+
+        for (UUID id : VIEWERS) {
+            ServerPlayerEntity player = server.getPlayerManager().getPlayer(id);
+            if (player != null)
+                send(player);
+        }
+    }
+
+    private static void send(ServerPlayerEntity player) {
+        LongArrayList positions = new LongArrayList();
+        FloatArrayList rates = new FloatArrayList();
+        ByteArrayList flags = new ByteArrayList();
+        Long2ObjectOpenHashMap<Traffic> pipes = WORLDS.get(player.getWorld());
+        if (pipes != null) {
+            for (Long2ObjectMap.Entry<Traffic> entry : pipes.long2ObjectEntrySet()) {
+                BlockPos pos = BlockPos.fromLong(entry.getLongKey());
+                if (player.squaredDistanceTo(pos.getX() + 0.5, pos.getY() + 0.5, pos.getZ() + 0.5) > RADIUS * RADIUS)
+                    continue;
+                positions.add(entry.getLongKey());
+                rates.add(entry.getValue().rate);
+                flags.add(entry.getValue().flags);
+                if (positions.size() >= MAX_ENTRIES)
+                    break;
+            }
+        }
+        player.networkHandler.sendPacket(new PipeHeatmapS2CPacket(true, positions.toLongArray(), rates.toFloatArray(), flags.toByteArray()));
+    }
+
+    public static void clear() {
+        VIEWERS.clear();
+        WORLDS.clear();
+    }
+
+    private static final class Traffic {
+        int count;
+        float rate;
+        byte stuck;
+        byte saturated;
+        byte flags;
+
+        /**
+         * Closes off the current second: the rate is smoothed over the last few seconds so a single item doesn't flash
+         */
+        void roll() {
+            rate = rate * 0.5f + count * 0.5f;
+            count = 0;
+            flags = (byte) ((stuck > 0 ? PipeHeatmapS2CPacket.STUCK : 0) | (saturated > 0 ? PipeHeatmapS2CPacket.SATURATED : 0));
+            if (stuck > 0)
+                stuck--;
+            if (saturated > 0)
+                saturated--;
+        }
+    }
+}
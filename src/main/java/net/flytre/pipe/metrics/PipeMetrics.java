@@ -0,0 +1,308 @@
+package net.flytre.pipe.metrics;
+
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
+import net.flytre.pipe.Pipe;
+import net.flytre.pipe.pipe.PipeEntity;
+import net.flytre.pipe.pipe.TimedPipeResult;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Keeps track of what pipes are doing and how much it costs, per network and per world. PipeEntity and
+ * ChunkHolderMixin report to it, and it can be read with /pipe metrics or over JMX (see {@link PipeMetricsMXBean}).
+ * <p>
+ * Networks are identified by the set of pipe positions that all pipes in a network share, so a network that gets
+ * rebuilt starts counting from zero. Networks that haven't ticked for a minute are forgotten.
+ * <p>
+ * Everything here costs time on every pipe tick, so it's only done while pipe_metrics is set in the config. Pipes check
+ * {@link #isEnabled()} before timing themselves, and the reporting methods do nothing while it's off.
+ */
+public final class PipeMetrics {
+
+    private static final Map<ServerWorld, PipeCounters> WORLDS = new Reference2ObjectOpenHashMap<>();
+    private static final Map<LongSet, NetworkCounters> NETWORKS = new Reference2ObjectOpenHashMap<>();
+
+    private static long ticks;
+    private static boolean enabled;
+    private static volatile Totals totals = Totals.EMPTY;
+
+    private PipeMetrics() {
+    }
+
+    /**
+     * Whether metrics are being collected, as of the end of the last tick
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    private static @Nullable PipeCounters world(World world) {
+        if (!enabled || !(world instanceof ServerWorld serverWorld))
+            return null;
+        return WORLDS.computeIfAbsent(serverWorld, k -> new PipeCounters());
+    }
+
+    private static @Nullable NetworkCounters network(World world, LongSet network) {
+        if (!(world instanceof ServerWorld serverWorld) || network.isEmpty())
+            return null;
+        NetworkCounters counters = NETWORKS.computeIfAbsent(network, k -> new NetworkCounters(serverWorld, network));
+        counters.lastActive = ticks;
+        return counters;
+    }
+
+    public static void routeSearch(World world, LongSet network, int nodes, long nanos) {
+        PipeCounters worldCounters = world(world);
+        if (worldCounters == null)
+            return;
+        worldCounters.routeSearches++;
+        worldCounters.nodesVisited += nodes;
+        worldCounters.routing.record(nanos);
+        PipeCounters networkCounters = network(world, network);
+        if (networkCounters != null) {
+            networkCounters.routeSearches++;
+            networkCounters.nodesVisited += nodes;
+            networkCounters.routing.record(nanos);
+        }
+    }
+
+    /**
+     * A route search was put off because the routing budget for the tick ran out
+     */
+    public static void routeDeferred(World world, LongSet network) {
+        PipeCounters worldCounters = world(world);
+        if (worldCounters == null)
+            return;
+        worldCounters.routesDeferred++;
+        PipeCounters networkCounters = network(world, network);
+        if (networkCounters != null)
+            networkCounters.routesDeferred++;
+    }
+
+    public static void cacheLookup(World world, LongSet network, boolean hit) {
+        PipeCounters worldCounters = world(world);
+        if (worldCounters == null)
+            return;
+        PipeCounters networkCounters = network(world, network);
+        if (hit) {
+            worldCounters.cacheHits++;
+            if (networkCounters != null)
+                networkCounters.cacheHits++;
+        } else {
+            worldCounters.cacheMisses++;
+            if (networkCounters != null)
+                networkCounters.cacheMisses++;
+        }
+    }
+
+    public static void extracted(World world, LongSet network) {
+        PipeCounters worldCounters = world(world);
+        if (worldCounters == null)
+            return;
+        worldCounters.itemsExtracted++;
+        worldCounters.extractedRate.add(1);
+        PipeCounters networkCounters = network(world, network);
+        if (networkCounters != null) {
+            networkCounters.itemsExtracted++;
+            networkCounters.extractedRate.add(1);
+        }
+    }
+
+    public static void delivered(World world, LongSet network) {
+        PipeCounters worldCounters = world(world);
+        if (worldCounters == null)
+            return;
+        worldCounters.itemsDelivered++;
+        worldCounters.deliveredRate.add(1);
+        PipeCounters networkCounters = network(world, network);
+        if (networkCounters != null) {
+            networkCounters.itemsDelivered++;
+            networkCounters.deliveredRate.add(1);
+        }
+    }
+
+    public static void stuck(World world, LongSet network) {
+        PipeCounters worldCounters = world(world);
+        if (worldCounters == null)
+            return;
+        worldCounters.itemsStuck++;
+        PipeCounters networkCounters = network(world, network);
+        if (networkCounters != null)
+            networkCounters.itemsStuck++;
+    }
+
+    public static void deltaQueued(World world, LongSet network) {
+        PipeCounters worldCounters = world(world);
+        if (worldCounters == null)
+            return;
+        worldCounters.syncDeltas++;
+        PipeCounters networkCounters = network(world, network);
+        if (networkCounters != null)
+            networkCounters.syncDeltas++;
+    }
+
+    /**
+     * Sync packets bundle every pipe in a chunk, so they're only counted per world
+     */
+    public static void packetSent(World world) {
+        PipeCounters worldCounters = world(world);
+        if (worldCounters != null)
+            worldCounters.syncPackets++;
+    }
+
+    public static void pipeTicked(World world, LongSet network, long nanos) {
+        PipeCounters worldCounters = world(world);
+        if (worldCounters == null)
+            return;
+        worldCounters.addTickTime(nanos);
+        NetworkCounters networkCounters = network(world, network);
+        if (networkCounters != null)
+            networkCounters.addTickTime(nanos);
+    }
+
+    /**
+     * Called at the end of every server tick
+     */
+    public static void endTick() {
+        boolean wasEnabled = enabled;
+        enabled = Pipe.PIPE_CONFIG.getConfig().pipeMetrics;
+        if (!enabled) {
+            if (wasEnabled)
+                clear();
+            return;
+        }
+
+        ticks++;
+        for (PipeCounters counters : WORLDS.values())
+            counters.endTick();
+        for (PipeCounters counters : NETWORKS.values())
+            counters.endTick();
+
+        if (ticks % 20 == 0) {
+            NETWORKS.values().removeIf(counters -> ticks - counters.lastActive > 1200);
+            sampleGauges();
+            for (PipeCounters counters : WORLDS.values())
+                counters.endSecond();
+            for (PipeCounters counters : NETWORKS.values())
+                counters.endSecond();
+            totals = Totals.of(WORLDS.values(), NETWORKS.size());
+        }
+    }
+
+    /**
+     * Counts the items in the loaded pipes of every network
+     */
+    private static void sampleGauges() {
+        for (PipeCounters counters : WORLDS.values()) {
+            counters.inFlight = 0;
+            counters.stuckNow = 0;
+        }
+        for (NetworkCounters counters : NETWORKS.values()) {
+            counters.inFlight = 0;
+            counters.stuckNow = 0;
+            for (LongIterator iterator = counters.network.iterator(); iterator.hasNext(); ) {
+                BlockPos pos = BlockPos.fromLong(iterator.nextLong());
+                if (!counters.world.isChunkLoaded(pos) || !(counters.world.getBlockEntity(pos) instanceof PipeEntity pipe))
+                    continue;
+                for (TimedPipeResult timed : pipe.getQueuedItems()) {
+                    counters.inFlight++;
+                    if (timed.isStuck())
+                        counters.stuckNow++;
+                }
+            }
+            PipeCounters worldCounters = WORLDS.get(counters.world);
+            if (worldCounters != null) {
+                worldCounters.inFlight += counters.inFlight;
+                worldCounters.stuckNow += counters.stuckNow;
+            }
+        }
+    }
+
+    public static void clear() {
+        WORLDS.clear();
+        NETWORKS.clear();
+        totals = Totals.EMPTY;
+    }
+
+    public static @Nullable PipeCounters getWorld(ServerWorld world) {
+        return WORLDS.get(world);
+    }
+
+    public static Collection<NetworkCounters> getNetworks() {
+        return new ArrayList<>(NETWORKS.values());
+    }
+
+    /**
+     * The totals across all worlds as of the last second, safe to read from any thread
+     */
+    public static Totals getTotals() {
+        return totals;
+    }
+
+    public static class NetworkCounters extends PipeCounters {
+        public final ServerWorld world;
+        public final LongSet network;
+        private long lastActive;
+
+        private NetworkCounters(ServerWorld world, LongSet network) {
+            this.world = world;
+            this.network = network;
+        }
+
+        /**
+         * The pipe with the smallest packed position, used to point at the network in reports
+         */
+        public BlockPos getAnchor() {
+            long min = Long.MAX_VALUE;
+            for (LongIterator iterator = network.iterator(); iterator.hasNext(); )
+                min = Math.min(min, iterator.nextLong());
+            return BlockPos.fromLong(min);
+        }
+
+        public int getSize() {
+            return network.size();
+        }
+    }
+
+    /**
+     * What's reported over JMX, added up over every world
+     */
+    public record Totals(long routeSearches, long nodesVisited, long cacheHits, long cacheMisses, long itemsExtracted,
+                         long itemsDelivered, long itemsStuck, long syncDeltas, long syncPackets, int inFlight,
+                         int stuckNow, double deliveredPerSecond, long routingP99, long tickP99, int networks) {
+
+        static final Totals EMPTY = new Totals(0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+
+        static Totals of(Collection<PipeCounters> worlds, int networks) {
+            long routeSearches = 0, nodesVisited = 0, cacheHits = 0, cacheMisses = 0, itemsExtracted = 0, itemsDelivered = 0;
+            long itemsStuck = 0, syncDeltas = 0, syncPackets = 0, routingP99 = 0, tickP99 = 0;
+            int inFlight = 0, stuckNow = 0;
+            double deliveredPerSecond = 0;
+            for (PipeCounters counters : worlds) {
+                routeSearches += counters.routeSearches;
+                nodesVisited += counters.nodesVisited;
+                cacheHits += counters.cacheHits;
+                cacheMisses += counters.cacheMisses;
+                itemsExtracted += counters.itemsExtracted;
+                itemsDelivered += counters.itemsDelivered;
+                itemsStuck += counters.itemsStuck;
+                syncDeltas += counters.syncDeltas;
+                syncPackets += counters.syncPackets;
+                inFlight += counters.inFlight;
+                stuckNow += counters.stuckNow;
+                deliveredPerSecond += counters.deliveredRate.perSecond(10);
+                routingP99 = Math.max(routingP99, counters.routing.percentile(0.99));
+                tickP99 = Math.max(tickP99, counters.tick.percentile(0.99));
+            }
+            return new Totals(routeSearches, nodesVisited, cacheHits, cacheMisses, itemsExtracted, itemsDelivered, itemsStuck,
+                    syncDeltas, syncPackets, inFlight, stuckNow, deliveredPerSecond, routingP99, tickP99, networks);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package net.flytre.pipe.metrics;
+
+import org.apache.logging.log4j.LogManager;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Exposes the pipe metrics of the running server over JMX as net.flytre.pipe:type=PipeMetrics.
+ * Values are totals across all worlds, updated once a second. Durations are in nanoseconds.
+ */
+public interface PipeMetricsMXBean {
+
+    String NAME = "net.flytre.pipe:type=PipeMetrics";
+
+    long getRouteSearches();
+
+    long getNodesVisited();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    long getItemsExtracted();
+
+    long getItemsDelivered();
+
+    long getItemsStuck();
+
+    long getSyncDeltas();
+
+    long getSyncPackets();
+
+    int getItemsInFlight();
+
+    int getItemsStuckNow();
+
+    double getItemsDeliveredPerSecond();
+
+    long getRoutingP99Nanos();
+
+    long getTickP99Nanos();
+
+    int getNetworks();
+
+    static void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(NAME);
+            if (!server.isRegistered(name))
+                server.registerMBean(new Bean(), name);
+        } catch (MalformedObjectNameException | InstanceAlreadyExistsException | MBeanRegistrationException | NotCompliantMBeanException e) {
+            LogManager.getLogger("Pipe Metrics").error("Failed to register the pipe metrics MBean", e);
+        }
+    }
+
+    static void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(NAME);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+        } catch (MalformedObjectNameException | InstanceNotFoundException | MBeanRegistrationException e) {
+            LogManager.getLogger("Pipe Metrics").error("Failed to unregister the pipe metrics MBean", e);
+        }
+    }
+
+    final class Bean implements PipeMetricsMXBean {
+
+        @Override
+        public long getRouteSearches() {
+            return PipeMetrics.getTotals().routeSearches();
+        }
+
+        @Override
+        public long getNodesVisited() {
+            return PipeMetrics.getTotals().nodesVisited();
+        }
+
+        @Override
+        public long getCacheHits() {
+            return PipeMetrics.getTotals().cacheHits();
+        }
+
+        @Override
+        public long getCacheMisses() {
+            return PipeMetrics.getTotals().cacheMisses();
+        }
+
+        @Override
+        public long getItemsExtracted() {
+            return PipeMetrics.getTotals().itemsExtracted();
+        }
+
+        @Override
+        public long getItemsDelivered() {
+            return PipeMetrics.getTotals().itemsDelivered();
+        }
+
+        @Override
+        public long getItemsStuck() {
+            return PipeMetrics.getTotals().itemsStuck();
+        }
+
+        @Override
+        public long getSyncDeltas() {
+            return PipeMetrics.getTotals().syncDeltas();
+        }
+
+        @Override
+        public long getSyncPackets() {
+            return PipeMetrics.getTotals().syncPackets();
+        }
+
+        @Override
+        public int getItemsInFlight() {
+            return PipeMetrics.getTotals().inFlight();
+        }
+
+        @Override
+        public int getItemsStuckNow() {
+            return PipeMetrics.getTotals().stuckNow();
+        }
+
+        @Override
+        public double getItemsDeliveredPerSecond() {
+            return PipeMetrics.getTotals().deliveredPerSecond();
+        }
+
+        @Override
+        public long getRoutingP99Nanos() {
+            return PipeMetrics.getTotals().routingP99();
+        }
+
+        @Override
+        public long getTickP99Nanos() {
+            return PipeMetrics.getTotals().tickP99();
+        }
+
+        @Override
+        public int getNetworks() {
+            return PipeMetrics.getTotals().networks();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package net.flytre.pipe.metrics;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.text.LiteralText;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Backs /pipe profile: for a set number of seconds, records how long pipes spend ticking, searching for routes, summing
+ * up the items flowing through their network and syncing to clients, along with how much they allocate and how many
+ * items they move. Afterwards the networks and pipes that cost the most are reported to whoever started it, and
+ * everything is dumped to a file in the debug folder.
+ * <p>
+ * The sections overlap: ticking includes the other three, and route searches include summing up flows.
+ * Nothing is recorded unless a profile is running.
+ */
+public final class PipeProfiler {
+
+    private static final int TOP = 10;
+
+    private static @Nullable Session session;
+
+    private PipeProfiler() {
+    }
+
+    public static boolean isRunning() {
+        return session != null;
+    }
+
+    /**
+     * @return false if a profile is already running
+     */
+    public static boolean start(ServerCommandSource source, int seconds) {
+        if (session != null)
+            return false;
+        session = new Session(source, source.getServer().getTicks() + seconds * 20L, seconds);
+        return true;
+    }
+
+    /**
+     * The bytes allocated by the current thread so far
+     */
+    public static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * @param pos the pipe, or null if the time can only be attributed to the network
+     */
+    public static void record(World world, LongSet network, @Nullable BlockPos pos, Section section, long nanos, long allocated) {
+        if (session == null || !(world instanceof ServerWorld serverWorld))
+            return;
+        if (!network.isEmpty()) {
+            Sample sample = session.networks.computeIfAbsent(network, k -> new NetworkSample(serverWorld, network));
+            sample.nanos[section.ordinal()] += nanos;
+            sample.allocated += allocated;
+        }
+        if (pos != null) {
+            Sample sample = session.pipes(serverWorld).computeIfAbsent(pos.asLong(), k -> new Sample());
+            sample.nanos[section.ordinal()] += nanos;
+            sample.allocated += allocated;
+        }
+    }
+
+    public static void itemMoved(World world, LongSet network, BlockPos pos) {
+        if (session == null || !(world instanceof ServerWorld serverWorld))
+            return;
+        if (!network.isEmpty())
+            session.networks.computeIfAbsent(network, k -> new NetworkSample(serverWorld, network)).items++;
+        session.pipes(serverWorld).computeIfAbsent(pos.asLong(), k -> new Sample()).items++;
+    }
+
+    /**
+     * Called at the end of every server tick, finishes the profile once its time is up
+     */
+    public static void endTick(MinecraftServer server) {
+        if (session == null || server.getTicks() < session.end)
+            return;
+        Session finished = session;
+        session = null;
+        finished.report(server);
+    }
+
+    /**
+     * Drops a profile that was still running when the server stopped, so it doesn't carry over into the next world
+     */
+    public static void clear() {
+        session = null;
+    }
+
+    public enum Section {
+        TICK,
+        ROUTE,
+        FLOWS,
+        SYNC
+    }
+
+    private static class Sample {
+        final long[] nanos = new long[Section.values().length];
+        long allocated;
+        long items;
+
+        long tickNanos() {
+            return nanos[Section.TICK.ordinal()];
+        }
+    }
+
+    private static class NetworkSample extends Sample {
+        final ServerWorld world;
+        final LongSet network;
+
+        NetworkSample(ServerWorld world, LongSet network) {
+            this.world = world;
+            this.network = network;
+        }
+
+        BlockPos anchor() {
+            long min = Long.MAX_VALUE;
+            for (LongIterator iterator = network.iterator(); iterator.hasNext(); )
+                min = Math.min(min, iterator.nextLong());
+            return BlockPos.fromLong(min);
+        }
+    }
+
+    private record PipeSample(ServerWorld world, BlockPos pos, Sample sample) {
+
+    }
+
+    private static final class Session {
+        final ServerCommandSource source;
+        final long end;
+        final int seconds;
+        final Map<LongSet, NetworkSample> networks = new Reference2ObjectOpenHashMap<>();
+        final Map<ServerWorld, Long2ObjectOpenHashMap<Sample>> pipes = new Reference2ObjectOpenHashMap<>();
+
+        Session(ServerCommandSource source, long end, int seconds) {
+            this.source = source;
+            this.end = end;
+            this.seconds = seconds;
+        }
+
+        Long2ObjectOpenHashMap<Sample> pipes(ServerWorld world) {
+            return pipes.computeIfAbsent(world, k -> new Long2ObjectOpenHashMap<>());
+        }
+
+        void report(MinecraftServer server) {
+            List<NetworkSample> networkList = new ArrayList<>(networks.values());
+            networkList.sort(Comparator.comparingLong(Sample::tickNanos).reversed());
+            List<PipeSample> pipeList = new ArrayList<>();
+            for (Map.Entry<ServerWorld, Long2ObjectOpenHashMap<Sample>> entry : pipes.entrySet())
+                for (Long2ObjectOpenHashMap.Entry<Sample> pipe : entry.getValue().long2ObjectEntrySet())
+                    pipeList.add(new PipeSample(entry.getKey(), BlockPos.fromLong(pipe.getLongKey()), pipe.getValue()));
+            pipeList.sort(Comparator.comparingLong((PipeSample pipe) -> pipe.sample().tickNanos()).reversed());
+
+            source.sendFeedback(new LiteralText(String.format("Pipe profile over %d seconds, top networks by tick time:", seconds)), false);
+            for (int i = 0; i < Math.min(TOP, networkList.size()); i++)
+                source.sendFeedback(new LiteralText(formatNetwork(i + 1, networkList.get(i))), false);
+            source.sendFeedback(new LiteralText("Top pipes by tick time:"), false);
+            for (int i = 0; i < Math.min(TOP, pipeList.size()); i++)
+                source.sendFeedback(new LiteralText(formatPipe(i + 1, pipeList.get(i))), false);
+
+            File file = server.getFile("debug/pipe-profile-" + new SimpleDateFormat("yyyy-MM-dd_HH.mm.ss").format(new Date()) + ".txt");
+            //noinspection ResultOfMethodCallIgnored
+            file.getParentFile().mkdirs();
+            try (PrintWriter writer = new PrintWriter(file, StandardCharsets.UTF_8)) {
+                writer.println("Pipe profile over " + seconds + " seconds");
+                writer.println("Times are totals in milliseconds. Tick time includes the other sections, and route time includes flows.");
+                writer.println();
+                writer.println("Networks:");
+                for (int i = 0; i < networkList.size(); i++)
+                    writer.println(formatNetwork(i + 1, networkList.get(i)));
+                writer.println();
+                writer.println("Pipes:");
+                for (int i = 0; i < pipeList.size(); i++)
+                    writer.println(formatPipe(i + 1, pipeList.get(i)));
+                source.sendFeedback(new LiteralText("Full profile saved to " + file.getPath()), false);
+            } catch (IOException e) {
+                source.sendError(new LiteralText("Couldn't save the profile: " + e.getMessage()));
+            }
+        }
+
+        private static String formatNetwork(int rank, NetworkSample sample) {
+            BlockPos anchor = sample.anchor();
+            return String.format("#%d %d pipes at %d %d %d in %s: %s", rank, sample.network.size(), anchor.getX(), anchor.getY(), anchor.getZ(), sample.world.getRegistryKey().getValue(), formatSample(sample));
+        }
+
+        private static String formatPipe(int rank, PipeSample pipe) {
+            BlockPos pos = pipe.pos();
+            return String.format("#%d %d %d %d in %s: %s", rank, pos.getX(), pos.getY(), pos.getZ(), pipe.world().getRegistryKey().getValue(), formatSample(pipe.sample()));
+        }
+
+        private static String formatSample(Sample sample) {
+            return String.format("tick %.2fms, route %.2fms, flows %.2fms, sync %.2fms, allocated %.1fKB, %d items moved",
+                    sample.nanos[Section.TICK.ordinal()] / 1e6, sample.nanos[Section.ROUTE.ordinal()] / 1e6, sample.nanos[Section.FLOWS.ordinal()] / 1e6,
+                    sample.nanos[Section.SYNC.ordinal()] / 1e6, sample.allocated / 1024.0, sample.items);
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package net.flytre.pipe.metrics;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.flytre.flytre_lib.api.base.util.InventoryUtils;
+import net.flytre.flytre_lib.api.storage.inventory.filter.FilterInventory;
+import net.flytre.pipe.Pipe;
+import net.flytre.pipe.pipe.PipeEntity;
+import net.flytre.pipe.pipe.PipeSide;
+import net.minecraft.block.entity.BlockEntity;
+import net.minecraft.inventory.Inventory;
+import net.minecraft.item.ItemStack;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.text.LiteralText;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.util.math.Direction;
+import net.minecraft.util.registry.Registry;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.WorldChunk;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Backs /pipe trace: records the pipes around whoever started it and the inventories next to them as a network spec the
+ * simulator can replay offline (see the simulator project). Everything is written out once at the start, then
+ * compared once a second and whatever changed is added as an event: pipes placed, broken or reconfigured, filters
+ * edited and items put into or taken out of inventories by anything but the pipes themselves, since the simulator
+ * moves those items on its own.
+ * <p>
+ * Items are recorded by id only, so filters matching on NBT or mod behave like plain ones when replayed. Items already
+ * in the pipes when the trace starts aren't recorded. Nothing is tracked unless a trace is running.
+ */
+public final class PipeTraceRecorder {
+
+    public static final int DEFAULT_RADIUS = 64;
+    private static final int MAX_SECONDS = 600;
+
+    private static @Nullable Session session;
+
+    private PipeTraceRecorder() {
+    }
+
+    public static boolean isRunning() {
+        return session != null;
+    }
+
+    /**
+     * @return false if a trace is already running
+     */
+    public static boolean start(ServerCommandSource source, int radius) {
+        if (session != null)
+            return false;
+        session = new Session(source, source.getWorld(), new BlockPos(source.getPosition()), radius, source.getServer().getTicks());
+        session.scan(true);
+        return true;
+    }
+
+    /**
+     * @return false if no trace was running
+     */
+    public static boolean stop(MinecraftServer server) {
+        if (session == null)
+            return false;
+        Session finished = session;
+        session = null;
+        finished.save(server);
+        return true;
+    }
+
+    /**
+     * Items were moved into (positive count) or out of (negative count) an inventory by a pipe
+     */
+    public static void moved(World world, BlockPos inventory, ItemStack stack, int count) {
+        if (session == null || world != session.world)
+            return;
+        session.moved.computeIfAbsent(inventory.asLong(), k -> new TreeMap<>()).merge(itemId(stack), count, Integer::sum);
+    }
+
+    /**
+     * Called at the end of every server tick, compares the network once a second and stops the trace once it's been
+     * running for too long
+     */
+    public static void endTick(MinecraftServer server) {
+        if (session == null)
+            return;
+        int elapsed = server.getTicks() - session.startTick;
+        if (elapsed >= MAX_SECONDS * 20) {
+            session.source.sendFeedback(new LiteralText("Pipe traces are limited to " + MAX_SECONDS + " seconds, stopping"), false);
+            stop(server);
+        } else if (elapsed % 20 == 0) {
+            session.scan(false);
+        }
+    }
+
+    public static void clear() {
+        session = null;
+    }
+
+    private static String itemId(ItemStack stack) {
+        return Registry.ITEM.getId(stack.getItem()).toString();
+    }
+
+    private static final class Session {
+        final ServerCommandSource source;
+        final ServerWorld world;
+        final BlockPos center;
+        final int radius;
+        final int startTick;
+        final List<String> lines = new ArrayList<>();
+
+        /**
+         * What the last scan found: the line of each pipe, its filter if it has one and the contents of each inventory
+         */
+        Long2ObjectOpenHashMap<String> pipes = new Long2ObjectOpenHashMap<>();
+        Long2ObjectOpenHashMap<String> filters = new Long2ObjectOpenHashMap<>();
+        Long2ObjectOpenHashMap<Map<String, Integer>> inventories = new Long2ObjectOpenHashMap<>();
+
+        /**
+         * Items pipes moved in or out of each inventory since the last scan
+         */
+        final Long2ObjectOpenHashMap<Map<String, Integer>> moved = new Long2ObjectOpenHashMap<>();
+
+        Session(ServerCommandSource source, ServerWorld world, BlockPos center, int radius, int startTick) {
+            this.source = source;
+            this.world = world;
+            this.center = center;
+            this.radius = radius;
+            this.startTick = startTick;
+        }
+
+        void scan(boolean initial) {
+            Long2ObjectOpenHashMap<String> newPipes = new Long2ObjectOpenHashMap<>();
+            Long2ObjectOpenHashMap<String> newFilters = new Long2ObjectOpenHashMap<>();
+            Long2ObjectOpenHashMap<Map<String, Integer>> newInventories = new Long2ObjectOpenHashMap<>();
+            Long2ObjectOpenHashMap<Inventory> found = new Long2ObjectOpenHashMap<>();
+
+            int minX = ChunkSectionPos.getSectionCoord(center.getX() - radius), maxX = ChunkSectionPos.getSectionCoord(center.getX() + radius);
+            int minZ = ChunkSectionPos.getSectionCoord(center.getZ() - radius), maxZ = ChunkSectionPos.getSectionCoord(center.getZ() + radius);
+            for (int chunkX = minX; chunkX <= maxX; chunkX++) {
+                for (int chunkZ = minZ; chunkZ <= maxZ; chunkZ++) {
+                    WorldChunk chunk = world.getChunkManager().getWorldChunk(chunkX, chunkZ);
+                    if (chunk == null)
+                        continue;
+                    for (BlockEntity blockEntity : chunk.getBlockEntities().values()) {
+                        if (!(blockEntity instanceof PipeEntity pipe) || !inRange(pipe.getPos()))
+                            continue;
+                        long pos = pipe.getPos().asLong();
+                        newPipes.put(pos, pipeLine(pipe));
+                        FilterInventory filter = pipe.getCustomFilter();
+                        if (filter != null)
+                            newFilters.put(pos, filterLine(pipe.getPos(), filter));
+                        for (Direction direction : Direction.values()) {
+                            Inventory inventory = pipe.getSide(direction) == PipeSide.NONE ? null : pipe.getInventory(direction);
+                            if (inventory != null)
+                                found.putIfAbsent(pipe.getPos().offset(direction).asLong(), inventory);
+                        }
+                    }
+                }
+            }
+
+            //Inventories no longer next to a recorded pipe are still followed as long as they exist, so they aren't broken for nothing
+            for (Long2ObjectMap.Entry<Map<String, Integer>> entry : inventories.long2ObjectEntrySet()) {
+                long pos = entry.getLongKey();
+                if (!found.containsKey(pos) && !newPipes.containsKey(pos)) {
+                    Inventory inventory = InventoryUtils.getInventoryAt(world, BlockPos.fromLong(pos));
+                    if (inventory != null)
+                        found.put(pos, inventory);
+                }
+            }
+            for (Long2ObjectMap.Entry<Inventory> entry : found.long2ObjectEntrySet())
+                newInventories.put(entry.getLongKey(), contents(entry.getValue()));
+
+            String prefix = initial ? "" : "@" + (source.getServer().getTicks() - startTick) + " ";
+            for (long pos : new TreeSet<>(pipes.keySet()))
+                if (!newPipes.containsKey(pos) && !newInventories.containsKey(pos))
+                    lines.add(prefix + "break " + format(pos));
+            for (long pos : new TreeSet<>(inventories.keySet()))
+                if (!newInventories.containsKey(pos) && !newPipes.containsKey(pos))
+                    lines.add(prefix + "break " + format(pos));
+
+            for (long pos : new TreeSet<>(newInventories.keySet())) {
+                Map<String, Integer> contents = newInventories.get(pos);
+                Map<String, Integer> old = inventories.get(pos);
+                if (old == null) {
+                    StringBuilder line = new StringBuilder(prefix + "inventory " + format(pos) + " slots=" + found.get(pos).size());
+                    contents.forEach((item, count) -> line.append(' ').append(item).append('=').append(count));
+                    lines.add(line.toString());
+                    continue;
+                }
+                Map<String, Integer> expected = new TreeMap<>(old);
+                Map<String, Integer> byPipes = moved.get(pos);
+                if (byPipes != null)
+                    byPipes.forEach((item, count) -> expected.merge(item, count, Integer::sum));
+                TreeSet<String> items = new TreeSet<>(expected.keySet());
+                items.addAll(contents.keySet());
+                for (String item : items) {
+                    int change = contents.getOrDefault(item, 0) - expected.getOrDefault(item, 0);
+                    if (change != 0)
+                        lines.add(prefix + (change > 0 ? "insert " : "remove ") + format(pos) + " " + item + " " + Math.abs(change));
+                }
+            }
+
+            for (long pos : new TreeSet<>(newPipes.keySet())) {
+                boolean placed = !newPipes.get(pos).equals(pipes.get(pos));
+                if (placed)
+                    lines.add(prefix + newPipes.get(pos));
+                String filter = newFilters.get(pos);
+                if (filter != null && (placed || !filter.equals(filters.get(pos))))
+                    lines.add(prefix + filter);
+                else if (filter == null && filters.containsKey(pos) && !placed)
+                    lines.add(prefix + "filter " + format(pos) + " whitelist");
+            }
+
+            pipes = newPipes;
+            filters = newFilters;
+            inventories = newInventories;
+            moved.clear();
+        }
+
+        boolean inRange(BlockPos pos) {
+            return Math.abs(pos.getX() - center.getX()) <= radius && Math.abs(pos.getZ() - center.getZ()) <= radius;
+        }
+
+        void save(MinecraftServer server) {
+            File file = server.getFile("debug/pipe-trace-" + new SimpleDateFormat("yyyy-MM-dd_HH.mm.ss").format(new Date()) + ".txt");
+            //noinspection ResultOfMethodCallIgnored
+            file.getParentFile().mkdirs();
+            try (PrintWriter writer = new PrintWriter(file, StandardCharsets.UTF_8)) {
+                writer.println("# Pipe trace of " + world.getRegistryKey().getValue() + " within " + radius + " blocks of " + center.getX() + " " + center.getY() + " " + center.getZ()
+                        + ", " + (server.getTicks() - startTick) / 20 + " seconds");
+                writer.println("# Replay with: simulator --spec " + file.getName());
+                for (String line : lines)
+                    writer.println(line);
+                source.sendFeedback(new LiteralText("Pipe trace saved to " + file.getPath()), false);
+            } catch (IOException e) {
+                source.sendError(new LiteralText("Couldn't save the trace: " + e.getMessage()));
+            }
+        }
+
+        private static String pipeLine(PipeEntity pipe) {
+            int sides = 0;
+            for (Direction direction : Direction.values())
+                sides |= pipe.getSide(direction).ordinal() << (direction.getId() << 1);
+            StringBuilder line = new StringBuilder("pipe " + format(pipe.getPos().asLong()) + " sides=" + sides);
+            if (pipe.getCachedState().getBlock() == Pipe.FAST_PIPE)
+                line.append(" fast");
+            if (pipe.isRoundRobinMode())
+                line.append(" round_robin");
+            return line.toString();
+        }
+
+        private static String filterLine(BlockPos pos, FilterInventory filter) {
+            StringBuilder line = new StringBuilder("filter " + format(pos.asLong()) + (filter.getFilterType() == 0 ? " whitelist" : " blacklist"));
+            for (int i = 0; i < filter.size(); i++)
+                if (!filter.getStack(i).isEmpty())
+                    line.append(' ').append(itemId(filter.getStack(i)));
+            return line.toString();
+        }
+
+        private static Map<String, Integer> contents(Inventory inventory) {
+            Map<String, Integer> contents = new TreeMap<>();
+            for (int i = 0; i < inventory.size(); i++) {
+                ItemStack stack = inventory.getStack(i);
+                if (!stack.isEmpty())
+                    contents.merge(itemId(stack), stack.getCount(), Integer::sum);
+            }
+            return contents;
+        }
+
+        private static String format(long pos) {
+            return BlockPos.unpackLongX(pos) + " " + BlockPos.unpackLongY(pos) + " " + BlockPos.unpackLongZ(pos);
+        }
+    }
+}
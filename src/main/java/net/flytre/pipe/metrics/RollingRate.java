@@ -0,0 +1,41 @@
+package net.flytre.pipe.metrics;
+
+/**
+ * Counts events per second over the last minute
+ */
+public final class RollingRate {
+
+    private static final int SECONDS = 60;
+
+    private final long[] seconds = new long[SECONDS];
+    private int next;
+    private int filled;
+    private long pending;
+
+    public void add(long amount) {
+        pending += amount;
+    }
+
+    /**
+     * Closes off the current second, called once every 20 ticks
+     */
+    void roll() {
+        seconds[next] = pending;
+        pending = 0;
+        next = (next + 1) % SECONDS;
+        filled = Math.min(SECONDS, filled + 1);
+    }
+
+    /**
+     * The average rate over the last few completed seconds
+     */
+    public double perSecond(int window) {
+        window = Math.min(window, filled);
+        if (window == 0)
+            return 0;
+        long sum = 0;
+        for (int i = 1; i <= window; i++)
+            sum += seconds[(next - i + SECONDS) % SECONDS];
+        return sum / (double) window;
+    }
+}
@@ -1,23 +1,49 @@
 package net.flytre.pipe.mixin;
 
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
 import net.flytre.pipe.Pipe;
+import net.flytre.pipe.metrics.PipeEvents;
+import net.flytre.pipe.metrics.PipeMetrics;
+import net.flytre.pipe.network.PipeChunkSync;
+import net.flytre.pipe.network.PipeItemDeltaS2CPacket;
+import net.flytre.pipe.network.StackDictionary;
 import net.flytre.pipe.pipe.PipeEntity;
 import net.minecraft.block.entity.BlockEntity;
 import net.minecraft.network.Packet;
 import net.minecraft.network.listener.ClientPlayPacketListener;
+import net.minecraft.server.network.ServerPlayNetworkHandler;
+import net.minecraft.server.network.ServerPlayerEntity;
 import net.minecraft.server.world.ChunkHolder;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.ChunkPos;
 import net.minecraft.world.World;
+import net.minecraft.world.chunk.WorldChunk;
+import org.jetbrains.annotations.Nullable;
 import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.Unique;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Instead of sending a block entity update packet per pipe, pipes with changes are marked on the holder of their chunk
+ * (see PipeChunkSync), and the changes to all of them are sent as one packet per player when the chunk flushes its
+ * updates. No block update is scheduled for them, so vanilla doesn't send anything for those pipes itself.
+ * <p>
+ * While items are travelling through the chunk, the players in range are checked every half second, and players who
+ * came into range are sent the full queue of each pipe in the chunk that has items in it.
+ */
 @Mixin(ChunkHolder.class)
-public class ChunkHolderMixin {
+public class ChunkHolderMixin implements PipeChunkSync {
 
     @Shadow
     @Final
@@ -26,21 +52,140 @@ public class ChunkHolderMixin {
     @Final
     ChunkPos pos;
 
-    @Inject(method = "sendBlockEntityUpdatePacket", at = @At("HEAD"), cancellable = true)
-    public void pipe$customPipeUpdates(World world, BlockPos pos, CallbackInfo ci) {
-        BlockEntity blockEntity = world.getBlockEntity(pos);
-        if (!(blockEntity instanceof PipeEntity pipeEntity))
+    @Unique
+    private static final int PIPE$REFRESH_TICKS = 10;
+
+    /**
+     * How long a chunk keeps track of players in range after it last heard of items in it. Pipes holding items check in
+     * more often than this, see PipeEntity#tick.
+     */
+    @Unique
+    private static final int PIPE$ACTIVE_TICKS = 200;
+
+    /**
+     * The pipes in this chunk with changes that haven't been sent yet
+     */
+    @Unique
+    private final LongSet pipe$dirtyPipes = new LongOpenHashSet();
+
+    /**
+     * The players close enough to see items in the chunk, kept up to date until pipe$activeUntil
+     */
+    @Unique
+    private final Set<ServerPlayerEntity> pipe$playersInRange = new ReferenceOpenHashSet<>();
+    @Unique
+    private long pipe$activeUntil = Long.MIN_VALUE;
+    @Unique
+    private long pipe$nextRefresh;
+
+    @Override
+    public void pipe$markPipe(long pos) {
+        pipe$dirtyPipes.add(pos);
+    }
+
+    /**
+     * A chunk that's been idle had no items in it, so the players already in range when it becomes active don't need
+     * anything resent and are just taken as they are
+     */
+    @Override
+    public void pipe$markActive(long time) {
+        if (time >= pipe$activeUntil) {
+            pipe$refreshPlayersInRange(null);
+            pipe$nextRefresh = time + PIPE$REFRESH_TICKS;
+        }
+        pipe$activeUntil = time + PIPE$ACTIVE_TICKS;
+    }
+
+    @Override
+    public Set<ServerPlayerEntity> pipe$getPlayersInRange() {
+        return pipe$playersInRange;
+    }
+
+    /**
+     * Runs before vanilla checks whether there's anything to flush, since marking pipes doesn't tell it there is
+     */
+    @Inject(method = "flushUpdates", at = @At("HEAD"))
+    public void pipe$flushPipeUpdates(WorldChunk chunk, CallbackInfo ci) {
+        long time = chunk.getWorld().getTime();
+        if (time >= pipe$activeUntil) {
+            pipe$playersInRange.clear();
+        } else if (time >= pipe$nextRefresh) {
+            pipe$nextRefresh = time + PIPE$REFRESH_TICKS;
+            pipe$refreshPlayersInRange(chunk);
+        }
+
+        if (pipe$dirtyPipes.isEmpty())
             return;
-        ci.cancel();
-        Packet<ClientPlayPacketListener> updatePacket = pipeEntity.toUpdatePacket();
-        this.pipe$sendPacketToNearPlayers(pos, updatePacket);
+        List<PipeItemDeltaS2CPacket.PipeDeltas> updates = new ArrayList<>(pipe$dirtyPipes.size());
+        for (LongIterator iterator = pipe$dirtyPipes.iterator(); iterator.hasNext(); ) {
+            if (chunk.getBlockEntity(BlockPos.fromLong(iterator.nextLong())) instanceof PipeEntity pipeEntity) {
+                PipeItemDeltaS2CPacket.PipeDeltas update = pipeEntity.pollDeltas();
+                if (update != null)
+                    updates.add(update);
+            }
+        }
+        pipe$dirtyPipes.clear();
+        if (!updates.isEmpty())
+            this.pipe$sendPacketToNearPlayers(chunk.getWorld(), updates);
     }
 
-    private void pipe$sendPacketToNearPlayers(BlockPos pos, Packet<ClientPlayPacketListener> packet) {
-        int distance = Pipe.PIPE_CONFIG.getConfig().maxItemRenderDistance;
+    /**
+     * Updates the players in range, sending the full queues of the pipes in the chunk to those who just came into range
+     *
+     * @param chunk the chunk to send queues from, or null to not send anything
+     */
+    @Unique
+    private void pipe$refreshPlayersInRange(@Nullable WorldChunk chunk) {
+        List<ServerPlayerEntity> entered = new ArrayList<>();
+        Set<ServerPlayerEntity> inRange = new ReferenceOpenHashSet<>();
         this.playersWatchingChunkProvider.getPlayersWatchingChunk(this.pos, false).forEach((serverPlayerEntity) -> {
-            if (serverPlayerEntity.getBlockPos().getSquaredDistance(pos) < distance * distance) {
+            if (pipe$isInRange(serverPlayerEntity)) {
+                inRange.add(serverPlayerEntity);
+                if (!pipe$playersInRange.contains(serverPlayerEntity))
+                    entered.add(serverPlayerEntity);
+            }
+        });
+        pipe$playersInRange.clear();
+        pipe$playersInRange.addAll(inRange);
+        if (chunk == null || entered.isEmpty())
+            return;
+
+        for (BlockEntity blockEntity : chunk.getBlockEntities().values()) {
+            if (!(blockEntity instanceof PipeEntity pipeEntity) || pipeEntity.getQueuedItems().isEmpty())
+                continue;
+            Packet<ClientPlayPacketListener> packet = pipeEntity.toUpdatePacket();
+            for (ServerPlayerEntity serverPlayerEntity : entered) {
                 serverPlayerEntity.networkHandler.sendPacket(packet);
+                PipeMetrics.packetSent(chunk.getWorld());
+            }
+        }
+    }
+
+    /**
+     * Whether a player is close enough to the chunk to see items in it. The distance is measured horizontally to the
+     * center of the chunk, with some leeway so pipes at its edges are still covered.
+     */
+    @Unique
+    private boolean pipe$isInRange(ServerPlayerEntity serverPlayerEntity) {
+        double distance = Pipe.PIPE_CONFIG.getConfig().maxItemRenderDistance + 12;
+        double dx = serverPlayerEntity.getX() - (this.pos.getStartX() + 8);
+        double dz = serverPlayerEntity.getZ() - (this.pos.getStartZ() + 8);
+        return dx * dx + dz * dz < distance * distance;
+    }
+
+    /**
+     * Sends the bundle to every player close enough to the chunk to see items in it.
+     * Each player gets their own packet since stacks are written using their connection's dictionary.
+     */
+    @Unique
+    private void pipe$sendPacketToNearPlayers(World world, List<PipeItemDeltaS2CPacket.PipeDeltas> updates) {
+        this.playersWatchingChunkProvider.getPlayersWatchingChunk(this.pos, false).forEach((serverPlayerEntity) -> {
+            if (pipe$isInRange(serverPlayerEntity)) {
+                ServerPlayNetworkHandler handler = serverPlayerEntity.networkHandler;
+                PipeItemDeltaS2CPacket packet = new PipeItemDeltaS2CPacket(updates, StackDictionary.of(handler));
+                handler.sendPacket(packet);
+                PipeMetrics.packetSent(world);
+                PipeEvents.syncPacketSent(this.pos, packet, serverPlayerEntity);
             }
         });
     }
@@ -0,0 +1,14 @@
+package net.flytre.pipe.mixin;
+
+import net.minecraft.server.world.ChunkHolder;
+import net.minecraft.server.world.ThreadedAnvilChunkStorage;
+import org.jetbrains.annotations.Nullable;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.gen.Invoker;
+
+@Mixin(ThreadedAnvilChunkStorage.class)
+public interface ThreadedAnvilChunkStorageAccessor {
+
+    @Invoker("getChunkHolder")
+    @Nullable ChunkHolder pipe$getChunkHolder(long pos);
+}
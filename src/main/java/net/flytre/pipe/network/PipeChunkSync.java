@@ -0,0 +1,74 @@
+package net.flytre.pipe.network;
+
+import net.flytre.pipe.mixin.ThreadedAnvilChunkStorageAccessor;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.server.world.ChunkHolder;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Set;
+
+/**
+ * Implemented by ChunkHolder (see ChunkHolderMixin), which sends the changes to the pipes in its chunk when it flushes
+ * its updates. Pipes with changes are marked here rather than through a block update, since a block update would also
+ * send the unchanged block state to every player watching the chunk.
+ * <p>
+ * Changes only go to players close enough to see items, so while items are travelling through a chunk it also keeps
+ * track of which players are in range. Players coming into range get the full queue of every pipe in the chunk, and
+ * items moving on to a chunk with different players in range are announced there, since the client only hears about
+ * an item when it's extracted.
+ */
+public interface PipeChunkSync {
+
+    /**
+     * Marks a pipe as having changes to send the next time the chunk flushes its updates
+     */
+    void pipe$markPipe(long pos);
+
+    /**
+     * Notes that items are travelling through the chunk, so it keeps track of the players in range for a while
+     */
+    void pipe$markActive(long time);
+
+    /**
+     * The players close enough to see items in the chunk, as of the last time it checked
+     */
+    Set<ServerPlayerEntity> pipe$getPlayersInRange();
+
+    static @Nullable PipeChunkSync of(ServerWorld world, BlockPos pos) {
+        ThreadedAnvilChunkStorageAccessor storage = (ThreadedAnvilChunkStorageAccessor) world.getChunkManager().threadedAnvilChunkStorage;
+        ChunkHolder holder = storage.pipe$getChunkHolder(ChunkPos.toLong(pos.getX() >> 4, pos.getZ() >> 4));
+        return (PipeChunkSync) holder;
+    }
+
+    static void markPipe(ServerWorld world, BlockPos pos) {
+        PipeChunkSync chunk = of(world, pos);
+        if (chunk != null) {
+            chunk.pipe$markActive(world.getTime());
+            chunk.pipe$markPipe(pos.asLong());
+        }
+    }
+
+    static void markActive(ServerWorld world, BlockPos pos) {
+        PipeChunkSync chunk = of(world, pos);
+        if (chunk != null)
+            chunk.pipe$markActive(world.getTime());
+    }
+
+    /**
+     * Called when an item moves from a pipe to one in another chunk
+     *
+     * @return whether the item should be announced to the players in range of the chunk it moved into, which is when
+     * they aren't the same players that could see it before
+     */
+    static boolean itemCrossed(ServerWorld world, BlockPos from, BlockPos to) {
+        PipeChunkSync next = of(world, to);
+        if (next == null)
+            return false;
+        next.pipe$markActive(world.getTime());
+        PipeChunkSync previous = of(world, from);
+        return previous == null || !previous.pipe$getPlayersInRange().equals(next.pipe$getPlayersInRange());
+    }
+}
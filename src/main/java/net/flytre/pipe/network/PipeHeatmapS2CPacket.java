@@ -0,0 +1,63 @@
+package net.flytre.pipe.network;
+
+import net.flytre.pipe.client.PipeHeatmapRenderer;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.network.Packet;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.network.listener.ClientPlayPacketListener;
+
+/**
+ * Sends a player viewing the pipe heatmap the throughput of the pipes around them, once a second. Each position is
+ * either a pipe, with the items per second entering it, or a destination that turned items away, marked as saturated.
+ * A disabled packet tells the client to stop showing the heatmap.
+ */
+public class PipeHeatmapS2CPacket implements Packet<ClientPlayPacketListener> {
+
+    public static final byte STUCK = 1;
+    public static final byte SATURATED = 2;
+
+    private final boolean enabled;
+    private final long[] positions;
+    private final float[] rates;
+    private final byte[] flags;
+
+    public PipeHeatmapS2CPacket(boolean enabled, long[] positions, float[] rates, byte[] flags) {
+        this.enabled = enabled;
+        this.positions = positions;
+        this.rates = rates;
+        this.flags = flags;
+    }
+
+    public PipeHeatmapS2CPacket(PacketByteBuf buf) {
+        this.enabled = buf.readBoolean();
+        int size = buf.readVarInt();
+        this.positions = new long[size];
+        this.rates = new float[size];
+        this.flags = new byte[size];
+        for (int i = 0; i < size; i++) {
+            positions[i] = buf.readLong();
+            rates[i] = buf.readFloat();
+            flags[i] = buf.readByte();
+        }
+    }
+
+    public static PipeHeatmapS2CPacket disabled() {
+        return new PipeHeatmapS2CPacket(false, new long[0], new float[0], new byte[0]);
+    }
+
+    @Override
+    public void write(PacketByteBuf buf) {
+        buf.writeBoolean(enabled);
+        buf.writeVarInt(positions.length);
+        for (int i = 0; i < positions.length; i++) {
+            buf.writeLong(positions[i]);
+            buf.writeFloat(rates[i]);
+            buf.writeByte(flags[i]);
+        }
+    }
+
+    @Override
+    public void apply(ClientPlayPacketListener listener) {
+        MinecraftClient.getInstance().execute(() -> PipeHeatmapRenderer.update(enabled, positions, rates, flags));
+    }
+}
@@ -0,0 +1,91 @@
+package net.flytre.pipe.network;
+
+import net.flytre.pipe.pipe.PipeEntity;
+import net.flytre.pipe.pipe.PipeItemDelta;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.network.Packet;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.network.listener.ClientPlayPacketListener;
+import net.minecraft.util.math.BlockPos;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tells the client which items entered, left or changed in pipes since the last update, instead of resending
+ * everything in the pipe. All the pipes in a chunk that changed during a tick are bundled into one packet.
+ * Stacks are written through the {@link StackDictionary} of the receiving connection.
+ */
+public class PipeItemDeltaS2CPacket implements Packet<ClientPlayPacketListener> {
+
+    private final List<PipeDeltas> updates;
+    private final int[] stackReferences;
+
+    /**
+     * Creates the packet for a single connection, since the stacks are written using that connection's dictionary
+     */
+    public PipeItemDeltaS2CPacket(List<PipeDeltas> updates, StackDictionary dictionary) {
+        this.updates = updates;
+        int count = 0;
+        for (PipeDeltas update : updates)
+            count += update.deltas().size();
+        this.stackReferences = new int[count];
+        int i = 0;
+        for (PipeDeltas update : updates)
+            for (PipeItemDelta delta : update.deltas())
+                stackReferences[i++] = delta.getType() == PipeItemDelta.Type.LEAVE ? 0 : dictionary.reference(delta.getStack());
+    }
+
+    public PipeItemDeltaS2CPacket(PacketByteBuf buf) {
+        int pipes = buf.readVarInt();
+        this.updates = new ArrayList<>(pipes);
+        this.stackReferences = new int[0];
+        for (int i = 0; i < pipes; i++) {
+            BlockPos pos = buf.readBlockPos();
+            int ticksPerOperation = buf.readVarInt();
+            long time = buf.readLong();
+            int size = buf.readVarInt();
+            List<PipeItemDelta> deltas = new ArrayList<>(size);
+            for (int j = 0; j < size; j++)
+                deltas.add(PipeItemDelta.read(buf));
+            updates.add(new PipeDeltas(pos, ticksPerOperation, time, deltas));
+        }
+    }
+
+    @Override
+    public void write(PacketByteBuf buf) {
+        buf.writeVarInt(updates.size());
+        int i = 0;
+        for (PipeDeltas update : updates) {
+            buf.writeBlockPos(update.pos());
+            buf.writeVarInt(update.ticksPerOperation());
+            buf.writeLong(update.time());
+            buf.writeVarInt(update.deltas().size());
+            for (PipeItemDelta delta : update.deltas())
+                delta.write(buf, stackReferences[i++]);
+        }
+    }
+
+    public List<PipeDeltas> getUpdates() {
+        return updates;
+    }
+
+    @Override
+    public void apply(ClientPlayPacketListener listener) {
+        MinecraftClient client = MinecraftClient.getInstance();
+        client.execute(() -> {
+            if (client.world == null)
+                return;
+            for (PipeDeltas update : updates)
+                if (client.world.getBlockEntity(update.pos()) instanceof PipeEntity pipe)
+                    pipe.applyDeltas(update.ticksPerOperation(), update.time(), update.deltas());
+        });
+    }
+
+    /**
+     * The changes to the items in a single pipe, and the world time they were made at so the client can catch up
+     */
+    public record PipeDeltas(BlockPos pos, int ticksPerOperation, long time, List<PipeItemDelta> deltas) {
+
+    }
+}
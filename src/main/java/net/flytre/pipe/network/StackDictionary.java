@@ -0,0 +1,104 @@
+package net.flytre.pipe.network;
+
+import net.minecraft.item.Item;
+import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.server.network.ServerPlayNetworkHandler;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shortens the item stacks sent in pipe packets. The first time a connection sees a stack variant (item and nbt) it
+ * is sent in full and stored in a slot, after which only the slot is sent.
+ * <p>
+ * The server decides which slot each variant goes in, evicting the least recently used one once all slots are taken.
+ * The client just overwrites a slot whenever a full stack arrives for it, so both ends always agree on what each slot
+ * holds as long as packets are read in the order they're written.
+ */
+public final class StackDictionary {
+
+    public static final int SIZE = 256;
+
+    private static final Map<ServerPlayNetworkHandler, StackDictionary> CONNECTIONS = new HashMap<>();
+    private static final Variant[] RECEIVED = new Variant[SIZE];
+
+    private final LinkedHashMap<Variant, Integer> slots = new LinkedHashMap<>(16, 0.75f, true);
+
+    private StackDictionary() {
+    }
+
+    public static StackDictionary of(ServerPlayNetworkHandler handler) {
+        return CONNECTIONS.computeIfAbsent(handler, k -> new StackDictionary());
+    }
+
+    public static void remove(ServerPlayNetworkHandler handler) {
+        CONNECTIONS.remove(handler);
+    }
+
+    /**
+     * Forgets everything received, used when the client disconnects
+     */
+    public static void clearReceived() {
+        Arrays.fill(RECEIVED, null);
+    }
+
+    /**
+     * Looks up the slot for a stack, assigning one if the variant isn't known to the client yet.
+     * The returned reference is the slot shifted left by one, with the lowest bit set if the stack needs to be sent in full.
+     */
+    public int reference(ItemStack stack) {
+        Variant variant = new Variant(stack.getItem(), stack.getNbt());
+        Integer slot = slots.get(variant);
+        if (slot != null)
+            return slot << 1;
+
+        if (slots.size() < SIZE)
+            slot = slots.size();
+        else {
+            Iterator<Integer> eldest = slots.values().iterator();
+            slot = eldest.next();
+            eldest.remove();
+        }
+        slots.put(variant.copy(), slot);
+        return slot << 1 | 1;
+    }
+
+    public static void write(PacketByteBuf buf, ItemStack stack, int reference) {
+        buf.writeVarInt(reference);
+        buf.writeVarInt(stack.getCount());
+        if ((reference & 1) != 0) {
+            buf.writeVarInt(Item.getRawId(stack.getItem()));
+            buf.writeNbt(stack.getNbt());
+        }
+    }
+
+    public static ItemStack read(PacketByteBuf buf) {
+        int reference = buf.readVarInt();
+        int count = buf.readVarInt();
+        int slot = reference >>> 1;
+        if ((reference & 1) != 0)
+            RECEIVED[slot] = new Variant(Item.byRawId(buf.readVarInt()), buf.readNbt());
+        Variant variant = RECEIVED[slot];
+        return variant == null ? ItemStack.EMPTY : variant.toStack(count);
+    }
+
+    private record Variant(Item item, @Nullable NbtCompound nbt) {
+
+        Variant copy() {
+            return nbt == null ? this : new Variant(item, nbt.copy());
+        }
+
+        ItemStack toStack(int count) {
+            ItemStack stack = new ItemStack(item, count);
+            if (nbt != null)
+                stack.setNbt(nbt.copy());
+            return stack;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package net.flytre.pipe.pipe;
+
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtList;
+import net.minecraft.nbt.visitor.NbtElementVisitor;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * The saved form of a pipe queue, which only gets encoded once something actually looks at it.
+ * <p>
+ * Chunks are serialized on the server thread but written to disk by the chunk IO worker. Saving hands this compound a
+ * snapshot of the queue instead of the encoded queue, so for a normal save the stacks are encoded to NBT by the IO worker
+ * when it writes the chunk rather than during the tick. Anything else reading or changing the compound encodes it on the
+ * spot, so every public method of NbtCompound is overridden to encode the snapshot first, which LazyQueueNbtTest checks
+ * so a method added to NbtCompound can't be missed.
+ */
+final class LazyQueueNbt extends NbtCompound {
+
+    private volatile @Nullable PipeQueueFormat.Snapshot snapshot;
+
+    LazyQueueNbt(PipeQueueFormat.Snapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Encodes the snapshot into this compound the first time it's needed
+     */
+    private void materialize() {
+        if (snapshot != null)
+            encodeSnapshot();
+    }
+
+    /**
+     * Called from both the server thread and the IO worker, hence the synchronization. The snapshot is only cleared
+     * once it's fully encoded, so the other thread waits here until then. Entries are added through super.put, since
+     * the overridden put methods would try to encode the snapshot again.
+     */
+    private synchronized void encodeSnapshot() {
+        PipeQueueFormat.Snapshot snapshot = this.snapshot;
+        if (snapshot != null) {
+            NbtCompound encoded = snapshot.encode();
+            for (String key : encoded.getKeys())
+                super.put(key, encoded.get(key));
+            this.snapshot = null;
+        }
+    }
+
+    @Override
+    public void write(DataOutput output) throws IOException {
+        materialize();
+        super.write(output);
+    }
+
+    @Override
+    public NbtCompound copy() {
+        materialize();
+        return super.copy();
+    }
+
+    @Override
+    public Set<String> getKeys() {
+        materialize();
+        return super.getKeys();
+    }
+
+    @Override
+    public int getSize() {
+        materialize();
+        return super.getSize();
+    }
+
+    @Override
+    public @Nullable NbtElement put(String key, NbtElement element) {
+        materialize();
+        return super.put(key, element);
+    }
+
+    @Override
+    public void putByte(String key, byte value) {
+        materialize();
+        super.putByte(key, value);
+    }
+
+    @Override
+    public void putShort(String key, short value) {
+        materialize();
+        super.putShort(key, value);
+    }
+
+    @Override
+    public void putInt(String key, int value) {
+        materialize();
+        super.putInt(key, value);
+    }
+
+    @Override
+    public void putLong(String key, long value) {
+        materialize();
+        super.putLong(key, value);
+    }
+
+    @Override
+    public void putUuid(String key, UUID value) {
+        materialize();
+        super.putUuid(key, value);
+    }
+
+    @Override
+    public void putFloat(String key, float value) {
+        materialize();
+        super.putFloat(key, value);
+    }
+
+    @Override
+    public void putDouble(String key, double value) {
+        materialize();
+        super.putDouble(key, value);
+    }
+
+    @Override
+    public void putString(String key, String value) {
+        materialize();
+        super.putString(key, value);
+    }
+
+    @Override
+    public void putByteArray(String key, byte[] value) {
+        materialize();
+        super.putByteArray(key, value);
+    }
+
+    @Override
+    public void putByteArray(String key, List<Byte> value) {
+        materialize();
+        super.putByteArray(key, value);
+    }
+
+    @Override
+    public void putIntArray(String key, int[] value) {
+        materialize();
+        super.putIntArray(key, value);
+    }
+
+    @Override
+    public void putIntArray(String key, List<Integer> value) {
+        materialize();
+        super.putIntArray(key, value);
+    }
+
+    @Override
+    public void putLongArray(String key, long[] value) {
+        materialize();
+        super.putLongArray(key, value);
+    }
+
+    @Override
+    public void putLongArray(String key, List<Long> value) {
+        materialize();
+        super.putLongArray(key, value);
+    }
+
+    @Override
+    public void putBoolean(String key, boolean value) {
+        materialize();
+        super.putBoolean(key, value);
+    }
+
+    @Override
+    public void remove(String key) {
+        materialize();
+        super.remove(key);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        materialize();
+        return super.isEmpty();
+    }
+
+    @Override
+    public NbtCompound copyFrom(NbtCompound source) {
+        materialize();
+        return super.copyFrom(source);
+    }
+
+    @Override
+    public @Nullable NbtElement get(String key) {
+        materialize();
+        return super.get(key);
+    }
+
+    @Override
+    public byte getType(String key) {
+        materialize();
+        return super.getType(key);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        materialize();
+        return super.contains(key);
+    }
+
+    @Override
+    public byte getByte(String key) {
+        materialize();
+        return super.getByte(key);
+    }
+
+    @Override
+    public short getShort(String key) {
+        materialize();
+        return super.getShort(key);
+    }
+
+    @Override
+    public int getInt(String key) {
+        materialize();
+        return super.getInt(key);
+    }
+
+    @Override
+    public long getLong(String key) {
+        materialize();
+        return super.getLong(key);
+    }
+
+    @Override
+    public float getFloat(String key) {
+        materialize();
+        return super.getFloat(key);
+    }
+
+    @Override
+    public double getDouble(String key) {
+        materialize();
+        return super.getDouble(key);
+    }
+
+    @Override
+    public String getString(String key) {
+        materialize();
+        return super.getString(key);
+    }
+
+    @Override
+    public byte[] getByteArray(String key) {
+        materialize();
+        return super.getByteArray(key);
+    }
+
+    @Override
+    public int[] getIntArray(String key) {
+        materialize();
+        return super.getIntArray(key);
+    }
+
+    @Override
+    public long[] getLongArray(String key) {
+        materialize();
+        return super.getLongArray(key);
+    }
+
+    @Override
+    public NbtCompound getCompound(String key) {
+        materialize();
+        return super.getCompound(key);
+    }
+
+    @Override
+    public boolean getBoolean(String key) {
+        materialize();
+        return super.getBoolean(key);
+    }
+
+    @Override
+    public UUID getUuid(String key) {
+        materialize();
+        return super.getUuid(key);
+    }
+
+    @Override
+    public boolean containsUuid(String key) {
+        materialize();
+        return super.containsUuid(key);
+    }
+
+    @Override
+    public NbtList getList(String key, int type) {
+        materialize();
+        return super.getList(key, type);
+    }
+
+    @Override
+    public boolean contains(String key, int type) {
+        materialize();
+        return super.contains(key, type);
+    }
+
+    @Override
+    public String asString() {
+        materialize();
+        return super.asString();
+    }
+
+    @Override
+    public void accept(NbtElementVisitor visitor) {
+        materialize();
+        super.accept(visitor);
+    }
+
+    @Override
+    public String toString() {
+        materialize();
+        return super.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        materialize();
+        return super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        materialize();
+        return super.hashCode();
+    }
+}
@@ -0,0 +1,149 @@
+package net.flytre.pipe.pipe;
+
+import it.unimi.dsi.fastutil.longs.Long2ByteOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.flytre.pipe.routing.FilterPredicate;
+import net.flytre.pipe.routing.InventoryCapacityView;
+import net.flytre.pipe.routing.Positions;
+import net.flytre.pipe.routing.Router;
+import net.flytre.pipe.routing.Sides;
+import net.flytre.pipe.routing.TopologyView;
+import net.minecraft.item.ItemStack;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+import net.minecraft.world.World;
+
+/**
+ * A copy of how the pipes of a network are connected and which of their sides lead to inventories, taken on the server
+ * thread so route planners on other threads can search it without touching the world. It never changes once taken.
+ * Taking one costs about as much as a search of the whole network, so it's charged to the RoutingBudget the same way.
+ * <p>
+ * Nothing about the contents of inventories is copied, so planners search for every destination regardless of whether
+ * the item fits, and the server thread picks from them once the plan is done (see PipeRoutePlanner).
+ */
+final class NetworkSnapshot implements TopologyView, InventoryCapacityView<ItemStack> {
+
+    private final Long2IntOpenHashMap sides;
+    private final Long2ByteOpenHashMap inventorySides;
+
+    /**
+     * Pipes with a filter other than the default, the only ones that can turn an item away
+     */
+    private final long[] filteredPipes;
+
+    private NetworkSnapshot(Long2IntOpenHashMap sides, Long2ByteOpenHashMap inventorySides, long[] filteredPipes) {
+        this.sides = sides;
+        this.inventorySides = inventorySides;
+        this.filteredPipes = filteredPipes;
+    }
+
+    /**
+     * Starts taking a snapshot of a network. Large networks take a while to copy, so the copying is spread over as many
+     * calls to Builder.step as it takes.
+     */
+    static Builder builder(LongSet network) {
+        return new Builder(network.toLongArray());
+    }
+
+    /**
+     * Checks the filters of the network against a stack on the server thread, so changes to a filter count from the
+     * next plan on. A pipe that only gets a filter after the snapshot was taken is missed until the network is rebuilt,
+     * though normal mode checks the route it picks against the live filters anyway.
+     */
+    FilterPredicate<ItemStack> filterFor(World world, ItemStack stack) {
+        LongOpenHashSet rejected = new LongOpenHashSet();
+        for (long pos : filteredPipes)
+            if (world.getBlockEntity(BlockPos.fromLong(pos)) instanceof PipeEntity pipe && !pipe.passesFilter(stack))
+                rejected.add(pos);
+        return (pipe, ignored) -> !rejected.contains(pipe);
+    }
+
+    Router<ItemStack> router(FilterPredicate<ItemStack> filter) {
+        return new Router<>(this, this, filter);
+    }
+
+    @Override
+    public int getSides(long pos) {
+        return sides.get(pos);
+    }
+
+    @Override
+    public boolean hasInventory(long pipe, int direction) {
+        return (inventorySides.get(pipe) & 1 << direction) != 0;
+    }
+
+    /**
+     * Only searches for every destination are planned, which never ask whether the item fits
+     */
+    @Override
+    public boolean canInsert(ItemStack stack, int count, long pipe, int direction) {
+        return true;
+    }
+
+    @Override
+    public int getInFlight(ItemStack stack, long destination) {
+        return 0;
+    }
+
+    static final class Builder {
+
+        /**
+         * How many pipes are copied between checks of the clock
+         */
+        private static final int BATCH = 64;
+
+        /**
+         * The pipes of the network as they were when the snapshot was started. Networks are replaced rather than changed
+         * once built, but copying them keeps the snapshot consistent even if one were changed halfway through.
+         */
+        private final long[] pipes;
+        private final Long2IntOpenHashMap sides;
+        private final Long2ByteOpenHashMap inventorySides = new Long2ByteOpenHashMap();
+        private final LongArrayList filteredPipes = new LongArrayList();
+        private int next;
+
+        private Builder(long[] pipes) {
+            this.pipes = pipes;
+            this.sides = new Long2IntOpenHashMap(pipes.length);
+            sides.defaultReturnValue(Sides.ABSENT);
+        }
+
+        /**
+         * Copies pipes until every one has been copied or the deadline, a System.nanoTime(), has passed
+         *
+         * @return whether the snapshot is done
+         */
+        boolean step(World world, long deadline) {
+            while (next < pipes.length) {
+                int end = Math.min(next + BATCH, pipes.length);
+                for (; next < end; next++)
+                    copy(world, pipes[next]);
+                if (System.nanoTime() - deadline >= 0)
+                    break;
+            }
+            return next == pipes.length;
+        }
+
+        private void copy(World world, long pos) {
+            if (!(world.getBlockEntity(BlockPos.fromLong(pos)) instanceof PipeEntity pipe))
+                return;
+            sides.put(pos, pipe.getPackedSides());
+
+            byte inventories = 0;
+            for (int d = 0; d < Positions.DIRECTIONS; d++)
+                if (pipe.getInventory(Direction.byId(d)) != null)
+                    inventories |= 1 << d;
+            if (inventories != 0)
+                inventorySides.put(pos, inventories);
+            if (pipe.getCustomFilter() != null)
+                filteredPipes.add(pos);
+        }
+
+        NetworkSnapshot build() {
+            return new NetworkSnapshot(sides, inventorySides, filteredPipes.toLongArray());
+        }
+    }
+}
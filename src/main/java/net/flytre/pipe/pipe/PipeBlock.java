@@ -15,12 +15,12 @@ import net.minecraft.item.Item;
 import net.minecraft.item.ItemPlacementContext;
 import net.minecraft.item.ItemStack;
 import net.minecraft.screen.NamedScreenHandlerFactory;
+import net.minecraft.server.world.ServerWorld;
 import net.minecraft.state.StateManager;
 import net.minecraft.state.property.EnumProperty;
 import net.minecraft.util.ActionResult;
 import net.minecraft.util.Hand;
 import net.minecraft.util.ItemScatterer;
-import net.minecraft.util.function.BooleanBiFunction;
 import net.minecraft.util.hit.BlockHitResult;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.Direction;
@@ -60,6 +60,12 @@ public class PipeBlock extends BlockWithEntity implements ItemPipeConnectable {
     private static final VoxelShape S_NORTH;
     private static final VoxelShape S_SOUTH;
 
+    /**
+     * The outline shape of every combination of pipe sides, indexed by shapeIndex(). There are only 3^6 of them, so
+     * they're all built once up front instead of unioning the parts together every time the shape is asked for.
+     */
+    private static final VoxelShape[] SHAPES = new VoxelShape[729];
+
 
     static {
         UP = EnumProperty.of("pipe_up", PipeSide.class);
@@ -81,6 +87,21 @@ public class PipeBlock extends BlockWithEntity implements ItemPipeConnectable {
         S_WEST = Block.createCuboidShape(0, 3.5, 3.5, 2, 12.5, 12.5);
         S_NORTH = Block.createCuboidShape(3.5, 3.5, 0, 12.5, 12.5, 2);
         S_SOUTH = Block.createCuboidShape(3.5, 3.5, 14, 12.5, 12.5, 16);
+
+        PipeSide[] values = PipeSide.values();
+        for (int index = 0; index < SHAPES.length; index++) {
+            VoxelShape shape = NODE;
+            int remaining = index;
+            for (Direction direction : Direction.values()) {
+                PipeSide side = values[remaining % 3];
+                remaining /= 3;
+                if (side != PipeSide.NONE)
+                    shape = VoxelShapes.union(shape, getConnectorShape(direction));
+                if (side == PipeSide.SERVO)
+                    shape = VoxelShapes.union(shape, getServoShape(direction));
+            }
+            SHAPES[index] = shape.simplify();
+        }
     }
 
     public PipeBlock(Settings settings) {
@@ -94,6 +115,38 @@ public class PipeBlock extends BlockWithEntity implements ItemPipeConnectable {
                 .with(WEST, PipeSide.NONE));
     }
 
+    private static int shapeIndex(BlockState state) {
+        int index = 0;
+        int multiplier = 1;
+        for (Direction direction : Direction.values()) {
+            index += state.get(getProperty(direction)).ordinal() * multiplier;
+            multiplier *= 3;
+        }
+        return index;
+    }
+
+    private static VoxelShape getConnectorShape(Direction facing) {
+        return switch (facing) {
+            case UP -> C_UP;
+            case DOWN -> C_DOWN;
+            case EAST -> C_EAST;
+            case WEST -> C_WEST;
+            case NORTH -> C_NORTH;
+            case SOUTH -> C_SOUTH;
+        };
+    }
+
+    private static VoxelShape getServoShape(Direction facing) {
+        return switch (facing) {
+            case UP -> S_UP;
+            case DOWN -> S_DOWN;
+            case EAST -> S_EAST;
+            case WEST -> S_WEST;
+            case NORTH -> S_NORTH;
+            case SOUTH -> S_SOUTH;
+        };
+    }
+
     public static EnumProperty<PipeSide> getProperty(Direction facing) {
         return switch (facing) {
             case UP -> UP;
@@ -170,34 +223,7 @@ public class PipeBlock extends BlockWithEntity implements ItemPipeConnectable {
 
     @Override
     public VoxelShape getOutlineShape(BlockState state, BlockView world, BlockPos pos, ShapeContext context) {
-        VoxelShape shape = NODE;
-        if (state.get(UP) != PipeSide.NONE)
-            shape = VoxelShapes.combineAndSimplify(shape, C_UP, BooleanBiFunction.OR);
-        if (state.get(DOWN) != PipeSide.NONE)
-            shape = VoxelShapes.combineAndSimplify(shape, C_DOWN, BooleanBiFunction.OR);
-        if (state.get(NORTH) != PipeSide.NONE)
-            shape = VoxelShapes.combineAndSimplify(shape, C_NORTH, BooleanBiFunction.OR);
-        if (state.get(EAST) != PipeSide.NONE)
-            shape = VoxelShapes.combineAndSimplify(shape, C_EAST, BooleanBiFunction.OR);
-        if (state.get(SOUTH) != PipeSide.NONE)
-            shape = VoxelShapes.combineAndSimplify(shape, C_SOUTH, BooleanBiFunction.OR);
-        if (state.get(WEST) != PipeSide.NONE)
-            shape = VoxelShapes.combineAndSimplify(shape, C_WEST, BooleanBiFunction.OR);
-
-        if (state.get(UP) == PipeSide.SERVO)
-            shape = VoxelShapes.combineAndSimplify(shape, S_UP, BooleanBiFunction.OR);
-        if (state.get(DOWN) == PipeSide.SERVO)
-            shape = VoxelShapes.combineAndSimplify(shape, S_DOWN, BooleanBiFunction.OR);
-        if (state.get(NORTH) == PipeSide.SERVO)
-            shape = VoxelShapes.combineAndSimplify(shape, S_NORTH, BooleanBiFunction.OR);
-        if (state.get(EAST) == PipeSide.SERVO)
-            shape = VoxelShapes.combineAndSimplify(shape, S_EAST, BooleanBiFunction.OR);
-        if (state.get(SOUTH) == PipeSide.SERVO)
-            shape = VoxelShapes.combineAndSimplify(shape, S_SOUTH, BooleanBiFunction.OR);
-        if (state.get(WEST) == PipeSide.SERVO)
-            shape = VoxelShapes.combineAndSimplify(shape, S_WEST, BooleanBiFunction.OR);
-
-        return shape;
+        return SHAPES[shapeIndex(state)];
     }
 
     @Override
@@ -211,6 +237,11 @@ public class PipeBlock extends BlockWithEntity implements ItemPipeConnectable {
         if (world.isClient())
             return state;
 
+        //Some blocks only change their state without a neighbor update, like a chest becoming half of a double chest,
+        //which changes the inventory the cached one on that side is part of
+        if (world.getBlockEntity(pos) instanceof PipeEntity pipe)
+            pipe.invalidateInventory(direction);
+
         Block neighbor = world.getBlockState(posFrom).getBlock();
         if (state.get(getProperty(direction)) == PipeSide.SERVO || isWrenched(world, pos, direction))
             return state;
@@ -256,6 +287,8 @@ public class PipeBlock extends BlockWithEntity implements ItemPipeConnectable {
                         ItemScatterer.spawn(world, pos.getX(), pos.getY(), pos.getZ(), stack);
                     }
                 }
+                if (world instanceof ServerWorld serverWorld)
+                    PipeNetworkState.get(serverWorld).forget(pos);
             }
         }
         super.onStateReplaced(state, world, pos, newState, moved);
@@ -300,14 +333,14 @@ public class PipeBlock extends BlockWithEntity implements ItemPipeConnectable {
         BlockEntity b = world.getBlockEntity(pos);
         if (!(b instanceof PipeEntity))
             return false;
-        return ((PipeEntity) b).wrenched.get(d);
+        return ((PipeEntity) b).isWrenched(d);
     }
 
     private void setWrenched(WorldAccess world, BlockPos pos, Direction d, boolean value) {
         BlockEntity b = world.getBlockEntity(pos);
         if (!(b instanceof PipeEntity))
             return;
-        ((PipeEntity) b).wrenched.put(d, value);
+        ((PipeEntity) b).setWrenched(d, value);
     }
 
     @Nullable
@@ -324,6 +357,7 @@ public class PipeBlock extends BlockWithEntity implements ItemPipeConnectable {
      * Basically, if a block adjacent to a pipe gets changed and that's also connectable to the pipe network, the pipe
      * adjacent to the block will tell all pipes in the network to clear their caches and recalculate routes. This is really
      * important to prevent stale, inaccurate cached values.
+     * It also drops the pipe's cached inventory on the side of the update, since it may no longer be there.
      *
      *
      * @param state   Current BlockState of Pipe
@@ -337,11 +371,17 @@ public class PipeBlock extends BlockWithEntity implements ItemPipeConnectable {
     public void neighborUpdate(BlockState state, World world, BlockPos pos, Block block, BlockPos fromPos, boolean notify) {
 
         BlockState changedState = world.getBlockState(fromPos); //Get the new block at the modified position.
-        if (changedState.getBlock() instanceof AirBlock || isConnectable(changedState.getBlock(), world.getBlockEntity(fromPos))) {
-            BlockEntity pipeEntity = world.getBlockEntity(pos);
-            if (pipeEntity instanceof PipeEntity pipe) {
+        BlockEntity pipeEntity = world.getBlockEntity(pos);
+        if (pipeEntity instanceof PipeEntity pipe) {
+            //The cached inventory on that side may have been replaced or removed
+            Direction side = Direction.fromVector(fromPos.getX() - pos.getX(), fromPos.getY() - pos.getY(), fromPos.getZ() - pos.getZ());
+            if (side != null)
+                pipe.invalidateInventory(side);
+            else
+                pipe.invalidateInventories();
+
+            if (changedState.getBlock() instanceof AirBlock || isConnectable(changedState.getBlock(), world.getBlockEntity(fromPos)))
                 pipe.clearNetworkCache();
-            }
         }
         super.neighborUpdate(state, world, pos, block, fromPos, notify);
     }
@@ -0,0 +1,89 @@
+package net.flytre.pipe.pipe;
+
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
+import net.minecraft.block.entity.BarrelBlockEntity;
+import net.minecraft.block.entity.ChestBlockEntity;
+import net.minecraft.block.entity.DispenserBlockEntity;
+import net.minecraft.block.entity.DropperBlockEntity;
+import net.minecraft.block.entity.ShulkerBoxBlockEntity;
+import net.minecraft.block.entity.TrappedChestBlockEntity;
+import net.minecraft.inventory.Inventory;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.WorldChunk;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects everything pipes changed during a tick and marks it dirty once at the end of the tick, instead of once per
+ * item moved. Each inventory items were extracted from or delivered to gets a single markDirty() (and so a single
+ * comparator update), and pipes are tracked by chunk: all the pipes in a chunk that moved items only mark the chunk as
+ * needing to be saved once.
+ * <p>
+ * Only vanilla containers whose markDirty() does nothing but flag the chunk and update comparators are deferred, and
+ * their comparators now update at the end of the tick rather than right after the item moved. Every other inventory,
+ * like a hopper or a modded machine that starts working when it's marked dirty, is still marked dirty right away.
+ */
+public final class PipeDirtyTracker {
+
+    private static final Set<Inventory> INVENTORIES = new ReferenceOpenHashSet<>();
+    private static final Map<ServerWorld, LongSet> CHUNKS = new Reference2ObjectOpenHashMap<>();
+
+    /**
+     * Matched by exact class, so subclasses from other mods that override markDirty() aren't deferred
+     */
+    private static final Set<Class<?>> DEFERRED_CLASSES = Set.of(
+            ChestBlockEntity.class,
+            TrappedChestBlockEntity.class,
+            BarrelBlockEntity.class,
+            ShulkerBoxBlockEntity.class,
+            DispenserBlockEntity.class,
+            DropperBlockEntity.class
+    );
+
+    private PipeDirtyTracker() {
+    }
+
+    public static void markInventory(Inventory inventory) {
+        if (DEFERRED_CLASSES.contains(inventory.getClass()))
+            INVENTORIES.add(inventory);
+        else
+            inventory.markDirty();
+    }
+
+    public static void markPipe(World world, BlockPos pos) {
+        if (world instanceof ServerWorld serverWorld)
+            CHUNKS.computeIfAbsent(serverWorld, k -> new LongOpenHashSet()).add(ChunkPos.toLong(pos.getX() >> 4, pos.getZ() >> 4));
+    }
+
+    /**
+     * Called at the end of every server tick
+     */
+    public static void flush() {
+        if (!INVENTORIES.isEmpty()) {
+            for (Inventory inventory : INVENTORIES)
+                inventory.markDirty();
+            INVENTORIES.clear();
+        }
+
+        if (!CHUNKS.isEmpty()) {
+            for (Map.Entry<ServerWorld, LongSet> entry : CHUNKS.entrySet()) {
+                ServerWorld world = entry.getKey();
+                for (LongIterator iterator = entry.getValue().iterator(); iterator.hasNext(); ) {
+                    long chunk = iterator.nextLong();
+                    WorldChunk worldChunk = world.getChunkManager().getWorldChunk(ChunkPos.getPackedX(chunk), ChunkPos.getPackedZ(chunk));
+                    if (worldChunk != null)
+                        worldChunk.setShouldSave(true);
+                }
+            }
+            CHUNKS.clear();
+        }
+    }
+}
@@ -1,5 +1,10 @@
 package net.flytre.pipe.pipe;
 
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSets;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
 import net.fabricmc.fabric.api.screenhandler.v1.ExtendedScreenHandlerFactory;
@@ -10,32 +15,48 @@ import net.flytre.flytre_lib.api.storage.inventory.filter.Filtered;
 import net.flytre.flytre_lib.api.storage.inventory.filter.packet.FilterEventHandler;
 import net.flytre.pipe.Config;
 import net.flytre.pipe.Pipe;
-import net.minecraft.block.Block;
+import net.flytre.pipe.client.ClientPipeItems;
+import net.flytre.pipe.metrics.PipeEvents;
+import net.flytre.pipe.metrics.PipeHeatmap;
+import net.flytre.pipe.metrics.PipeMetrics;
+import net.flytre.pipe.metrics.PipeProfiler;
+import net.flytre.pipe.metrics.PipeTraceRecorder;
+import net.flytre.pipe.network.PipeChunkSync;
+import net.flytre.pipe.network.PipeItemDeltaS2CPacket;
+import net.flytre.pipe.routing.FlowIndex;
+import net.flytre.pipe.routing.Route;
+import net.flytre.pipe.routing.Router;
 import net.minecraft.block.BlockState;
+import net.minecraft.block.ChestBlock;
 import net.minecraft.block.entity.BlockEntity;
+import net.minecraft.block.enums.ChestType;
 import net.minecraft.entity.player.PlayerEntity;
 import net.minecraft.entity.player.PlayerInventory;
 import net.minecraft.inventory.Inventory;
 import net.minecraft.item.ItemStack;
 import net.minecraft.nbt.NbtCompound;
-import net.minecraft.nbt.NbtList;
+import net.minecraft.nbt.NbtElement;
 import net.minecraft.network.Packet;
 import net.minecraft.network.PacketByteBuf;
 import net.minecraft.network.listener.ClientPlayPacketListener;
 import net.minecraft.network.packet.s2c.play.BlockEntityUpdateS2CPacket;
 import net.minecraft.screen.ScreenHandler;
 import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.server.world.ServerWorld;
 import net.minecraft.text.Text;
 import net.minecraft.text.TranslatableText;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.Direction;
+import net.minecraft.util.math.MathHelper;
 import net.minecraft.util.registry.Registry;
 import net.minecraft.world.World;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
-import java.util.function.Function;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 
@@ -81,30 +102,53 @@ public final class PipeEntity extends BlockEntity implements ExtendedScreenHandl
      * -Needs to handle state of destination inventories changing (i.e. filling up, emptying out)
      * -Cannot consume too much memory or that will slow other processes
      * -Needs to handle conditions being updated, i.e. filter being updated
+     * <p>
+     * Most pipes never route anything themselves, so the cache is only allocated once it's needed (see cache()) and
+     * is dropped again whenever it's cleared.
      */
-    private final transient LinkedHashMap<CacheKey, CacheResult> cache = new LinkedHashMap<>() {
-        @Override
-        protected boolean removeEldestEntry(final Map.Entry<CacheKey, CacheResult> eldest) {
+    private transient @Nullable LinkedHashMap<CacheKey, CacheResult> cache;
 
-            long time = world == null ? Long.MAX_VALUE : world.getTime();
-            long entryTime = eldest.getValue().time;
-            return time - entryTime > 500 && size() > 10;
-        }
-    };
+    /**
+     * Routes being planned off the server thread for lookups that missed the cache, see PipeRoutePlanner. Null unless
+     * async routing is on and this pipe has routed something.
+     */
+    private transient @Nullable Map<CacheKey, PendingPlan> plans;
+    private transient long lastPlanTick;
+
+    /**
+     * Whether the network this pipe was part of when the world was saved couldn't be restored yet because some of its
+     * chunks weren't loaded, see restoreNetwork()
+     */
+    private transient boolean restorePending;
 
     /**
      * The network stores the locations of all pipes in the network; The same set is shared across all pipes in the network so it must
      * not be altered inappropriately.
      */
-    public transient Set<BlockPos> network = new HashSet<>();
+    public transient LongSet network = LongSets.EMPTY_SET;
+
 
+    private static final Logger LOGGER = LogManager.getLogger("Pipe");
+    private static final PipeSide[] PIPE_SIDES = PipeSide.values();
+    private static final int WRENCH_SHIFT = 12;
+    private static final FilterInventory DEFAULT_FILTER = FilterInventory.readNbt(new NbtCompound(), 1);
 
     /**
-     * Stores a map of each side of the pipe (indicated by direction) and whether that side is "wrenched"
-     * Sides that are "wrenches" artificially block incoming connections, so that pipes can be placed
+     * Returned by findDestinations when the search was put off because the routing budget for the tick ran out, see
+     * RoutingBudget. It's empty, so it reads as no destinations to anything that doesn't check for it.
+     */
+    private static final List<PipeResult> DEFERRED = Collections.unmodifiableList(new ArrayList<>(0));
+
+    /**
+     * Stores how each side of the pipe is connected, packed into a single int so routing code doesn't need to look
+     * up the block state: bits 0-11 hold the PipeSide ordinal of each side (2 bits per side, indexed by Direction#getId()),
+     * and bits 12-17 store whether each side is "wrenched".
+     * Sides that are "wrenched" artificially block incoming connections, so that pipes can be placed
      * side by side without connecting
+     * <p>
+     * The connection bits mirror the block state and are updated in setCachedState whenever PipeBlock changes it.
      */
-    public Map<Direction, Boolean> wrenched;
+    private int sides;
 
     /**
      * How long since the cache has been cleared by block update.
@@ -130,8 +174,16 @@ public final class PipeEntity extends BlockEntity implements ExtendedScreenHandl
      * The location of the destination (on the coordinate plane)
      * Client: What side of the pipe the item is travelling towards, for item rendering purposes
      * The total distance this item needs to travel
+     * <p>
+     * Null while the pipe is empty, so idle pipes don't each hold an empty set.
      */
-    private Set<TimedPipeResult> items;
+    private @Nullable Set<TimedPipeResult> items;
+
+    /**
+     * A saved queue this version can't read, i.e. one saved by a newer version of the mod. It's written back as it was
+     * instead of being replaced with an empty queue, so going back to that version doesn't lose the items in it.
+     */
+    private @Nullable NbtElement unreadQueue;
 
     /**
      * The following two variables store data about round robin mode:
@@ -150,13 +202,31 @@ public final class PipeEntity extends BlockEntity implements ExtendedScreenHandl
      * A filter inventory is a utility class in my Minecraft library mod that stores information about a filter -
      * namely, data about what kinds of items are allowed through it and whether any given item would be allowed to
      * pass through
+     * <p>
+     * Only pipes with a servo use their filter, so it's created on demand by getFilter() and pipes loaded with a default
+     * filter don't keep one around.
      */
-    private FilterInventory filter;
+    private @Nullable FilterInventory filter;
 
     /**
-     * Stores when data needs to be synced to the client, then syncs it when this is true
+     * The changes to the items in this pipe that haven't been sent to the client yet, along with the tick they were
+     * queued on. The pipe is marked on its chunk (see PipeChunkSync), which sends them when it flushes its updates at
+     * the start of the next tick.
      */
-    private boolean needsSync;
+    private transient @Nullable List<PipeItemDelta> pendingDeltas;
+    private transient long pendingDeltaTime;
+
+    /**
+     * Client ticks skipped because the pipe was too far from the player, made up for once it's back in range. Items
+     * arriving in the meantime are credited with the ticks skipped before they arrived (see addClientItem), so they only
+     * catch up on the time they actually spent here.
+     */
+    private transient int skippedClientTicks;
+
+    /**
+     * How many pipes the last route search expanded, reported to PipeMetrics
+     */
+    private transient int lastSearchNodes;
 
 
     /**
@@ -169,6 +239,18 @@ public final class PipeEntity extends BlockEntity implements ExtendedScreenHandl
      */
     private boolean speedSet = false;
 
+    /**
+     * Caches the inventory adjacent to each face of the pipe, indexed by Direction#getId(), so routing and rendering don't
+     * have to look the inventory up in the world every time. A set bit in inventoryCacheMask means that face holds a cached
+     * inventory.
+     * Only block entities are cached: inventories of blocks without one (like the composter's) and of entities can change
+     * or go away without a neighbor update, so they're looked up every time, as are faces with no inventory.
+     * Faces are invalidated by PipeBlock#neighborUpdate and PipeBlock#getStateForNeighborUpdate when the adjacent block or
+     * its state changes, and a cached block entity is discarded once it's removed. Clients don't receive neighbor updates, so they just clear it every tick.
+     */
+    private transient Inventory @Nullable [] adjacentInventories;
+    private transient int inventoryCacheMask;
+
 
     /**
      * Something to note is that state-dependent data about a block entity is usually initialized in the readNbt() method, and not in the
@@ -178,10 +260,7 @@ public final class PipeEntity extends BlockEntity implements ExtendedScreenHandl
         super(Pipe.ITEM_PIPE_BLOCK_ENTITY, pos, state);
         roundRobinIndex = 0;
         roundRobinMode = false;
-        items = new HashSet<>();
-        wrenched = Arrays.stream(Direction.values()).collect(Collectors.toMap(Function.identity(), i -> false));
-        filter = FilterInventory.readNbt(new NbtCompound(), 1); //Basically, its asking the filter inventory to read from no nbt, so it creates a default filter inventory.
-        needsSync = false;
+        sides = packSides(state, 0);
     }
 
 
@@ -207,20 +286,22 @@ public final class PipeEntity extends BlockEntity implements ExtendedScreenHandl
         if (me == null)
             return result;
 
+        Router<ItemStack> router = PipeRoutingView.router(world, me.network);
+
         for (Direction direction : Direction.values()) { //For each possible direction
 
             if ((me.getSide(direction) == PipeSide.CONNECTED)) { //If this pipe is connected to something
                 BlockPos pos = startingPos.offset(direction);
                 BlockEntity entity = world.getBlockEntity(pos);
-                Inventory inventory = InventoryUtils.getInventoryAt(world, pos);
+                Inventory inventory = me.getInventory(direction);
 
                 if (entity instanceof PipeEntity pipeEntity) { //If connected to another pipe
-                    PipeSide state = world.getBlockState(startingPos.offset(direction)).get(PipeBlock.getProperty(direction.getOpposite()));
-                    boolean valid = state == PipeSide.CONNECTED || (state == PipeSide.SERVO && (pipeEntity.filter.isEmpty() || pipeEntity.filter.passFilterTest(stack)));
+                    PipeSide state = pipeEntity.getSide(direction.getOpposite());
+                    boolean valid = state == PipeSide.CONNECTED || (state == PipeSide.SERVO && pipeEntity.passesFilter(stack));
                     if (valid)
                         result.add(direction);
                 } else if (inventory != null) { //If connected to an inventory
-                    if (!checkInsertion || canInsertFirm(world, me.network, stack, inventory, direction, stuck)) { //If the stack can be inserted into that inventory
+                    if (!checkInsertion || router.canInsertFirm(stack, startingPos.asLong(), direction.getId(), stuck)) { //If the stack can be inserted into that inventory
                         result.add(direction);
                     }
                 }
@@ -230,189 +311,135 @@ public final class PipeEntity extends BlockEntity implements ExtendedScreenHandl
         return result;
     }
 
-    /**
-     * @param stack       the item stack to check for
-     * @param destination the destination inventory
-     * @param direction   the direction to insert from
-     * @return Checks if item stack X be inserted into inventory Y from Direction D. However, it also takes into consideration all other items flowing into the inventory
-     * from the network, and if those being inserted already would make it impossible for item stack X to be inserted, MAY return false.
-     */
-    private static boolean canInsertFirm(World world, Set<BlockPos> network, ItemStack stack, Inventory destination, Direction direction, boolean isStuck) {
-
-
-        //Works because you can only extract stacks of 1 item at a time.
-        var flows = getFlows(network, world);
-        var wrapped = new WrappedItemStack(stack);
-
-
-        //basically, if multiple items are stuck they will block EACH OTHER from finding a valid container; using isStuck to manually override that behavior prevents this.
-        int flowCt = isStuck ? 0 : (flows.containsKey(wrapped) ? (int) flows.get(wrapped).stream().filter(k -> InventoryUtils.getInventoryAt(world, k.getPipeResult().getDestination()) == destination).count() : 0);
-
-
-        //if there are no items of that type flowing through the pipe return true
-        if (flowCt == 0) {
-            return destination != null && InventoryUtils.getAvailableSlots(destination, direction.getOpposite()).anyMatch(i -> {
-                ItemStack slotStack = destination.getStack(i);
-                if (InventoryUtils.canInsert(destination, stack, i, direction.getOpposite()))
-                    return slotStack.isEmpty() || (InventoryUtils.canMergeItems(slotStack, stack) && slotStack.getCount() < slotStack.getMaxCount());
-                return false;
-            });
-        } else {
-            //basically, estimate how many items are going into the container and if it's going to be full, don't send the item
-            if (destination == null)
-                return false;
-            int[] slots = InventoryUtils.getAvailableSlots(destination, direction.getOpposite()).toArray();
-            ItemStack copy = stack.copy();
-            copy.setCount(flowCt + 1);
-            for (int slot : slots) {
-                ItemStack slotStack = destination.getStack(slot);
-
-                if (slotStack.getCount() >= slotStack.getMaxCount())
-                    continue;
-
-                if (InventoryUtils.canInsert(destination, copy, slot, direction.getOpposite())) {
-                    if (slotStack.isEmpty()) {
-                        if (copy.getCount() < 64)
-                            return true;
-                        else
-                            copy.decrement(64);
-                    } else if (InventoryUtils.canMergeItems(slotStack, copy)) {
-                        int target = slotStack.getMaxCount() - slotStack.getCount();
-                        if (copy.getCount() <= target)
-                            return true;
-                        else
-                            copy.decrement(target);
-                    }
-                }
-            }
-            return false;
-        }
-
+    //get all items flowing thru a network
+    public static FlowIndex<WrappedItemStack> getFlows(LongSet network, World world) {
+        if (!PipeProfiler.isRunning())
+            return collectFlows(network, world);
+        long start = System.nanoTime();
+        FlowIndex<WrappedItemStack> flows = collectFlows(network, world);
+        PipeProfiler.record(world, network, null, PipeProfiler.Section.FLOWS, System.nanoTime() - start, 0);
+        return flows;
     }
 
-    //get all items flowing thru a network
-    public static Map<WrappedItemStack, Set<TimedPipeResult>> getFlows(Set<BlockPos> network, World world) {
-        Map<WrappedItemStack, Set<TimedPipeResult>> flows = new HashMap<>();
+    private static FlowIndex<WrappedItemStack> collectFlows(LongSet network, World world) {
+        FlowIndex<WrappedItemStack> flows = new FlowIndex<>();
 
         assert world != null;
-        for (BlockPos pos : network) {
-            if (world.getBlockEntity(pos) instanceof PipeEntity pipe) {
-                for (TimedPipeResult result : pipe.getQueuedItems()) {
-                    WrappedItemStack stack = new WrappedItemStack(result.getPipeResult().getStack());
-                    flows.putIfAbsent(stack, new HashSet<>());
-                    flows.get(stack).add(result);
-                }
+        for (LongIterator iterator = network.iterator(); iterator.hasNext(); ) {
+            if (world.getBlockEntity(BlockPos.fromLong(iterator.nextLong())) instanceof PipeEntity pipe) {
+                for (TimedPipeResult result : pipe.getQueuedItems())
+                    flows.add(new WrappedItemStack(result.getPipeResult().getStack()), reservationKey(world, result.getPipeResult().getDestination().asLong()));
             }
         }
         return flows;
     }
 
+    /**
+     * Where items flowing to a destination are counted, so every position of the same inventory shares them: the two
+     * halves of a double chest are one inventory and both count under the lower of their positions.
+     */
+    static long reservationKey(World world, long destination) {
+        BlockPos pos = BlockPos.fromLong(destination);
+        BlockState state = world.getBlockState(pos);
+        if (state.getBlock() instanceof ChestBlock && state.get(ChestBlock.CHEST_TYPE) != ChestType.SINGLE)
+            return Math.min(destination, pos.offset(ChestBlock.getFacing(state)).asLong());
+        return destination;
+    }
+
     /**
      * The validate method is used to ensure that a previously calculated cached route is still valid
      * This could return false if the destination block is destroyed or becomes full, a filter is changed so the item is no longer valid,
      * a pipe along the route is destroyed, etc.
      */
-    private boolean validate(ItemStack stack, BlockPos start, PipeResult result) {
+    private boolean validate(Router<ItemStack> router, ItemStack stack, BlockPos start, PipeResult result) {
         assert world != null;
-        Iterator<BlockPos> iterator = result.getPath().iterator();
-        BlockEntity startEntity = world.getBlockEntity(start);
-
-        if (startEntity == null)
+        if (world.getBlockEntity(start) == null)
             return false;
-
-        while (iterator.hasNext()) {
-            BlockPos next = iterator.next();
-            if (next.equals(start))
-                continue;
-
-            PipeEntity nextPipe = (PipeEntity) world.getBlockEntity(next);
-            @NotNull Direction direction = Objects.requireNonNull(Direction.fromVector(next.subtract(start)));
-            if (!validateChain(stack, next, startEntity, nextPipe, direction))
-                return false;
-
-            start = next;
-            startEntity = nextPipe;
-        }
-
-        BlockPos finalPos = result.getDestination();
-        assert startEntity != null;
-        return canInsertFirm(((PipeEntity) startEntity).world, ((PipeEntity) startEntity).network, stack, InventoryUtils.getInventoryAt(world, finalPos), Objects.requireNonNull(Direction.fromVector(finalPos.subtract(start))), false);
+        return router.validate(stack, start.asLong(), toRoute(result));
     }
 
-    private boolean validateChain(ItemStack stack, BlockPos next, BlockEntity currentEntity, BlockEntity nextEntity, @NotNull Direction direction) {
-        assert world != null;
-
-        PipeEntity currentPipe = currentEntity instanceof PipeEntity ? (PipeEntity) currentEntity : null;
-        PipeEntity nextPipe = nextEntity instanceof PipeEntity ? (PipeEntity) nextEntity : null;
-
-        if (nextPipe != null && (currentPipe == null || currentPipe.getSide(direction) == PipeSide.CONNECTED)) {
-            PipeSide state = world.getBlockState(next).get(PipeBlock.getProperty(direction.getOpposite()));
-            return state == PipeSide.CONNECTED || (state == PipeSide.SERVO && (nextPipe.filter.isEmpty() || nextPipe.filter.passFilterTest(stack)));
-        }
+    private static Route toRoute(PipeResult result) {
+        long[] path = new long[result.getPath().size()];
+        int i = 0;
+        for (BlockPos pos : result.getPath())
+            path[i++] = pos.asLong();
+        return new Route(result.getDestination().asLong(), path, result.getDirection().getId());
+    }
 
-        return false;
+    private static PipeResult toPipeResult(Route route, ItemStack stack, @Nullable Direction animate) {
+        LinkedList<BlockPos> path = new LinkedList<>();
+        for (long pos : route.path())
+            path.add(BlockPos.fromLong(pos));
+        return new PipeResult(BlockPos.fromLong(route.destination()), path, stack, Direction.byId(route.side()), animate);
     }
 
     @Override
     public FilterInventory getFilter() {
+        if (filter == null)
+            filter = FilterInventory.readNbt(new NbtCompound(), 1); //Basically, its asking the filter inventory to read from no nbt, so it creates a default filter inventory.
         return filter;
     }
 
+    /**
+     * The filter of this pipe if it has one other than the default, without creating one like getFilter() does
+     */
+    public @Nullable FilterInventory getCustomFilter() {
+        return filter == null || isDefaultFilter(filter) ? null : filter;
+    }
+
+    /**
+     * Whether the filter of this pipe lets the given stack through. Pipes without a filter let everything through.
+     */
+    boolean passesFilter(ItemStack stack) {
+        return filter == null || filter.isEmpty() || filter.passFilterTest(stack);
+    }
+
+    /**
+     * A filter that's empty and has default settings behaves exactly like no filter at all, so it doesn't need to be stored
+     */
+    private static boolean isDefaultFilter(FilterInventory filter) {
+        return filter.isEmpty() && filter.getFilterType() == DEFAULT_FILTER.getFilterType() && filter.isMatchMod() == DEFAULT_FILTER.isMatchMod() && filter.isMatchNbt() == DEFAULT_FILTER.isMatchNbt();
+    }
+
     public Set<TimedPipeResult> getQueuedItems() {
+        return items == null ? Collections.emptySet() : items;
+    }
+
+    private Set<TimedPipeResult> queue() {
+        if (items == null)
+            items = new HashSet<>(4);
         return items;
     }
 
+    private LinkedHashMap<CacheKey, CacheResult> cache() {
+        if (cache == null) {
+            cache = new LinkedHashMap<>(4) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<CacheKey, CacheResult> eldest) {
+
+                    long time = world == null ? Long.MAX_VALUE : world.getTime();
+                    long entryTime = eldest.getValue().time;
+                    return time - entryTime > 500 && size() > 10;
+                }
+            };
+        }
+        return cache;
+    }
+
     /**
      * One=true indicates the normal mode, where the method returns after finding the nearest valid location. When one is false, used for round-
      * robin mode, it finds all possible (including ones where the item cannot be inserted due to the state of the inventory) locations and returns them in order sorted from nearest to furthest.
-     * Performs a BFS search and returns the first valid location it finds to dump the items into
+     * The search itself is done by the router, see {@link Router#findDestinations}.
      */
-    private List<PipeResult> internalFindDestinations(ItemStack stack, BlockPos start, boolean one, boolean stuck) {
-
-        Direction animate = null;
-        for (Direction dir : Direction.values()) {
-            if (getPos().offset(dir).equals(start))
-                animate = dir;
-        }
+    private List<PipeResult> internalFindDestinations(Router<ItemStack> router, ItemStack stack, BlockPos start, boolean one, boolean stuck) {
+        Direction animate = Direction.fromVector(start.getX() - pos.getX(), start.getY() - pos.getY(), start.getZ() - pos.getZ());
         List<PipeResult> result = new ArrayList<>();
         if (world == null)
             return result;
 
-        Deque<PipeResult> toVisit = new LinkedList<>();
-        Set<BlockPos> visited = new HashSet<>();
-        Set<VisitedAngle> inventorySides = new HashSet<>();
-        toVisit.add(new PipeResult(this.getPos(), new LinkedList<>(), stack, Direction.NORTH, animate));
-
-        while (toVisit.size() > 0) {
-            PipeResult popped = toVisit.pop();
-            BlockPos current = popped.getDestination();
-            Queue<BlockPos> path = popped.getPath();
-
-            if (!current.equals(start)) {
-                if (InventoryUtils.getInventoryAt(world, current) != null) {
-                    VisitedAngle side = new VisitedAngle(popped.getDirection(), current);
-                    if (!(inventorySides.contains(side))) {
-                        result.add(popped);
-                        inventorySides.add(side);
-                        if (one)
-                            return result;
-                    }
-                }
-            }
-
-            if (world.getBlockEntity(current) instanceof PipeEntity) {
-                Collection<Direction> neighbors = PipeEntity.transferableDirections(current, world, stack, one, stuck);
-                for (Direction d : neighbors) {
-                    if (!visited.contains(current.offset(d)) || InventoryUtils.getInventoryAt(world, current.offset(d)) != null) {
-                        LinkedList<BlockPos> newPath = new LinkedList<>(path);
-                        newPath.add(current);
-                        toVisit.add(new PipeResult(current.offset(d), newPath, stack, d.getOpposite(), animate));
-                    }
-                }
-            }
-            visited.add(current);
-        }
-
+        for (Route route : router.findDestinations(pos.asLong(), stack, start.asLong(), one, stuck))
+            result.add(toPipeResult(route, stack, animate));
+        lastSearchNodes = router.getLastNodes();
         return result;
     }
 
@@ -422,8 +449,20 @@ public final class PipeEntity extends BlockEntity implements ExtendedScreenHandl
      * Internally, it uses a cache based approach although this is subject to change.
      */
     public List<PipeResult> findDestinations(ItemStack stack, BlockPos start, boolean one, boolean stuck) {
+        if (!PipeProfiler.isRunning())
+            return findCachedDestinations(stack, start, one, stuck);
+        long profileStart = System.nanoTime();
+        List<PipeResult> results = findCachedDestinations(stack, start, one, stuck);
+        PipeProfiler.record(world, network, pos, PipeProfiler.Section.ROUTE, System.nanoTime() - profileStart, 0);
+        return results;
+    }
+
+    private List<PipeResult> findCachedDestinations(ItemStack stack, BlockPos start, boolean one, boolean stuck) {
         assert world != null;
+        //A single router is used for the whole lookup, so the items flowing through the network are only summed up once
+        Router<ItemStack> router = PipeRoutingView.router(world, network);
         CacheKey key = new CacheKey(stack, start, one);
+        LinkedHashMap<CacheKey, CacheResult> cache = cache();
         if (cache.containsKey(key)) {
             List<PipeResult> val = cache.get(key).value;
 
@@ -435,9 +474,13 @@ public final class PipeEntity extends BlockEntity implements ExtendedScreenHandl
 
             if (!clear && !one) {
                 lastCacheTick = world.getTime();
-                return val.stream().filter(i -> canInsertFirm(world, network, stack, InventoryUtils.getInventoryAt(world, i.getDestination()), i.getDirection().getOpposite(), stuck)).map(PipeResult::copy).collect(Collectors.toList());
-            } else if (!clear && (val.stream().allMatch(i -> validate(stack, start, i)))) {
+                PipeMetrics.cacheLookup(world, network, true);
+                PipeEvents.cacheLookup(pos, true);
+                return val.stream().filter(i -> router.canInsertFirm(stack, i.getPath().getLast().asLong(), i.getDirection().getOpposite().getId(), stuck)).map(PipeResult::copy).collect(Collectors.toList());
+            } else if (!clear && (val.stream().allMatch(i -> validate(router, stack, start, i)))) {
                 lastCacheTick = world.getTime();
+                PipeMetrics.cacheLookup(world, network, true);
+                PipeEvents.cacheLookup(pos, true);
                 //Copy the cache value to prevent a reference leak which enables modifying the cache
                 return val.stream().map(PipeResult::copy).collect(Collectors.toList());
             } else {
@@ -445,7 +488,30 @@ public final class PipeEntity extends BlockEntity implements ExtendedScreenHandl
             }
         }
 
-        List<PipeResult> toCache = internalFindDestinations(stack, start, one, stuck);
+        if (PipeRoutePlanner.isEnabled())
+            return findPlannedDestinations(router, key, stack, start, one, stuck);
+
+        PipeMetrics.cacheLookup(world, network, false);
+        PipeEvents.cacheLookup(pos, false);
+        if (!RoutingBudget.tryAcquire(network)) {
+            PipeMetrics.routeDeferred(world, network);
+            return DEFERRED;
+        }
+        PipeEvents.RouteComputed event = new PipeEvents.RouteComputed();
+        event.begin();
+        long searchStart = System.nanoTime();
+        List<PipeResult> toCache = internalFindDestinations(router, stack, start, one, stuck);
+        long searchNanos = System.nanoTime() - searchStart;
+        RoutingBudget.spent(searchNanos);
+        PipeMetrics.routeSearch(world, network, lastSearchNodes, searchNanos);
+        if (event.shouldCommit()) {
+            event.setPipe(pos);
+            event.nodes = lastSearchNodes;
+            event.routes = toCache.size();
+            event.one = one;
+            event.item = Registry.ITEM.getId(stack.getItem()).toString();
+            event.commit();
+        }
         cache.put(key, new CacheResult(world.getTime(), toCache));
         lastCacheTick = world.getTime();
         //Copy the cache value to prevent a reference leak which enables modifying the cache
@@ -453,16 +519,83 @@ public final class PipeEntity extends BlockEntity implements ExtendedScreenHandl
 
     }
 
+    /**
+     * Looks up routes the same way as findCachedDestinations after a cache miss, except the search runs on
+     * PipeRoutePlanner's threads. The first lookup starts the plan and every lookup until it's done is put off, after
+     * which the routes it found are checked against the world as it is now and cached like any other search. No plan
+     * starts until PipeRoutePlanner has finished copying the network, which it does within the routing budget.
+     * <p>
+     * Plans always find every destination without knowing what fits where, so normal mode picks the nearest one the item
+     * can still get to here, and round-robin mode only gets the ones that have room, the same as on a cache hit. Plans
+     * started before the network was rebuilt are thrown away, since the pipes they searched may be gone, and plans
+     * nobody has asked for in a while are dropped when new ones start.
+     */
+    private List<PipeResult> findPlannedDestinations(Router<ItemStack> router, CacheKey key, ItemStack stack, BlockPos start, boolean one, boolean stuck) {
+        assert world != null;
+        long time = world.getTime();
+        lastPlanTick = time;
+        if (plans == null)
+            plans = new HashMap<>(4);
+        PendingPlan pending = plans.get(key);
+        if (pending == null || pending.network() != network) {
+            PipeMetrics.cacheLookup(world, network, false);
+            PipeEvents.cacheLookup(pos, false);
+            plans.values().removeIf(plan -> time - plan.started() > 200);
+            CompletableFuture<PipeRoutePlanner.Plan> future = PipeRoutePlanner.submit(world, network, stack, pos.asLong(), start.asLong());
+            if (future == null) {
+                //The network is still being copied for the planners, within the routing budget
+                PipeMetrics.routeDeferred(world, network);
+                return DEFERRED;
+            }
+            plans.put(new CacheKey(stack.copy(), start, one), new PendingPlan(network, future, time));
+            return DEFERRED;
+        }
+        if (!pending.future().isDone())
+            return DEFERRED;
+        plans.remove(key);
+        //Failed plans are logged by the planner and started over on the next lookup
+        if (pending.future().isCompletedExceptionally())
+            return DEFERRED;
+
+        PipeRoutePlanner.Plan plan = pending.future().join();
+        lastSearchNodes = plan.nodes();
+        PipeMetrics.routeSearch(world, network, plan.nodes(), plan.nanos());
+        Direction animate = Direction.fromVector(start.getX() - pos.getX(), start.getY() - pos.getY(), start.getZ() - pos.getZ());
+        List<PipeResult> toCache = new ArrayList<>();
+        for (Route route : plan.routes()) {
+            PipeResult result = toPipeResult(route, stack, animate);
+            if (!one) {
+                toCache.add(result);
+            } else if (validate(router, stack, start, result)) {
+                toCache.add(result);
+                break;
+            }
+        }
+        cache().put(key, new CacheResult(time, toCache));
+        lastCacheTick = time;
+        if (one)
+            //Copy the cache value to prevent a reference leak which enables modifying the cache
+            return toCache.stream().map(PipeResult::copy).collect(Collectors.toList());
+        //Stuck items don't count the items already flowing, which validate would
+        return toCache.stream()
+                .filter(i -> stuck ? router.canInsertFirm(stack, i.getPath().getLast().asLong(), i.getDirection().getOpposite().getId(), true) : validate(router, stack, start, i))
+                .map(PipeResult::copy)
+                .collect(Collectors.toList());
+    }
+
     /**
      * This method is used for item inventory extraction. It searches all connected inventories that
      * are marked for extraction (via servo), and attempts to find an item it can extract and transfer to destination
      * inventory(s)
+     *
+     * @return true if a route search was put off because the routing budget for this tick ran out, in which case
+     * extracting should be tried again next tick
      */
-    private void addToQueue() {
+    private boolean addToQueue() {
         for (Direction d : Direction.values()) {
             if (hasServo(d) && cooldown <= 0) {
                 assert world != null;
-                Inventory out = InventoryUtils.getInventoryAt(world, this.pos.offset(d));
+                Inventory out = getInventory(d);
                 Direction opp = d.getOpposite();
 
                 if (out == null || InventoryUtils.isInventoryEmpty(out, opp))
@@ -472,7 +605,7 @@ public final class PipeEntity extends BlockEntity implements ExtendedScreenHandl
                 for (int i : arr) {
 
                     ItemStack stack = out.getStack(i);
-                    if (!InventoryUtils.canExtract(out, stack, i, opp) || (!filter.isEmpty() && !filter.passFilterTest(stack)))
+                    if (!InventoryUtils.canExtract(out, stack, i, opp) || !passesFilter(stack))
                         continue;
 
                     if (stack.isEmpty())
@@ -483,6 +616,8 @@ public final class PipeEntity extends BlockEntity implements ExtendedScreenHandl
                     PipeResult result;
                     if (isRoundRobinMode()) {
                         List<PipeResult> results = findDestinations(one, this.pos.offset(d), false, false);
+                        if (results == DEFERRED)
+                            return true;
                         if (results.size() <= roundRobinIndex) {
                             roundRobinIndex = 0;
                         }
@@ -490,53 +625,151 @@ public final class PipeEntity extends BlockEntity implements ExtendedScreenHandl
                         result = roundRobinIndex < results.size() ? results.get(roundRobinIndex++) : null;
                     } else {
                         List<PipeResult> results = findDestinations(one, this.pos.offset(d), true, false);
+                        if (results == DEFERRED)
+                            return true;
                         result = results.size() == 0 ? null : results.get(0);
                     }
                     if (result != null) {
-                        items.add(new TimedPipeResult(result, ticksPerOperation * 3 / 2));
+                        TimedPipeResult timed = new TimedPipeResult(result, ticksPerOperation * 3 / 2);
+                        queue().add(timed);
+                        PipeTraceRecorder.moved(world, pos.offset(d), one, -1);
                         stack.decrement(1);
-                        out.markDirty();
-                        markDirty();
-                        if (result.getLength() < Pipe.PIPE_CONFIG.getConfig().maxRenderPipeLength)
-                            needsSync = true;
+                        PipeDirtyTracker.markInventory(out);
+                        PipeDirtyTracker.markPipe(world, pos);
+                        PipeMetrics.extracted(world, network);
+                        PipeProfiler.itemMoved(world, network, pos);
+                        PipeHeatmap.itemEntered(world, pos);
+                        sync(timed, PipeItemDelta.enter(timed));
                         break;
                     }
                 }
             }
         }
+        return false;
+    }
+
+    /**
+     * The connections of each side packed the way the routing core expects them, see {@link net.flytre.pipe.routing.Sides}
+     */
+    int getPackedSides() {
+        return sides & ((1 << WRENCH_SHIFT) - 1);
     }
 
     /**
      * Gets the PipeSide for the given Direction, aka whether/how the pipe is connected at that side.
      */
     public PipeSide getSide(Direction d) {
-        if (world == null)
-            return null;
-        BlockState state = world.getBlockState(pos);
-        if (!(state.getBlock() instanceof PipeBlock))
-            return null;
-        return state.get(PipeBlock.getProperty(d));
+        return PIPE_SIDES[(sides >> (d.getId() << 1)) & 3];
     }
 
     public boolean hasServo(Direction d) {
         return getSide(d) == PipeSide.SERVO;
     }
 
+    public boolean isWrenched(Direction d) {
+        return (sides & (1 << (WRENCH_SHIFT + d.getId()))) != 0;
+    }
+
+    public void setWrenched(Direction d, boolean wrenched) {
+        int bit = 1 << (WRENCH_SHIFT + d.getId());
+        sides = wrenched ? sides | bit : sides & ~bit;
+        markDirty();
+    }
+
+    /**
+     * Packs the connections of a pipe block state together with the given wrenched bits, see the sides field.
+     */
+    private static int packSides(BlockState state, int wrenched) {
+        int packed = wrenched << WRENCH_SHIFT;
+        if (!(state.getBlock() instanceof PipeBlock))
+            return packed;
+        for (Direction d : Direction.values())
+            packed |= state.get(PipeBlock.getProperty(d)).ordinal() << (d.getId() << 1);
+        return packed;
+    }
+
+    /**
+     * Called by the chunk whenever the block state of this pipe changes, i.e. a side is connected, disconnected or gets a servo.
+     */
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setCachedState(BlockState state) {
+        super.setCachedState(state);
+        sides = packSides(state, sides >>> WRENCH_SHIFT);
+    }
+
+    /**
+     * Gets the inventory adjacent to the given face of the pipe, using the cached value if there is one.
+     */
+    public @Nullable Inventory getInventory(Direction d) {
+        if (world == null)
+            return null;
+        int id = d.getId();
+        if (adjacentInventories == null)
+            adjacentInventories = new Inventory[6];
+        Inventory inventory = adjacentInventories[id];
+        if ((inventoryCacheMask & (1 << id)) != 0 && !(inventory instanceof BlockEntity entity && entity.isRemoved()))
+            return inventory;
+        inventory = InventoryUtils.getInventoryAt(world, pos.offset(d));
+        if (inventory instanceof BlockEntity) {
+            adjacentInventories[id] = inventory;
+            inventoryCacheMask |= 1 << id;
+        } else {
+            adjacentInventories[id] = null;
+            inventoryCacheMask &= ~(1 << id);
+        }
+        return inventory;
+    }
+
+    /**
+     * Gets the inventory at the given position, going through the face cache if it's adjacent to this pipe.
+     */
+    public @Nullable Inventory getInventoryAt(BlockPos target) {
+        Direction d = Direction.fromVector(target.getX() - pos.getX(), target.getY() - pos.getY(), target.getZ() - pos.getZ());
+        if (d != null)
+            return getInventory(d);
+        return world == null ? null : InventoryUtils.getInventoryAt(world, target);
+    }
+
+    /**
+     * Forgets the cached inventory at the given face, so it's looked up again next time it's needed.
+     */
+    public void invalidateInventory(Direction d) {
+        if (adjacentInventories != null)
+            adjacentInventories[d.getId()] = null;
+        inventoryCacheMask &= ~(1 << d.getId());
+    }
+
+    public void invalidateInventories() {
+        if (adjacentInventories != null)
+            Arrays.fill(adjacentInventories, null);
+        inventoryCacheMask = 0;
+    }
+
 
     /**
      * Serialize data to be saved for when the area the pipe is in is unloaded.
      */
     @Override
     protected void writeNbt(NbtCompound tag) {
+        Map<Direction, Boolean> wrenched = new EnumMap<>(Direction.class);
+        for (Direction d : Direction.values())
+            wrenched.put(d, isWrenched(d));
         tag.putInt("wrenched", Formatter.mapToInt(wrenched));
         tag.putInt("rri", this.roundRobinIndex);
         tag.putBoolean("rrm", this.roundRobinMode);
         tag.putInt("cooldown", this.cooldown);
-        NbtList list = new NbtList();
-        for (TimedPipeResult piped : items)
-            list.add(piped.toTag(new NbtCompound(), false));
-        tag.put("queue", list);
-        tag.put("filter", filter.writeNbt());
+        if (unreadQueue != null && getQueuedItems().isEmpty()) {
+            tag.put("queue", unreadQueue.copy());
+        } else {
+            //Only a snapshot is taken here, the stacks are encoded when the chunk is written (see LazyQueueNbt)
+            tag.put("queue", new LazyQueueNbt(PipeQueueFormat.snapshot(getQueuedItems())));
+            //Items that came in since still have to be saved, so the unread queue is kept to the side until they're gone
+            if (unreadQueue != null)
+                tag.put("unreadQueue", unreadQueue.copy());
+        }
+        if (filter != null)
+            tag.put("filter", filter.writeNbt());
     }
 
     public boolean isRoundRobinMode() {
@@ -561,13 +794,24 @@ public final class PipeEntity extends BlockEntity implements ExtendedScreenHandl
         if (tag.contains("rrm"))
             this.roundRobinMode = tag.getBoolean("rrm");
 
-        if (tag.contains("wrenched"))
-            this.wrenched = Formatter.intToMap(tag.getInt("wrenched"));
+        if (tag.contains("wrenched")) {
+            Map<Direction, Boolean> wrenched = Formatter.intToMap(tag.getInt("wrenched"));
+            for (Direction d : Direction.values())
+                if (wrenched.getOrDefault(d, false))
+                    sides |= 1 << (WRENCH_SHIFT + d.getId());
+                else
+                    sides &= ~(1 << (WRENCH_SHIFT + d.getId()));
+        }
         readQueueFromTag(tag);
 
         if (tag.contains("filter")) {
             NbtCompound filter = tag.getCompound("filter");
             this.filter = FilterInventory.readNbt(filter, 1);
+            if (isDefaultFilter(this.filter))
+                this.filter = null;
+        } else {
+            //writeNbt leaves out default filters, so a tag without one means the filter was reset
+            this.filter = null;
         }
 
         if(tag.contains("ticksPerOperation"))
@@ -578,13 +822,14 @@ public final class PipeEntity extends BlockEntity implements ExtendedScreenHandl
 
 
     /**
-     * Gets a collection of all item stacks that are travelling through the pipe currently
+     * Gets a collection of all item stacks that are travelling through the pipe currently.
+     * These are copies, since the stacks in the queue may still be referenced by a save that hasn't been written yet.
      */
     public Collection<ItemStack> getQueuedStacks() {
         Set<ItemStack> result = new HashSet<>();
 
-        for (TimedPipeResult pipeResult : items) {
-            result.add(pipeResult.getPipeResult().getStack());
+        for (TimedPipeResult pipeResult : getQueuedItems()) {
+            result.add(pipeResult.getPipeResult().getStack().copy());
         }
 
         return result;
@@ -594,50 +839,50 @@ public final class PipeEntity extends BlockEntity implements ExtendedScreenHandl
     /**
      * Looks long but is not scary:
      * <p>
-     * Basically, tick down the time remaining of each item in the pipe
+     * Basically, tick down the time remaining of each item in the pipe (see PipeTransit)
      * If the time is 0, try and transfer it to the next pipe along the sequence
      * If the next pipe / destination doesn't exist, handle that.
      * Else, remove this item from the pipe and add it to the next pipe
      */
     public void tickQueuedItems() {
-        Set<TimedPipeResult> toRemove = new HashSet<>(items.size() / 2 + 1);
-        Set<TimedPipeResult> toAdd = new HashSet<>(items.size() / 2 + 1);
-
-
-        for (TimedPipeResult timed : items) {
-            timed.decreaseTime();
-            if (timed.getTime() <= 0) {
-                if (timed.getPipeResult().getLength() < Pipe.PIPE_CONFIG.getConfig().maxRenderPipeLength)
-                    needsSync = true;
-                Queue<BlockPos> path = timed.getPipeResult().getPath();
-                if (this.pos.equals(path.peek()))
-                    path.poll(); //remove current block
-                if (path.size() > 0) {
-                    BlockPos next = path.peek();
-                    assert world != null;
-                    BlockEntity entity = world.getBlockEntity(next);
-                    if (!(entity instanceof PipeEntity pipeEntity)) {
-                        tickHelper(toRemove, toAdd, timed);
-                    } else {
-                        timed.setStuck(false);
-                        pipeEntity.addResultToPending(timed);
-                        toRemove.add(timed);
-                        timed.setTime(pipeEntity.ticksPerOperation);
-                    }
-                } else {
-                    boolean transferred = transferItem(timed);
+        if (items != null)
+            items = PipeTransit.tick(items, pos, this::itemThroughPipe);
+    }
 
-                    if (!transferred) {
-                        tickHelper(toRemove, toAdd, timed);
-                    } else
-                        toRemove.add(timed);
-                }
+    private void itemThroughPipe(TimedPipeResult timed, @Nullable BlockPos next, Set<TimedPipeResult> toRemove, Set<TimedPipeResult> toAdd) {
+        assert world != null;
+        if (next != null) {
+            BlockEntity entity = world.getBlockEntity(next);
+            if (!(entity instanceof PipeEntity pipeEntity)) {
+                tickHelper(toRemove, toAdd, timed);
+            } else {
+                timed.setStuck(false);
+                pipeEntity.updateSpeed();
+                timed.setTime(pipeEntity.ticksPerOperation);
+                pipeEntity.addResultToPending(timed);
+                //Players that couldn't see the item in the chunk it came from wouldn't know about it otherwise
+                if ((pos.getX() >> 4 != next.getX() >> 4 || pos.getZ() >> 4 != next.getZ() >> 4) && world instanceof ServerWorld serverWorld && PipeChunkSync.itemCrossed(serverWorld, pos, next))
+                    pipeEntity.sync(timed, PipeItemDelta.enter(timed));
+                PipeDirtyTracker.markPipe(world, next);
+                PipeProfiler.itemMoved(world, network, pos);
+                PipeHeatmap.itemEntered(world, next);
+                toRemove.add(timed);
             }
-        }
-
-        items.removeAll(toRemove);
-        items.addAll(toAdd);
+        } else {
+            boolean transferred = transferItem(timed);
 
+            if (!transferred) {
+                tickHelper(toRemove, toAdd, timed);
+            } else {
+                sync(timed, PipeItemDelta.leave(timed));
+                PipeDirtyTracker.markPipe(world, pos);
+                PipeMetrics.delivered(world, network);
+                PipeEvents.itemDelivered(pos, timed.getPipeResult().getStack(), timed.getPipeResult().getDestination());
+                PipeTraceRecorder.moved(world, timed.getPipeResult().getDestination(), timed.getPipeResult().getStack(), 1);
+                PipeProfiler.itemMoved(world, network, pos);
+                toRemove.add(timed);
+            }
+        }
     }
 
     /**
@@ -646,62 +891,161 @@ public final class PipeEntity extends BlockEntity implements ExtendedScreenHandl
      */
     private void tickHelper(Set<TimedPipeResult> toRemove, Set<TimedPipeResult> toAdd, TimedPipeResult timed) {
         List<PipeResult> results = findDestinations(timed.getPipeResult().getStack(), getPos(), true, false);
-        if (results.size() == 0) {
+        if (results == DEFERRED) {
+            timed.setTime(1); //Try again next tick, once there's routing budget again
+        } else if (results.size() == 0) {
             timed.setTime(20);
             timed.setStuck(true);
+            PipeMetrics.stuck(world, network);
+            PipeEvents.itemStuck(pos, timed.getPipeResult().getStack());
+            PipeHeatmap.itemStuck(world, pos);
+            sync(timed, PipeItemDelta.update(timed));
         } else {
-            TimedPipeResult zero = new TimedPipeResult(results.get(0), ticksPerOperation, false);
+            TimedPipeResult zero = new TimedPipeResult(timed.getId(), results.get(0), ticksPerOperation, false);
+            sync(zero, PipeItemDelta.update(zero));
             toAdd.add(zero);
             toRemove.add(timed);
         }
     }
 
     /**
-     * Client should only handle client-side logic, which is just rendering
+     * Client should only handle client-side logic, which is rendering and moving items along their routes.
+     * The client moves items from pipe to pipe by itself the same way the server does, so it doesn't need to be told about
+     * every hop. The server only corrects it when an item gets rerouted, stuck or delivered.
+     * Pipes too far away for their items to be seen don't move them, and catch up once the player comes back in range.
      * Tick functions are executed every 50 milliseconds
      */
     public void clientTick() {
-        for (TimedPipeResult timed : items) {
-            timed.decreaseTime();
+        invalidateInventories();
+        updateSpeed();
+        if (items == null || world == null)
+            return;
+
+        if (!ClientPipeItems.isInTickRange(pos)) {
+            skippedClientTicks++;
+            return;
         }
+        int ticks = skippedClientTicks + 1;
+        skippedClientTicks = 0;
+
+        for (Iterator<TimedPipeResult> iterator = items.iterator(); iterator.hasNext(); ) {
+            TimedPipeResult timed = iterator.next();
+            timed.decreaseTime(ticks);
+            if (timed.getTime() > 0 || timed.isStuck())
+                continue;
+
+            LinkedList<BlockPos> path = timed.getPipeResult().getPath();
+            if (this.pos.equals(path.peek()))
+                path.poll(); //remove current block
+            BlockPos next = path.peek();
+            iterator.remove();
+            ClientPipeItems.remove(timed.getId(), this);
+
+            //Items reaching their destination are assumed to be delivered, and ones heading into pipes the client doesn't have are dropped
+            if (next != null && world.getBlockEntity(next) instanceof PipeEntity pipeEntity && pipeEntity != this) {
+                pipeEntity.updateSpeed();
+                //Time left over from catching up carries on into the next pipe
+                timed.setTime(pipeEntity.ticksPerOperation + timed.getTime());
+                pipeEntity.addClientItem(timed);
+            }
+        }
+
+        if (items.isEmpty())
+            items = null;
+    }
+
+    private void addClientItem(TimedPipeResult timed) {
+        if (skippedClientTicks > 0)
+            timed.setTime(timed.getTime() + skippedClientTicks);
+        timed.setHeading(getHeading(timed));
+        queue().add(timed);
+        ClientPipeItems.put(timed.getId(), this);
     }
 
     /**
-     * Server side logic.
-     * Tick functions are executed every 50 milliseconds, so there are 20 ticks per second
+     * The direction an item arriving in this pipe will be shown moving in, or null if it's stopping here because the
+     * next block along its route is neither a pipe nor an inventory.
      */
-    public void tick() {
+    private @Nullable Direction getHeading(TimedPipeResult timed) {
+        PipeResult result = timed.getPipeResult();
+        LinkedList<BlockPos> path = result.getPath();
+        BlockPos current = path.size() > 0 ? path.get(0) : pos;
+        BlockPos next = path.size() <= 1 ? result.getDestination() : path.get(1);
+        if (world == null || !(world.getBlockState(next).getBlock() instanceof PipeBlock) && getInventoryAt(next) == null)
+            return null;
+        return Direction.fromVector(next.getX() - current.getX(), next.getY() - current.getY(), next.getZ() - current.getZ());
+    }
 
-        if (network.isEmpty()) { //basically, artifically construct the network of this pipe if its empty;
-            clearNetworkCache();
-        }
+    private void removeClientItem(int id) {
+        if (items != null && items.removeIf(timed -> timed.getId() == id) && items.isEmpty())
+            items = null;
+        ClientPipeItems.remove(id, this);
+    }
 
+    private void updateSpeed() {
         if (!speedSet && world != null) {
             speedSet = true;
-            ticksPerOperation = world.getBlockState(pos).getBlock() == Pipe.FAST_PIPE ? 8 : 20;
+            ticksPerOperation = getCachedState().getBlock() == Pipe.FAST_PIPE ? 8 : 20;
+        }
+    }
+
+    @Override
+    public void markRemoved() {
+        super.markRemoved();
+        if (world != null && world.isClient)
+            for (TimedPipeResult timed : getQueuedItems())
+                ClientPipeItems.remove(timed.getId(), this);
+    }
+
+    /**
+     * Server side logic.
+     * Tick functions are executed every 50 milliseconds, so there are 20 ticks per second
+     */
+    public void tick() {
+        boolean profiling = PipeProfiler.isRunning();
+        boolean metrics = PipeMetrics.isEnabled();
+        long start = profiling || metrics ? System.nanoTime() : 0;
+        long allocated = profiling ? PipeProfiler.allocatedBytes() : 0;
+
+        if (network.isEmpty() || restorePending && world != null && world.getTime() % 20 == 0) {
+            boolean empty = network.isEmpty();
+            //basically, artifically construct the network of this pipe if its empty, or if the saved one turned out not to match
+            if (!restoreNetwork() && (empty || !restorePending))
+                clearNetworkCache();
         }
 
+        updateSpeed();
+
         if (cooldown > 0)
             cooldown--;
 
         tickQueuedItems();
 
         if (cooldown <= 0) {
-            addToQueue();
-            cooldown = ticksPerOperation / 2;
+            //If routing was put off, extraction is tried again next tick rather than after a whole cooldown
+            cooldown = addToQueue() ? 1 : ticksPerOperation / 2;
         }
 
+        //Keeps the chunk checking which players can see the items in this pipe, see PipeChunkSync
+        if (items != null && world instanceof ServerWorld serverWorld && Math.floorMod(world.getTime() + pos.hashCode(), 100) == 0)
+            PipeChunkSync.markActive(serverWorld, pos);
 
-        if (needsSync) {
-            sync();
-            needsSync = false;
-        }
 
-        if (world == null || (world.getTime() - lastCacheTick > 600)) { //30 secs
-            cache.clear();
+        if (cache != null && (world == null || (world.getTime() - lastCacheTick > 600))) { //30 secs
+            cache = null;
         }
 
+        if (plans != null && (world == null || world.getTime() - lastPlanTick > 600))
+            plans = null;
+
         ticksSinceLastCacheClear++;
+        if (!profiling && !metrics)
+            return;
+        long nanos = System.nanoTime() - start;
+        if (metrics)
+            PipeMetrics.pipeTicked(world, network, nanos);
+        if (profiling)
+            PipeProfiler.record(world, network, pos, PipeProfiler.Section.TICK, nanos, PipeProfiler.allocatedBytes() - allocated);
     }
 
     /**
@@ -712,12 +1056,13 @@ public final class PipeEntity extends BlockEntity implements ExtendedScreenHandl
 
         PipeResult processed = timedPipeResult.getPipeResult();
         assert world != null;
-        Inventory inv = InventoryUtils.getInventoryAt(world, processed.getDestination());
+        Inventory inv = getInventoryAt(processed.getDestination());
 
         if (inv == null)
             return false;
 
         if (InventoryUtils.isInventoryFull(inv, processed.getDirection())) {
+            PipeHeatmap.destinationFull(world, processed.getDestination());
             return false;
         }
 
@@ -726,30 +1071,30 @@ public final class PipeEntity extends BlockEntity implements ExtendedScreenHandl
             ItemStack currentStack = inv.getStack(i);
             if (InventoryUtils.canInsert(inv, processed.getStack(), i, processed.getDirection())) {
                 if (currentStack.isEmpty()) {
-                    inv.setStack(i, processed.getStack());
-                    inv.markDirty();
+                    //Copied since the stack may still be referenced by a save that hasn't been written yet
+                    inv.setStack(i, processed.getStack().copy());
+                    PipeDirtyTracker.markInventory(inv);
                     return true;
                 } else if (InventoryUtils.canMergeItems(currentStack, processed.getStack())) {
                     if (currentStack.getCount() < currentStack.getMaxCount()) {
                         currentStack.increment(1);
-                        inv.markDirty();
+                        PipeDirtyTracker.markInventory(inv);
                         return true;
                     }
                 }
             }
         }
+        PipeHeatmap.destinationFull(world, processed.getDestination());
         return false;
     }
 
 
     /**
-     * The reason to use this method instead of adding directly is to decrease network traffic by not sending an update to the client
-     * if this item does not need to be rendered.
+     * Adds an item moving in from the previous pipe along its route. Clients aren't told about this, since they move the
+     * item along its route by themselves.
      */
     public void addResultToPending(TimedPipeResult result) {
-        this.items.add(result);
-        if (result.getPipeResult().getLength() < Pipe.PIPE_CONFIG.getConfig().maxRenderPipeLength)
-            sync();
+        queue().add(result);
     }
 
     /**
@@ -758,9 +1103,10 @@ public final class PipeEntity extends BlockEntity implements ExtendedScreenHandl
     @Override
     public void writeScreenOpeningData(ServerPlayerEntity serverPlayerEntity, PacketByteBuf packetByteBuf) {
         packetByteBuf.writeBlockPos(pos);
-        packetByteBuf.writeInt(this.filter.getFilterType());
-        packetByteBuf.writeBoolean(this.filter.isMatchMod());
-        packetByteBuf.writeBoolean(this.filter.isMatchNbt());
+        FilterInventory filter = getFilter();
+        packetByteBuf.writeInt(filter.getFilterType());
+        packetByteBuf.writeBoolean(filter.isMatchMod());
+        packetByteBuf.writeBoolean(filter.isMatchNbt());
         packetByteBuf.writeBoolean(this.isRoundRobinMode());
     }
 
@@ -782,33 +1128,133 @@ public final class PipeEntity extends BlockEntity implements ExtendedScreenHandl
         return BlockEntityUpdateS2CPacket.create(this, (i -> ((PipeEntity) i).toClientTag()));
     }
 
+    /**
+     * Clients only receive the changes to the queue after they start watching a pipe, so they get the full queue along
+     * with the chunk.
+     */
+    @Override
+    public NbtCompound toInitialChunkDataNbt() {
+        return toClientTag();
+    }
+
+    /**
+     * Takes the changes to this pipe that haven't been sent to clients yet, or null if there are none.
+     */
+    public @Nullable PipeItemDeltaS2CPacket.PipeDeltas pollDeltas() {
+        if (pendingDeltas == null)
+            return null;
+        PipeItemDeltaS2CPacket.PipeDeltas update = new PipeItemDeltaS2CPacket.PipeDeltas(pos, ticksPerOperation, pendingDeltaTime, pendingDeltas);
+        pendingDeltas = null;
+        return update;
+    }
+
+    /**
+     * Applies the changes sent by the server to the client-side copy of the queue.
+     */
+    @Environment(EnvType.CLIENT)
+    public void applyDeltas(int ticksPerOperation, long time, List<PipeItemDelta> deltas) {
+        this.ticksPerOperation = ticksPerOperation;
+        this.speedSet = true;
+        //How long ago the server made these changes, so items can be moved to where they should be by now
+        int lag = world == null ? 0 : (int) MathHelper.clamp(world.getTime() - time, 0, 20);
+        for (PipeItemDelta delta : deltas) {
+            //The client may have already moved the item on to another pipe
+            PipeEntity holder = ClientPipeItems.get(delta.getId());
+            (holder == null ? this : holder).removeClientItem(delta.getId());
+            if (delta.getType() != PipeItemDelta.Type.LEAVE) {
+                TimedPipeResult timed = delta.toResult();
+                if (!timed.isStuck())
+                    timed.setTime(Math.max(1, timed.getTime() - lag));
+                addClientItem(timed);
+            }
+        }
+    }
+
     private void readQueueFromTag(NbtCompound tag) {
-        NbtList list = tag.getList("queue", 10);
-        items = new HashSet<>();
-        for (int i = 0; i < list.size(); i++) {
-            TimedPipeResult result = TimedPipeResult.fromTag(list.getCompound(i));
+        NbtElement queue = tag.get("queue");
+        List<TimedPipeResult> list = PipeQueueFormat.read(queue);
+        if (world != null && world.isClient) {
+            readClientQueue(list);
+            return;
+        }
+        unreadQueue = tag.contains("unreadQueue") ? tag.get("unreadQueue").copy() : null;
+        if (!PipeQueueFormat.canRead(queue)) {
+            LOGGER.warn("Pipe at {} has a saved queue in an unknown format, keeping it as it is", pos.toShortString());
+            unreadQueue = queue.copy();
+        }
+        items = list.isEmpty() ? null : new HashSet<>(list.size());
+        for (TimedPipeResult result : list)
             items.add(result);
+    }
+
+    /**
+     * Replaces the client-side copy of the queue with the one sent by the server. The items keep the server's ids, and
+     * any copy of them the client already moved on to another pipe is dropped.
+     */
+    private void readClientQueue(List<TimedPipeResult> list) {
+        for (TimedPipeResult timed : getQueuedItems())
+            ClientPipeItems.remove(timed.getId(), this);
+        items = null;
+        for (TimedPipeResult timed : list) {
+            PipeEntity holder = ClientPipeItems.get(timed.getId());
+            if (holder != null)
+                holder.removeClientItem(timed.getId());
+            addClientItem(timed);
         }
     }
 
     public NbtCompound toClientTag() {
         NbtCompound tag = new NbtCompound();
         Config cfg = Pipe.PIPE_CONFIG.getConfig();
-        NbtList list = new NbtList();
-        for (TimedPipeResult piped : items)
+        List<TimedPipeResult> list = new ArrayList<>();
+        for (TimedPipeResult piped : getQueuedItems())
             if (piped.getPipeResult().getLength() < cfg.maxRenderPipeLength)
-                list.add(piped.toTag(new NbtCompound(), true));
+                list.add(piped);
 
-        tag.put("queue", list);
+        tag.put("queue", PipeQueueFormat.writeForClient(list));
         tag.putInt("ticksPerOperation", ticksPerOperation);
         super.writeNbt(tag);
         return tag;
     }
 
-    private void sync() {
-        if (!Pipe.PIPE_CONFIG.getConfig().renderItems)
+    /**
+     * Queues a change to an item in this pipe to be sent to clients. Items that travel too far to be rendered aren't
+     * synced at all, to decrease network traffic.
+     */
+    private void sync(TimedPipeResult timed, PipeItemDelta delta) {
+        if (!PipeProfiler.isRunning()) {
+            queueDelta(timed, delta);
+            return;
+        }
+        long start = System.nanoTime();
+        queueDelta(timed, delta);
+        PipeProfiler.record(world, network, pos, PipeProfiler.Section.SYNC, System.nanoTime() - start, 0);
+    }
+
+    private void queueDelta(TimedPipeResult timed, PipeItemDelta delta) {
+        Config cfg = Pipe.PIPE_CONFIG.getConfig();
+        if (!cfg.renderItems)
             return;
-        Objects.requireNonNull(getWorld()).updateListeners(this.getPos(), this.getCachedState(), this.getCachedState(), Block.NOTIFY_ALL);
+        if (timed.getPipeResult().getLength() >= cfg.maxRenderPipeLength) {
+            //A rerouted item may no longer be rendered, in which case the client should drop it
+            if (delta.getType() != PipeItemDelta.Type.UPDATE)
+                return;
+            delta = PipeItemDelta.leave(timed);
+        }
+
+        World world = Objects.requireNonNull(getWorld());
+        //Deltas still pending from an earlier tick were never flushed, i.e. nobody was watching the chunk, so they're stale
+        if (pendingDeltas != null && pendingDeltaTime != world.getTime())
+            pendingDeltas = null;
+
+        if (pendingDeltas == null) {
+            pendingDeltas = new ArrayList<>(2);
+            pendingDeltaTime = world.getTime();
+            if (world instanceof ServerWorld serverWorld)
+                PipeChunkSync.markPipe(serverWorld, pos);
+        }
+        pendingDeltas.add(delta);
+        PipeMetrics.deltaQueued(world, network);
     }
 
     @Environment(EnvType.CLIENT)
@@ -826,13 +1272,26 @@ public final class PipeEntity extends BlockEntity implements ExtendedScreenHandl
         if (ticksSinceLastCacheClear == 0)
             return;
 
-        Set<BlockPos> network = new HashSet<>();
-        clearNetworkCacheRipple(network);
+        PipeEvents.NetworkRebuilt event = new PipeEvents.NetworkRebuilt();
+        event.begin();
+        LongSet network = new LongOpenHashSet();
+        long topologyHash = clearNetworkCacheRipple(network);
+        if (event.shouldCommit()) {
+            event.setPipe(pos);
+            event.size = network.size();
+            event.commit();
+        }
+        if (world instanceof ServerWorld serverWorld)
+            PipeNetworkState.get(serverWorld).record(serverWorld, network, topologyHash);
     }
 
-    private void clearNetworkCacheRipple(Set<BlockPos> network) {
-        network.add(pos);
-        this.cache.clear();
+    /**
+     * @return the sum of the topology hashes of the pipes reached
+     */
+    private long clearNetworkCacheRipple(LongSet network) {
+        long topologyHash = topologyHash();
+        network.add(pos.asLong());
+        this.cache = null;
         this.network = network; //note that all pipes in a network SHARE the same network set AND it's mutable. Dangerous, huh?
         ticksSinceLastCacheClear = 0;
         for (Direction direction : Direction.values()) { //For each possible direction
@@ -840,18 +1299,86 @@ public final class PipeEntity extends BlockEntity implements ExtendedScreenHandl
             if ((getSide(direction) == PipeSide.CONNECTED)) { //If this pipe is connected to something
                 BlockPos pos = this.pos.offset(direction);
 
-                if (network.contains(pos))
+                if (network.contains(pos.asLong()))
                     continue;
 
                 assert world != null;
                 if (world.getBlockEntity(pos) instanceof PipeEntity pipeEntity) { //If connected to another pipe
-                    PipeSide state = world.getBlockState(this.pos.offset(direction)).get(PipeBlock.getProperty(direction.getOpposite()));
+                    PipeSide state = pipeEntity.getSide(direction.getOpposite());
                     if (state == PipeSide.CONNECTED || state == PipeSide.SERVO) {
-                        pipeEntity.clearNetworkCacheRipple(network);
+                        topologyHash += pipeEntity.clearNetworkCacheRipple(network);
                     }
                 }
             }
         }
+        return topologyHash;
+    }
+
+    /**
+     * Identifies this pipe and how it's connected. Summed over a network, it tells whether the network changed since it
+     * was saved.
+     */
+    private long topologyHash() {
+        return HashCommon.mix(pos.asLong() * 31 + sides);
+    }
+
+    /**
+     * Tries to pick up the network this pipe was part of when the world was saved, along with the routes its pipes had
+     * cached, instead of rebuilding it. Only works if all its pipes are loaded and still connected the same way.
+     * Until then, the pipes that are loaded build a network of their own, which PipeNetworkState doesn't record, and
+     * this pipe tries again every second (see restorePending) to restore the saved network over it.
+     */
+    private boolean restoreNetwork() {
+        restorePending = false;
+        if (!(world instanceof ServerWorld serverWorld))
+            return false;
+        PipeNetworkState state = PipeNetworkState.get(serverWorld);
+        PipeNetworkState.Network saved = state.getNetwork(pos);
+        if (saved == null)
+            return false;
+
+        List<PipeEntity> pipes = new ArrayList<>(saved.pipes().length);
+        long topologyHash = 0;
+        for (long pipe : saved.pipes()) {
+            BlockPos pos = BlockPos.fromLong(pipe);
+            if (!world.isChunkLoaded(pos)) {
+                restorePending = true;
+                return false;
+            }
+            if (!(world.getBlockEntity(pos) instanceof PipeEntity pipeEntity))
+                return false;
+            pipes.add(pipeEntity);
+            topologyHash += pipeEntity.topologyHash();
+        }
+        if (topologyHash != saved.topologyHash())
+            return false;
+
+        LongSet network = new LongOpenHashSet(saved.pipes());
+        for (PipeEntity pipe : pipes) {
+            //Pipes that were loaded first may have cached routes through the part of the network they could see
+            pipe.network = network;
+            pipe.cache = null;
+        }
+        for (PipeNetworkState.Route route : saved.routes())
+            if (world.getBlockEntity(BlockPos.fromLong(route.pipe())) instanceof PipeEntity pipe)
+                pipe.cache().put(new CacheKey(route.stack(), BlockPos.fromLong(route.start()), route.one()), new CacheResult(world.getTime(), route.results()));
+        state.routesRestored(saved);
+        return true;
+    }
+
+    /**
+     * Adds the most recently used routes in this pipe's cache to the list, so they can be saved by PipeNetworkState
+     */
+    void collectRoutes(int max, List<PipeNetworkState.Route> routes) {
+        if (cache == null)
+            return;
+        List<Map.Entry<CacheKey, CacheResult>> entries = new ArrayList<>(cache.entrySet());
+        for (int i = entries.size() - 1; i >= 0 && i >= entries.size() - max; i--) {
+            CacheKey key = entries.get(i).getKey();
+            List<PipeResult> results = entries.get(i).getValue().value();
+            if (!results.isEmpty())
+                routes.add(new PipeNetworkState.Route(pos.asLong(), key.stack(), key.start().asLong(), key.one(), results));
+        }
     }
 
 
@@ -903,38 +1430,18 @@ public final class PipeEntity extends BlockEntity implements ExtendedScreenHandl
 
     }
 
-
     /**
-     * When doing the BFS search, the pos stores the actual position while the direction stores
-     * the direction travelled to get to that position. This is important because you can access
-     * inventories from multiple sides, and in round-robin mode it should hit all sides.
+     * A plan started for a lookup, along with the network and tick it was started in
      */
-    private record VisitedAngle(@Nullable Direction direction, BlockPos pos) {
-
-
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
+    private record PendingPlan(LongSet network, CompletableFuture<PipeRoutePlanner.Plan> future, long started) {
 
-            VisitedAngle that = (VisitedAngle) o;
-
-            if (direction != that.direction) return false;
-            return Objects.equals(pos, that.pos);
-        }
-
-        @Override
-        public int hashCode() {
-            int result = direction != null ? direction.hashCode() : 0;
-            result = 31 * result + (pos != null ? pos.hashCode() : 0);
-            return result;
-        }
     }
 
+
     /**
      * the WrappedItemStack class is used to give ItemStacks a hashCode and equals
      */
-    private record WrappedItemStack(ItemStack stack) {
+    record WrappedItemStack(ItemStack stack) {
         @Override
         public boolean equals(Object wrapped) {
             if (this == wrapped)
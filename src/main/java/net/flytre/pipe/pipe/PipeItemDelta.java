@@ -0,0 +1,173 @@
+package net.flytre.pipe.pipe;
+
+import net.flytre.pipe.network.StackDictionary;
+import net.minecraft.item.ItemStack;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.LinkedList;
+
+/**
+ * A single change to the items travelling through a pipe, as sent to the client.
+ * Instead of resending the whole queue whenever something changes, the server sends which item entered or left the pipe,
+ * or what changed about it, referring to items by their TimedPipeResult id.
+ * <p>
+ * Items are sent along with their whole route when they're extracted, and the client moves them from pipe to pipe by itself
+ * (see PipeEntity#clientTick), so hops aren't synced at all. The server only sends an UPDATE when an item is rerouted or
+ * gets stuck, and a LEAVE once it's delivered. An item moving on to a chunk that other players can see is sent there as
+ * an ENTER again, see PipeChunkSync.
+ * <p>
+ * The state of the item is copied when the delta is created, since the item keeps moving before the delta is sent.
+ */
+public final class PipeItemDelta {
+
+    private static final byte FULL_POSITION = 6;
+
+    private final Type type;
+    private final int id;
+
+    //Only used by ENTER and UPDATE
+    private final ItemStack stack;
+    private final long[] path;
+    private final long destination;
+    private final Direction direction;
+    private final @Nullable Direction anim;
+    private final int time;
+    private final boolean stuck;
+
+    private PipeItemDelta(Type type, int id, ItemStack stack, long[] path, long destination, Direction direction, @Nullable Direction anim, int time, boolean stuck) {
+        this.type = type;
+        this.id = id;
+        this.stack = stack;
+        this.path = path;
+        this.destination = destination;
+        this.direction = direction;
+        this.anim = anim;
+        this.time = time;
+        this.stuck = stuck;
+    }
+
+    /**
+     * An item started travelling through the pipe
+     */
+    public static PipeItemDelta enter(TimedPipeResult timed) {
+        return of(Type.ENTER, timed);
+    }
+
+    /**
+     * An item in the pipe was rerouted or got stuck
+     */
+    public static PipeItemDelta update(TimedPipeResult timed) {
+        return of(Type.UPDATE, timed);
+    }
+
+    /**
+     * An item was delivered to its destination
+     */
+    public static PipeItemDelta leave(TimedPipeResult timed) {
+        return new PipeItemDelta(Type.LEAVE, timed.getId(), ItemStack.EMPTY, new long[0], 0, Direction.NORTH, null, 0, false);
+    }
+
+    private static PipeItemDelta of(Type type, TimedPipeResult timed) {
+        PipeResult result = timed.getPipeResult();
+        LinkedList<BlockPos> fullPath = result.getPath();
+        long[] path = new long[fullPath.size()];
+        int i = 0;
+        for (BlockPos pos : fullPath)
+            path[i++] = pos.asLong();
+        return new PipeItemDelta(type, timed.getId(), result.getStack(), path, result.getDestination().asLong(), result.getDirection(), result.getAnim(), timed.getTime(), timed.isStuck());
+    }
+
+    public static PipeItemDelta read(PacketByteBuf buf) {
+        Type type = Type.values()[buf.readByte()];
+        int id = buf.readVarInt();
+        if (type == Type.LEAVE)
+            return new PipeItemDelta(type, id, ItemStack.EMPTY, new long[0], 0, Direction.NORTH, null, 0, false);
+
+        ItemStack stack = StackDictionary.read(buf);
+        long[] path = new long[buf.readVarInt()];
+        for (int i = 0; i < path.length; i++)
+            path[i] = readStep(buf, i > 0, i == 0 ? 0 : path[i - 1]);
+        long destination = readStep(buf, path.length > 0, path.length == 0 ? 0 : path[path.length - 1]);
+        Direction direction = Direction.byId(buf.readByte());
+        byte anim = buf.readByte();
+        int time = buf.readVarInt();
+        boolean stuck = buf.readBoolean();
+        return new PipeItemDelta(type, id, stack, path, destination, direction, anim < 0 ? null : Direction.byId(anim), time, stuck);
+    }
+
+    /**
+     * @param stackReference the reference to the stack from the StackDictionary of the connection this is written to,
+     *                       ignored for LEAVE deltas
+     */
+    public void write(PacketByteBuf buf, int stackReference) {
+        buf.writeByte(type.ordinal());
+        buf.writeVarInt(id);
+        if (type == Type.LEAVE)
+            return;
+
+        StackDictionary.write(buf, stack, stackReference);
+        buf.writeVarInt(path.length);
+        for (int i = 0; i < path.length; i++)
+            writeStep(buf, i > 0, i == 0 ? 0 : path[i - 1], path[i]);
+        writeStep(buf, path.length > 0, path.length == 0 ? 0 : path[path.length - 1], destination);
+        buf.writeByte(direction.getId());
+        buf.writeByte(anim == null ? -1 : anim.getId());
+        buf.writeVarInt(time);
+        buf.writeBoolean(stuck);
+    }
+
+    /**
+     * Routes only ever move to an adjacent block, so each position is written as the direction from the previous one,
+     * or as a full position after a marker byte if there is no previous one or it's not adjacent.
+     */
+    private static void writeStep(PacketByteBuf buf, boolean hasPrevious, long from, long to) {
+        if (hasPrevious) {
+            Direction step = Direction.fromVector(BlockPos.unpackLongX(to) - BlockPos.unpackLongX(from), BlockPos.unpackLongY(to) - BlockPos.unpackLongY(from), BlockPos.unpackLongZ(to) - BlockPos.unpackLongZ(from));
+            if (step != null) {
+                buf.writeByte(step.getId());
+                return;
+            }
+        }
+        buf.writeByte(FULL_POSITION);
+        buf.writeLong(to);
+    }
+
+    private static long readStep(PacketByteBuf buf, boolean hasPrevious, long from) {
+        byte step = buf.readByte();
+        if (step == FULL_POSITION || !hasPrevious)
+            return buf.readLong();
+        return BlockPos.offset(from, Direction.byId(step));
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public ItemStack getStack() {
+        return stack;
+    }
+
+    /**
+     * Rebuilds the client-side copy of the item described by an ENTER or UPDATE delta
+     */
+    public TimedPipeResult toResult() {
+        LinkedList<BlockPos> path = new LinkedList<>();
+        for (long pos : this.path)
+            path.add(BlockPos.fromLong(pos));
+        PipeResult result = new PipeResult(BlockPos.fromLong(destination), path, stack, direction, anim);
+        return new TimedPipeResult(id, result, time, stuck);
+    }
+
+    public enum Type {
+        ENTER,
+        UPDATE,
+        LEAVE
+    }
+}
@@ -0,0 +1,199 @@
+package net.flytre.pipe.pipe;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
+import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtList;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.PersistentState;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Remembers the pipe networks of a world, and the routes that were in use in them, across restarts.
+ * <p>
+ * Without this, every pipe starts with an empty network and route cache after a restart, so the first ticks rediscover
+ * every network and run a route search for every servo at once. Instead, the first pipe of a network to tick checks
+ * whether the saved network still matches the world using a topology hash of its pipes and their connections, and if it
+ * does, hands the network to all its pipes and puts the saved routes back into their caches.
+ * Networks are recorded whenever they're rebuilt, and the routes in use are collected when the server stops. While a
+ * saved network is only partly loaded, which happens for a while after a restart with any network that spans several
+ * chunks, the smaller networks its loaded pipes build in the meantime aren't recorded, so the saved one can still be
+ * restored once the rest of its chunks load. Only the
+ * latter marks the state dirty, so rebuilding networks doesn't rewrite the whole file on every autosave; networks
+ * rebuilt since the last save are written out along with the routes on shutdown.
+ */
+public class PipeNetworkState extends PersistentState {
+
+    private static final String ID = "pipe_networks";
+
+    /**
+     * How many of the most recently used routes of each pipe are saved
+     */
+    private static final int ROUTES_PER_PIPE = 4;
+
+    private final Long2ObjectMap<Network> networks = new Long2ObjectOpenHashMap<>();
+
+    public static PipeNetworkState get(ServerWorld world) {
+        return world.getPersistentStateManager().getOrCreate(PipeNetworkState::fromNbt, PipeNetworkState::new, ID);
+    }
+
+    public @Nullable Network getNetwork(BlockPos pos) {
+        return networks.get(pos.asLong());
+    }
+
+    /**
+     * Records a network that was just built, replacing whatever the pipes in it were part of before. Those networks are
+     * forgotten entirely, since they no longer exist in that form: pipes of theirs that were broken or split off are
+     * recorded again when their own network is rebuilt.
+     * <p>
+     * Nothing is recorded if one of those networks isn't fully loaded yet, since the new network is then most likely
+     * just the part of it that's loaded so far. Pipes that were broken in the meantime already forgot it (see
+     * forget(BlockPos)), and any other change shows up in its topology hash once it's fully loaded.
+     */
+    public void record(ServerWorld world, LongSet pipes, long topologyHash) {
+        Set<Network> replaced = new ReferenceOpenHashSet<>();
+        for (LongIterator iterator = pipes.iterator(); iterator.hasNext(); ) {
+            Network previous = networks.get(iterator.nextLong());
+            if (previous != null && replaced.add(previous) && !isLoaded(world, previous))
+                return;
+        }
+
+        Network network = new Network(pipes.toLongArray(), topologyHash, new ArrayList<>());
+        for (Network previous : replaced)
+            forget(previous);
+        for (long pipe : network.pipes())
+            networks.put(pipe, network);
+    }
+
+    private static boolean isLoaded(ServerWorld world, Network network) {
+        for (long pipe : network.pipes())
+            if (!world.isChunkLoaded(BlockPos.fromLong(pipe)))
+                return false;
+        return true;
+    }
+
+    /**
+     * Forgets the network a pipe that was just removed belonged to. Whatever is left of it is recorded again once the
+     * neighbors of the pipe rebuild their networks.
+     */
+    public void forget(BlockPos pos) {
+        Network network = networks.get(pos.asLong());
+        if (network != null)
+            forget(network);
+    }
+
+    private void forget(Network previous) {
+        for (long pipe : previous.pipes())
+            if (networks.get(pipe) == previous)
+                networks.remove(pipe);
+    }
+
+    /**
+     * Forgets the saved routes of a network once they've been restored, since they'll only go stale from here on. They
+     * don't need to be saved, since the routes in use are collected again on shutdown.
+     */
+    public void routesRestored(Network network) {
+        network.routes().clear();
+    }
+
+    /**
+     * Saves the routes currently cached by the loaded pipes of every network. Saved routes of pipes that aren't loaded
+     * are kept as they are, so networks that weren't loaded this time still have them next time.
+     */
+    public void collectRoutes(ServerWorld world) {
+        for (Network network : distinctNetworks()) {
+            List<Route> routes = new ArrayList<>();
+            for (Route route : network.routes())
+                if (!world.isChunkLoaded(BlockPos.fromLong(route.pipe())))
+                    routes.add(route);
+            for (long pipe : network.pipes()) {
+                BlockPos pos = BlockPos.fromLong(pipe);
+                if (world.isChunkLoaded(pos) && world.getBlockEntity(pos) instanceof PipeEntity pipeEntity)
+                    pipeEntity.collectRoutes(ROUTES_PER_PIPE, routes);
+            }
+            network.routes().clear();
+            network.routes().addAll(routes);
+        }
+        markDirty();
+    }
+
+    private Set<Network> distinctNetworks() {
+        Set<Network> distinct = new ReferenceOpenHashSet<>();
+        distinct.addAll(networks.values());
+        return distinct;
+    }
+
+    public static PipeNetworkState fromNbt(NbtCompound tag) {
+        PipeNetworkState state = new PipeNetworkState();
+        NbtList list = tag.getList("networks", NbtElement.COMPOUND_TYPE);
+        for (int i = 0; i < list.size(); i++) {
+            NbtCompound networkTag = list.getCompound(i);
+            List<Route> routes = new ArrayList<>();
+            NbtList routeList = networkTag.getList("routes", NbtElement.COMPOUND_TYPE);
+            for (int j = 0; j < routeList.size(); j++)
+                routes.add(Route.fromNbt(routeList.getCompound(j)));
+            Network network = new Network(networkTag.getLongArray("pipes"), networkTag.getLong("hash"), routes);
+            for (long pipe : network.pipes())
+                state.networks.put(pipe, network);
+        }
+        return state;
+    }
+
+    @Override
+    public NbtCompound writeNbt(NbtCompound tag) {
+        NbtList list = new NbtList();
+        for (Network network : distinctNetworks()) {
+            NbtCompound networkTag = new NbtCompound();
+            networkTag.putLongArray("pipes", network.pipes());
+            networkTag.putLong("hash", network.topologyHash());
+            NbtList routeList = new NbtList();
+            for (Route route : network.routes())
+                routeList.add(route.toNbt());
+            networkTag.put("routes", routeList);
+            list.add(networkTag);
+        }
+        tag.put("networks", list);
+        return tag;
+    }
+
+    public record Network(long[] pipes, long topologyHash, List<Route> routes) {
+
+    }
+
+    /**
+     * A cached route search: the pipe whose cache it was in, what was searched for and what was found
+     */
+    public record Route(long pipe, ItemStack stack, long start, boolean one, List<PipeResult> results) {
+
+        private static Route fromNbt(NbtCompound tag) {
+            List<PipeResult> results = new ArrayList<>();
+            for (TimedPipeResult timed : PipeQueueFormat.read(tag.get("results")))
+                results.add(timed.getPipeResult());
+            return new Route(tag.getLong("pipe"), ItemStack.fromNbt(tag.getCompound("stack")), tag.getLong("start"), tag.getBoolean("one"), results);
+        }
+
+        private NbtCompound toNbt() {
+            NbtCompound tag = new NbtCompound();
+            tag.putLong("pipe", pipe);
+            tag.put("stack", stack.writeNbt(new NbtCompound()));
+            tag.putLong("start", start);
+            tag.putBoolean("one", one);
+            List<TimedPipeResult> timed = new ArrayList<>(results.size());
+            for (PipeResult result : results)
+                timed.add(new TimedPipeResult(result, 0));
+            //Routes are stored the same way as queued items, just without the timing
+            tag.put("results", PipeQueueFormat.write(timed));
+            return tag;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package net.flytre.pipe.pipe;
+
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import net.minecraft.item.Item;
+import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtList;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The format pipe queues are saved in. Instead of a compound per item with a list of position compounds for its path,
+ * the whole queue is stored as a handful of arrays with one entry per item:
+ * <ul>
+ *     <li>Identical stacks are only stored once, and items refer to them by index</li>
+ *     <li>Destinations and the first position of each path are packed into longs</li>
+ *     <li>The rest of each path is stored as the direction of each step, one byte per step</li>
+ * </ul>
+ * Queues saved before this format existed are a list of compounds, which {@link #read(NbtElement)} still understands.
+ * <p>
+ * Queues sent to clients also store the id of each item, so the deltas the server sends later can refer to them. Saved
+ * queues don't, since ids are only unique while the server is running.
+ */
+public final class PipeQueueFormat {
+
+    public static final int VERSION = 1;
+
+    /**
+     * Written in place of a step direction when a path jumps to a block that isn't adjacent, in which case the position
+     * is stored in the "jumps" array instead
+     */
+    private static final byte JUMP = 6;
+
+    private static final int DIRECTION_MASK = 0b111;
+    private static final int ANIM_SHIFT = 3;
+    private static final int STUCK_BIT = 1 << 6;
+
+    private PipeQueueFormat() {
+    }
+
+    public static NbtCompound write(Collection<TimedPipeResult> items) {
+        return snapshot(items).encode();
+    }
+
+    /**
+     * Writes a queue to send to clients, including the id of each item
+     */
+    public static NbtCompound writeForClient(Collection<TimedPipeResult> items) {
+        return snapshot(items, true).encode();
+    }
+
+    /**
+     * Copies everything needed to save a queue, so it can be encoded later (possibly on another thread) while the items
+     * keep moving. Stacks aren't copied, since a pipe never changes a stack once it's travelling.
+     */
+    public static Snapshot snapshot(Collection<TimedPipeResult> items) {
+        return snapshot(items, false);
+    }
+
+    private static Snapshot snapshot(Collection<TimedPipeResult> items, boolean withIds) {
+        int size = items.size();
+        int[] ids = withIds ? new int[size] : null;
+        ItemStack[] stacks = new ItemStack[size];
+        int[] times = new int[size];
+        int[] flags = new int[size];
+        int[] lengths = new int[size];
+        int[] pathSizes = new int[size];
+        long[] destinations = new long[size];
+        LongArrayList paths = new LongArrayList();
+
+        int i = 0;
+        for (TimedPipeResult timed : items) {
+            PipeResult result = timed.getPipeResult();
+            stacks[i] = result.getStack();
+            if (ids != null)
+                ids[i] = timed.getId();
+            times[i] = timed.getTime();
+            Direction anim = result.getAnim();
+            flags[i] = result.getDirection().getId() | (anim == null ? 0 : anim.getId() + 1) << ANIM_SHIFT | (timed.isStuck() ? STUCK_BIT : 0);
+            lengths[i] = result.getLength();
+            destinations[i] = result.getDestination().asLong();
+            pathSizes[i] = result.getPath().size();
+            for (BlockPos pos : result.getPath())
+                paths.add(pos.asLong());
+            i++;
+        }
+        return new Snapshot(stacks, ids, times, flags, lengths, pathSizes, destinations, paths.toLongArray());
+    }
+
+    /**
+     * Whether the element is a queue read can understand, or no queue at all. Anything else, like a queue saved by a
+     * newer version, has to be kept as it is by the caller, since read returns an empty queue for it.
+     */
+    public static boolean canRead(@Nullable NbtElement element) {
+        return element == null || element instanceof NbtList || element instanceof NbtCompound tag && tag.getInt("version") == VERSION;
+    }
+
+    /**
+     * Reads a queue saved in either this format or the legacy one, or an empty queue if it's in neither (see canRead)
+     */
+    public static List<TimedPipeResult> read(@Nullable NbtElement element) {
+        if (element instanceof NbtList legacy)
+            return readLegacy(legacy);
+        if (!(element instanceof NbtCompound tag) || tag.getInt("version") != VERSION)
+            return new ArrayList<>();
+
+        NbtList stackList = tag.getList("stacks", NbtElement.COMPOUND_TYPE);
+        ItemStack[] stacks = new ItemStack[stackList.size()];
+        for (int i = 0; i < stacks.length; i++)
+            stacks[i] = ItemStack.fromNbt(stackList.getCompound(i));
+
+        int[] stackRefs = tag.getIntArray("stack");
+        int[] ids = tag.contains("id") ? tag.getIntArray("id") : null;
+        int[] times = tag.getIntArray("time");
+        int[] flags = tag.getIntArray("flags");
+        int[] lengths = tag.getIntArray("length");
+        long[] destinations = tag.getLongArray("end");
+        int[] pathSizes = tag.getIntArray("pathSize");
+        long[] starts = tag.getLongArray("start");
+        byte[] steps = tag.getByteArray("steps");
+        long[] jumps = tag.getLongArray("jumps");
+
+        List<TimedPipeResult> items = new ArrayList<>(stackRefs.length);
+        int start = 0, step = 0, jump = 0;
+        for (int i = 0; i < stackRefs.length; i++) {
+            LinkedList<BlockPos> path = new LinkedList<>();
+            if (pathSizes[i] > 0) {
+                long pos = starts[start++];
+                path.add(BlockPos.fromLong(pos));
+                for (int j = 1; j < pathSizes[i]; j++) {
+                    byte id = steps[step++];
+                    pos = id == JUMP ? jumps[jump++] : BlockPos.offset(pos, Direction.byId(id));
+                    path.add(BlockPos.fromLong(pos));
+                }
+            }
+            int flag = flags[i];
+            int anim = flag >> ANIM_SHIFT & DIRECTION_MASK;
+            PipeResult result = new PipeResult(BlockPos.fromLong(destinations[i]), path, stacks[stackRefs[i]], Direction.byId(flag & DIRECTION_MASK), anim == 0 ? null : Direction.byId(anim - 1));
+            result.setLength(lengths[i]);
+            boolean stuck = (flag & STUCK_BIT) != 0;
+            items.add(ids == null ? new TimedPipeResult(result, times[i], stuck) : new TimedPipeResult(ids[i], result, times[i], stuck));
+        }
+        return items;
+    }
+
+    private static List<TimedPipeResult> readLegacy(NbtList list) {
+        List<TimedPipeResult> items = new ArrayList<>(list.size());
+        for (int i = 0; i < list.size(); i++)
+            items.add(TimedPipeResult.fromTag(list.getCompound(i)));
+        return items;
+    }
+
+    public record Snapshot(ItemStack[] stacks, int @Nullable [] ids, int[] times, int[] flags, int[] lengths, int[] pathSizes, long[] destinations, long[] paths) {
+
+        public boolean isEmpty() {
+            return stacks.length == 0;
+        }
+
+        public NbtCompound encode() {
+            NbtCompound tag = new NbtCompound();
+            encode(tag);
+            return tag;
+        }
+
+        public void encode(NbtCompound tag) {
+            NbtList stackList = new NbtList();
+            Map<StackKey, Integer> stackIndices = new HashMap<>();
+            int[] stackRefs = new int[stacks.length];
+            LongArrayList starts = new LongArrayList(stacks.length);
+            ByteArrayList steps = new ByteArrayList();
+            LongArrayList jumps = new LongArrayList();
+
+            int offset = 0;
+            for (int i = 0; i < stacks.length; i++) {
+                ItemStack stack = stacks[i];
+                stackRefs[i] = stackIndices.computeIfAbsent(new StackKey(stack.getItem(), stack.getCount(), stack.getNbt()), key -> {
+                    stackList.add(stack.writeNbt(new NbtCompound()));
+                    return stackList.size() - 1;
+                });
+
+                for (int j = 0; j < pathSizes[i]; j++) {
+                    long pos = paths[offset + j];
+                    if (j == 0) {
+                        starts.add(pos);
+                        continue;
+                    }
+                    long previous = paths[offset + j - 1];
+                    Direction step = Direction.fromVector(BlockPos.unpackLongX(pos) - BlockPos.unpackLongX(previous), BlockPos.unpackLongY(pos) - BlockPos.unpackLongY(previous), BlockPos.unpackLongZ(pos) - BlockPos.unpackLongZ(previous));
+                    if (step != null)
+                        steps.add((byte) step.getId());
+                    else {
+                        steps.add(JUMP);
+                        jumps.add(pos);
+                    }
+                }
+                offset += pathSizes[i];
+            }
+
+            tag.putInt("version", VERSION);
+            tag.put("stacks", stackList);
+            tag.putIntArray("stack", stackRefs);
+            if (ids != null)
+                tag.putIntArray("id", ids);
+            tag.putIntArray("time", times);
+            tag.putIntArray("flags", flags);
+            tag.putIntArray("length", lengths);
+            tag.putLongArray("end", destinations);
+            tag.putIntArray("pathSize", pathSizes);
+            tag.putLongArray("start", starts.toLongArray());
+            tag.putByteArray("steps", steps.toByteArray());
+            if (!jumps.isEmpty())
+                tag.putLongArray("jumps", jumps.toLongArray());
+        }
+    }
+
+    private record StackKey(Item item, int count, @Nullable NbtCompound nbt) {
+
+    }
+}
@@ -66,15 +66,10 @@ public class PipeResult {
 
     public NbtCompound toTag(NbtCompound tag, boolean client) {
         tag.put("end", Formatter.writePosToNbt(destination));
+        //The client gets the whole path too, so it can move the item along it by itself
         NbtList list = new NbtList();
-        if (!client) {
-            for (BlockPos pathPos : path)
-                list.add(Formatter.writePosToNbt(pathPos));
-        } else {
-            for (int i = 0; i < Math.min(path.size(), 2); i++) {
-                list.add(Formatter.writePosToNbt(path.get(i)));
-            }
-        }
+        for (BlockPos pathPos : path)
+            list.add(Formatter.writePosToNbt(pathPos));
         tag.put("path", list);
 
         NbtCompound stack = new NbtCompound();
@@ -99,6 +94,10 @@ public class PipeResult {
         return length;
     }
 
+    void setLength(int length) {
+        this.length = length;
+    }
+
     @Override
     public String toString() {
         return "PipeResult{" +
@@ -0,0 +1,148 @@
+package net.flytre.pipe.pipe;
+
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
+import net.flytre.pipe.Pipe;
+import net.flytre.pipe.routing.FilterPredicate;
+import net.flytre.pipe.routing.Route;
+import net.flytre.pipe.routing.Router;
+import net.minecraft.item.ItemStack;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * Plans routes off the server thread when async_routing_threads is set. A plan searches an immutable snapshot of its
+ * network (see NetworkSnapshot) on a fork-join pool, so searches in different networks, or for different items in the
+ * same one, run in parallel. The server thread picks up the plan on a later tick and checks the routes it found against
+ * the world as it is by then, see PipeEntity.findPlannedDestinations.
+ * <p>
+ * Snapshots are taken the first time a network is planned for and reused until the network is rebuilt, which replaces
+ * its set of pipes, or it hasn't been planned for in a while. Taking one walks the whole network on the server thread,
+ * so it's spread over as many ticks as the RoutingBudget needs, and no plans for the network start until it's done.
+ */
+public final class PipeRoutePlanner {
+
+    private static final Logger LOGGER = LogManager.getLogger("Pipe Route Planner");
+    private static final int FORGET_TICKS = 200;
+
+    private static final Reference2ObjectOpenHashMap<LongSet, Snapshot> SNAPSHOTS = new Reference2ObjectOpenHashMap<>();
+    private static @Nullable ForkJoinPool pool;
+    private static long ticks;
+
+    private PipeRoutePlanner() {
+    }
+
+    static boolean isEnabled() {
+        return Pipe.PIPE_CONFIG.getConfig().asyncRoutingThreads > 0;
+    }
+
+    /**
+     * Starts planning the routes from a pipe for a stack. Must be called on the server thread.
+     *
+     * @param start where the item came from, which it shouldn't be sent back to
+     * @return null if the snapshot of the network isn't done yet, in which case this should be tried again later
+     */
+    static @Nullable CompletableFuture<Plan> submit(World world, LongSet network, ItemStack stack, long origin, long start) {
+        Snapshot snapshot = SNAPSHOTS.get(network);
+        if (snapshot == null) {
+            snapshot = new Snapshot(NetworkSnapshot.builder(network));
+            SNAPSHOTS.put(network, snapshot);
+        }
+        snapshot.lastUsed = ticks;
+        if (snapshot.network == null && !snapshot.take(world, network))
+            return null;
+        NetworkSnapshot taken = snapshot.network;
+        FilterPredicate<ItemStack> filter = taken.filterFor(world, stack);
+        ItemStack copy = stack.copy();
+        return CompletableFuture.supplyAsync(() -> {
+            long planStart = System.nanoTime();
+            Router<ItemStack> router = taken.router(filter);
+            List<Route> routes = router.findDestinations(origin, copy, start, false, false);
+            return new Plan(routes, router.getLastNodes(), System.nanoTime() - planStart);
+        }, pool()).whenComplete((plan, e) -> {
+            if (e != null)
+                LOGGER.error("Failed to plan routes from " + BlockPos.fromLong(origin), e);
+        });
+    }
+
+    private static ForkJoinPool pool() {
+        int threads = Pipe.PIPE_CONFIG.getConfig().asyncRoutingThreads;
+        if (pool == null || pool.getParallelism() != threads) {
+            if (pool != null)
+                pool.shutdown();
+            pool = new ForkJoinPool(threads, forkJoinPool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+                thread.setName("Pipe Route Planner #" + thread.getPoolIndex());
+                thread.setDaemon(true);
+                return thread;
+            }, null, true);
+        }
+        return pool;
+    }
+
+    /**
+     * Called at the end of every server tick, forgets snapshots of networks that haven't been planned for in a while
+     */
+    public static void endTick() {
+        ticks++;
+        if (ticks % FORGET_TICKS != 0)
+            return;
+        for (ObjectIterator<Reference2ObjectMap.Entry<LongSet, Snapshot>> iterator = SNAPSHOTS.reference2ObjectEntrySet().fastIterator(); iterator.hasNext(); )
+            if (ticks - iterator.next().getValue().lastUsed > FORGET_TICKS)
+                iterator.remove();
+    }
+
+    public static void clear() {
+        SNAPSHOTS.clear();
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    /**
+     * Every destination found, nearest first, along with how many pipes the search expanded and how long it took
+     */
+    record Plan(List<Route> routes, int nodes, long nanos) {
+
+    }
+
+    private static final class Snapshot {
+        @Nullable NetworkSnapshot network;
+        @Nullable NetworkSnapshot.Builder builder;
+        long lastUsed;
+
+        Snapshot(NetworkSnapshot.Builder builder) {
+            this.builder = builder;
+        }
+
+        /**
+         * Carries on taking the snapshot for as long as the routing budget allows
+         *
+         * @return whether it's done
+         */
+        boolean take(World world, LongSet network) {
+            assert builder != null;
+            if (!RoutingBudget.tryAcquire(network))
+                return false;
+            long stepStart = System.nanoTime();
+            boolean done = builder.step(world, stepStart + RoutingBudget.remaining());
+            RoutingBudget.spent(System.nanoTime() - stepStart);
+            if (done) {
+                this.network = builder.build();
+                builder = null;
+            }
+            return done;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package net.flytre.pipe.pipe;
+
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.flytre.flytre_lib.api.base.util.InventoryUtils;
+import net.flytre.pipe.routing.FilterPredicate;
+import net.flytre.pipe.routing.FlowIndex;
+import net.flytre.pipe.routing.InventoryCapacityView;
+import net.flytre.pipe.routing.Router;
+import net.flytre.pipe.routing.Sides;
+import net.flytre.pipe.routing.TopologyView;
+import net.minecraft.inventory.Inventory;
+import net.minecraft.item.ItemStack;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+import net.minecraft.world.World;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Shows the routing core a pipe network in a world: pipes are read from their block entities, inventories through the
+ * face cache of the pipe next to them and filters from the pipes with servos.
+ * <p>
+ * A view is only meant to last for a single lookup, since the items flowing through the network are summed up the
+ * first time they're needed and then reused.
+ */
+public final class PipeRoutingView implements TopologyView, InventoryCapacityView<ItemStack>, FilterPredicate<ItemStack> {
+
+    private final World world;
+    private final LongSet network;
+    private @Nullable FlowIndex<PipeEntity.WrappedItemStack> flows;
+
+    /**
+     * The router asks about the sides of the same pipe several times in a row, so the last pipe looked up is kept
+     */
+    private long lastPos;
+    private @Nullable PipeEntity lastPipe;
+
+    private PipeRoutingView(World world, LongSet network) {
+        this.world = world;
+        this.network = network;
+    }
+
+    static Router<ItemStack> router(World world, LongSet network) {
+        PipeRoutingView view = new PipeRoutingView(world, network);
+        return new Router<>(view, view, view);
+    }
+
+    private @Nullable PipeEntity getPipe(long pos) {
+        if (lastPipe != null && lastPos == pos)
+            return lastPipe;
+        PipeEntity pipe = world.getBlockEntity(BlockPos.fromLong(pos)) instanceof PipeEntity pipeEntity ? pipeEntity : null;
+        lastPos = pos;
+        lastPipe = pipe;
+        return pipe;
+    }
+
+    @Override
+    public int getSides(long pos) {
+        return world.getBlockEntity(BlockPos.fromLong(pos)) instanceof PipeEntity pipe ? pipe.getPackedSides() : Sides.ABSENT;
+    }
+
+    @Override
+    public boolean test(long pipe, ItemStack stack) {
+        PipeEntity pipeEntity = getPipe(pipe);
+        return pipeEntity != null && pipeEntity.passesFilter(stack);
+    }
+
+    @Override
+    public boolean hasInventory(long pipe, int direction) {
+        PipeEntity pipeEntity = getPipe(pipe);
+        return pipeEntity != null && pipeEntity.getInventory(Direction.byId(direction)) != null;
+    }
+
+    @Override
+    public int getInFlight(ItemStack stack, long destination) {
+        if (flows == null)
+            flows = PipeEntity.getFlows(network, world);
+        return flows.count(new PipeEntity.WrappedItemStack(stack), PipeEntity.reservationKey(world, destination));
+    }
+
+    @Override
+    public boolean canInsert(ItemStack stack, int count, long pipe, int direction) {
+        PipeEntity pipeEntity = getPipe(pipe);
+        Inventory destination = pipeEntity == null ? null : pipeEntity.getInventory(Direction.byId(direction));
+        return destination != null && hasRoom(destination, stack, count, Direction.byId(direction).getOpposite());
+    }
+
+    /**
+     * Estimates whether the inventory has room for the items, going through its slots the way they'd be filled
+     *
+     * @param side the side of the inventory the items are inserted through
+     */
+    public static boolean hasRoom(Inventory destination, ItemStack stack, int count, Direction side) {
+        if (count == 1) {
+            return InventoryUtils.getAvailableSlots(destination, side).anyMatch(i -> {
+                ItemStack slotStack = destination.getStack(i);
+                if (InventoryUtils.canInsert(destination, stack, i, side))
+                    return slotStack.isEmpty() || (InventoryUtils.canMergeItems(slotStack, stack) && slotStack.getCount() < slotStack.getMaxCount());
+                return false;
+            });
+        }
+
+        int[] slots = InventoryUtils.getAvailableSlots(destination, side).toArray();
+        ItemStack copy = stack.copy();
+        copy.setCount(count);
+        for (int slot : slots) {
+            ItemStack slotStack = destination.getStack(slot);
+
+            if (slotStack.getCount() >= slotStack.getMaxCount())
+                continue;
+
+            if (InventoryUtils.canInsert(destination, copy, slot, side)) {
+                if (slotStack.isEmpty()) {
+                    if (copy.getCount() < 64)
+                        return true;
+                    else
+                        copy.decrement(64);
+                } else if (InventoryUtils.canMergeItems(slotStack, copy)) {
+                    int target = slotStack.getMaxCount() - slotStack.getCount();
+                    if (copy.getCount() <= target)
+                        return true;
+                    else
+                        copy.decrement(target);
+                }
+            }
+        }
+        return false;
+    }
+}
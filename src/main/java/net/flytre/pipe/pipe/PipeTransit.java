@@ -0,0 +1,56 @@
+package net.flytre.pipe.pipe;
+
+import net.minecraft.util.math.BlockPos;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Moves the items in a pipe along. Every item counts down the time it has left in the pipe, and once it's through, the
+ * pipe is dropped from the front of its path and the item is handed back to the pipe, which moves it into the next pipe,
+ * delivers it or reroutes it.
+ * <p>
+ * Kept apart from PipeEntity, which does everything that needs the world, so the benchmarks can run it without one.
+ */
+public final class PipeTransit {
+
+    private PipeTransit() {
+    }
+
+    /**
+     * @param items the queue of the pipe at pos, which is changed in place
+     * @return the queue, or null if no items are left in it
+     */
+    public static @Nullable Set<TimedPipeResult> tick(Set<TimedPipeResult> items, BlockPos pos, Handler handler) {
+        Set<TimedPipeResult> toRemove = new HashSet<>(items.size() / 2 + 1);
+        Set<TimedPipeResult> toAdd = new HashSet<>(items.size() / 2 + 1);
+
+        for (TimedPipeResult timed : items) {
+            timed.decreaseTime();
+            if (timed.getTime() <= 0) {
+                Queue<BlockPos> path = timed.getPipeResult().getPath();
+                if (pos.equals(path.peek()))
+                    path.poll(); //remove current block
+                handler.throughPipe(timed, path.peek(), toRemove, toAdd);
+            }
+        }
+
+        items.removeAll(toRemove);
+        items.addAll(toAdd);
+        return items.isEmpty() ? null : items;
+    }
+
+    @FunctionalInterface
+    public interface Handler {
+
+        /**
+         * Called for each item that's through the pipe. Items leaving the pipe are added to toRemove and items taking
+         * their place to toAdd, which are only applied to the queue once every item was handled.
+         *
+         * @param next the next pipe on the item's path, or null if it's reached the end of its route
+         */
+        void throughPipe(TimedPipeResult timed, @Nullable BlockPos next, Set<TimedPipeResult> toRemove, Set<TimedPipeResult> toAdd);
+    }
+}
@@ -0,0 +1,80 @@
+package net.flytre.pipe.pipe;
+
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import it.unimi.dsi.fastutil.objects.Reference2LongMap;
+import it.unimi.dsi.fastutil.objects.Reference2LongOpenHashMap;
+import net.flytre.pipe.Pipe;
+
+/**
+ * Limits how long route searches may take in total each server tick, so a burst of cache misses, e.g. after a big
+ * network was rebuilt, is spread over several ticks instead of making one of them hitch. Searches over the budget are
+ * put off and the item waits where it is, in its inventory or pipe, to try again next tick.
+ * <p>
+ * Pipes tick in the same order every tick, so the networks ticking first would otherwise get the whole budget every
+ * time. Instead, a network that had a search put off is put on a waiting list, and while any network is waiting the
+ * others only get half the budget. Networks leave the list as soon as they get to search, or once they haven't asked for
+ * a while, e.g. because they were unloaded.
+ */
+public final class RoutingBudget {
+
+    private static final int FORGET_TICKS = 100;
+
+    /**
+     * Each waiting network and the tick it started waiting on
+     */
+    private static final Reference2LongOpenHashMap<LongSet> WAITING = new Reference2LongOpenHashMap<>();
+    private static long spentNanos;
+    private static long ticks;
+
+    private RoutingBudget() {
+    }
+
+    /**
+     * Whether a network may search for a route right now. If it may, the time the search takes should be passed to spent().
+     */
+    static boolean tryAcquire(LongSet network) {
+        long budget = Pipe.PIPE_CONFIG.getConfig().routingBudgetMicros * 1000L;
+        if (budget <= 0)
+            return true;
+
+        boolean waiting = WAITING.containsKey(network);
+        long limit = waiting || WAITING.isEmpty() ? budget : budget / 2;
+        if (spentNanos < limit) {
+            if (waiting)
+                WAITING.removeLong(network);
+            return true;
+        }
+        if (!waiting)
+            WAITING.put(network, ticks);
+        return false;
+    }
+
+    /**
+     * How much of the budget is left this tick, for work that can stop partway, e.g. taking a NetworkSnapshot
+     */
+    static long remaining() {
+        long budget = Pipe.PIPE_CONFIG.getConfig().routingBudgetMicros * 1000L;
+        return budget <= 0 ? Long.MAX_VALUE : Math.max(budget - spentNanos, 0);
+    }
+
+    static void spent(long nanos) {
+        spentNanos += nanos;
+    }
+
+    /**
+     * Called at the end of every server tick, starts the budget over for the next one
+     */
+    public static void endTick() {
+        spentNanos = 0;
+        ticks++;
+        for (ObjectIterator<Reference2LongMap.Entry<LongSet>> iterator = WAITING.reference2LongEntrySet().fastIterator(); iterator.hasNext(); )
+            if (ticks - iterator.next().getLongValue() > FORGET_TICKS)
+                iterator.remove();
+    }
+
+    public static void clear() {
+        WAITING.clear();
+        spentNanos = 0;
+    }
+}
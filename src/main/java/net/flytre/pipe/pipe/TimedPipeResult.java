@@ -4,8 +4,10 @@ import net.minecraft.item.ItemStack;
 import net.minecraft.nbt.NbtCompound;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.Direction;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TimedPipeResult {
     public static final TimedPipeResult DEFAULT;
@@ -15,20 +17,46 @@ public class TimedPipeResult {
         DEFAULT = new TimedPipeResult(result, 9999);
     }
 
+    /**
+     * Hands out the ids used to refer to items in client sync packets. Ids only need to be unique among the items
+     * currently travelling, so they aren't saved and simply wrap around. In singleplayer the server and client threads
+     * share it, hence the atomic.
+     */
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+    private final int id;
     private final PipeResult pipeResult;
     private int time;
     private boolean stuck;
 
+    /**
+     * Client only: which way the item is heading out of the pipe it's in, or null if it isn't heading into a pipe or
+     * inventory. Worked out once when the item arrives so rendering doesn't need to look at the world.
+     */
+    private @Nullable Direction heading;
+
     public TimedPipeResult(PipeResult pipeResult, int time) {
         this(pipeResult, time, false);
     }
 
     public TimedPipeResult(PipeResult pipeResult, int time, boolean stuck) {
+        this(NEXT_ID.getAndIncrement(), pipeResult, time, stuck);
+    }
+
+    /**
+     * Used when an item is rerouted or received from the server, so it keeps the same id.
+     */
+    public TimedPipeResult(int id, PipeResult pipeResult, int time, boolean stuck) {
+        this.id = id;
         this.pipeResult = pipeResult;
         this.time = time;
         this.stuck = stuck;
     }
 
+    public int getId() {
+        return id;
+    }
+
     public static TimedPipeResult fromTag(NbtCompound tag) {
         NbtCompound pipeTag = tag.getCompound("result");
         PipeResult result = PipeResult.fromTag(pipeTag);
@@ -58,11 +86,23 @@ public class TimedPipeResult {
     }
 
     public void decreaseTime() {
-        this.time--;
+        decreaseTime(1);
+    }
+
+    public void decreaseTime(int ticks) {
+        this.time -= ticks;
         if (time <= 0)
             getPipeResult().removeAnim();
     }
 
+    public @Nullable Direction getHeading() {
+        return heading;
+    }
+
+    public void setHeading(@Nullable Direction heading) {
+        this.heading = heading;
+    }
+
     public NbtCompound toTag(NbtCompound tag, boolean client) {
         NbtCompound pipeTag = new NbtCompound();
         tag.put("result", pipeResult.toTag(pipeTag, client));
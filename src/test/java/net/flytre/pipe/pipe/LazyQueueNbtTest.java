@@ -0,0 +1,43 @@
+package net.flytre.pipe.pipe;
+
+import net.minecraft.nbt.NbtCompound;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * LazyQueueNbt only holds its entries once the snapshot is encoded, so a method of NbtCompound it doesn't override would
+ * see an empty compound and the queue would be lost.
+ */
+class LazyQueueNbtTest {
+
+    /**
+     * Methods that don't look at the entries, so they don't have to encode the snapshot
+     */
+    private static final Set<String> WITHOUT_ENTRIES = Set.of("getType()", "getNbtType()");
+
+    @Test
+    void overridesEveryPublicMethod() {
+        List<String> missing = new ArrayList<>();
+        for (Method method : NbtCompound.class.getMethods()) {
+            if (Modifier.isStatic(method.getModifiers()) || method.isBridge() || method.getDeclaringClass() == Object.class)
+                continue;
+            String signature = method.getName() + Arrays.toString(method.getParameterTypes()).replace('[', '(').replace(']', ')');
+            if (WITHOUT_ENTRIES.contains(signature))
+                continue;
+            try {
+                LazyQueueNbt.class.getDeclaredMethod(method.getName(), method.getParameterTypes());
+            } catch (NoSuchMethodException e) {
+                missing.add(signature);
+            }
+        }
+        assertEquals(List.of(), missing, "NbtCompound methods LazyQueueNbt doesn't override");
+    }
+}